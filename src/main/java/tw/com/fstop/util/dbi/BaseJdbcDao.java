@@ -15,22 +15,27 @@ package tw.com.fstop.util.dbi;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
 
-import org.apache.commons.dbutils.handlers.MapListHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,17 +81,17 @@ public abstract class BaseJdbcDao
 	static String PRODUCT_NAME_SQLSERVER = "Microsoft SQL Server";
 	static String PRODUCT_NAME_HSQL = "HSQL Database Engine";
 	
-	static final String DEF_DB_NAME = "_default"; 
+	//findPage 的 key 值參數名稱
+	static final String SEEK_PARAM = "_seek";
 	
-	//static Map<String, DbTable> tables = Collections.synchronizedMap(new LinkedHashMap<String, DbTable>());
-    static Map<String, Map<String, DbTable>> tables = Collections.synchronizedMap(new HashMap<String, Map<String, DbTable>>());
+	static final String DEF_DB_NAME = "_default"; 
+	static final int DEF_STMT_CACHE_SIZE = 32;
 	
     String schema = "";
     String jdbcDriver = null;
     String jdbcUrl = null;
     String dbUser = null;
     String dbPassword = null;
-    Connection dbConnection = null;
     DataSource dataSource = null;
     Boolean useJNDI = false;
     String jndiName = null;
@@ -98,10 +103,14 @@ public abstract class BaseJdbcDao
     Boolean useCoordinator = true;
     String encoding="utf8"; //資料庫編碼，目前未使用
     String dbName;
+    Integer statementCacheSize = null;
+    Boolean compactRow = null;
+    Boolean useQueryCache = null;
     
-    //for batch insert/update
-    JdbcNamedParameterStatement batchStatement;
-    Connection batchConnection;
+    //connection 與 batch 狀態，shared 模式時每個執行緒一份
+    final DaoState state = new DaoState();
+    final ThreadLocal<DaoState> threadState = new ThreadLocal<DaoState>();
+    volatile boolean shared = false;
     
     
     /**
@@ -111,99 +120,357 @@ public abstract class BaseJdbcDao
     protected abstract String getTableName();
     
     /**
-     * Get db table information. Access to global cache.
-     * @param dbName db name
+     * Get db table information. Access to global cache, load it if not loaded.
+     * 
+     * <pre>
+     * 傳回的是不可修改的 snapshot，讀取時不需要 lock。
+     * 載入失敗時傳回沒有欄位的 DbTable，不放入 cache，下次使用時重新載入。
+     * </pre>
      * @return db table information
      */
-    Map<String, DbTable> getTableInfo(String dbName)
+    DbTable getTable()
     {
-        if (tables.get(dbName) == null)
-        {            
-            tables.put(dbName, Collections.synchronizedMap(new LinkedHashMap<String, DbTable>()));
+        DbTable table = DbTableCache.get(getDbName(), getTableName());
+        if (table != null)
+        {
+            return table;
         }
-        return tables.get(dbName);
-    }
-    
-    /**
-     * Get db table information. Access to global cache.
-     * @return db table information
-     */
-    Map<String, DbTable> getTableInfo()
-    {
-        return getTableInfo(getDbName());
+        
+        if (useCoordinator)
+        {
+            //有設定 snapshot 檔案時先由檔案載入
+            DbTableSnapshot.init(getDbName());
+            DbTableCache.startRefresher(getDbName());
+            table = DbTableCache.get(getDbName(), getTableName());
+            if (table != null)
+            {
+                return table;
+            }
+        }
+        
+        try
+        {
+            log.debug("loading table info...");
+            return DbTableCache.get(getDbName(), getTableName(), () -> {
+                try
+                {
+                    return loadTableMetaInfo(getDbConnection());
+                }
+                finally
+                {
+                    closeConnection();
+                }
+            });
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            log.error("load table info error " + getTableName() + " " + e.toString());
+        }
+        return new DbTable(getDbName(), getTableName(), "", 
+                Collections.<String, DbTableFieldInfo>emptyMap(), Collections.<String, DbTableFieldInfo>emptyMap());
     }
     
+	/**
+	 * 由 meta-data 產生的 SQL 因欄位不存在而失敗時，table 可能已變更，重新載入 meta-data。
+	 * 使用 ConnectionCoordinator 時在背景載入，否則移除 cache 下次使用時載入。
+	 * @param e exception
+	 */
+	void checkSchemaError(Exception e)
+	{
+		if (DbTableCache.isSchemaError(e) == false)
+		{
+			return;
+		}
+		log.warn("column not found, reload meta-data " + getDbName() + "." + getTableName());
+		if (useCoordinator)
+		{
+			DbTableCache.reloadAsync(getDbName(), getTableName());
+		}
+		else
+		{
+			DbTableCache.invalidate(getDbName(), getTableName());
+		}
+	}
+	
+	/**
+	 * Loads db table metadata.
+	 * 
+	 * @param connection db connection
+	 * @return table meta-data snapshot
+	 * @throws SQLException sql exception
+	 */
+	DbTable loadTableMetaInfo(Connection connection) throws SQLException
+	{
+		return loadTableMetaInfo(connection, getDbName(), getTableName());
+	}
+	
 	/**
 	 * Loads db table metadata.
 	 * 
 	 * @param connection db connection
+	 * @param dbName db name
+	 * @param tableName table name
+	 * @return table meta-data snapshot
 	 * @throws SQLException sql exception
 	 */
-	void loadTableMetaInfo(Connection connection) throws SQLException
+	static DbTable loadTableMetaInfo(Connection connection, String dbName, String tableName) throws SQLException
 	{		
-	    getTableInfo().get(getTableName()).setName(getTableName());
-	    getTableInfo().get(getTableName()).getKeyFields().clear();
-	    getTableInfo().get(getTableName()).getFields().clear();
+		Map<String, DbTableFieldInfo> fields = new LinkedHashMap<String, DbTableFieldInfo>();
+		Map<String, DbTableFieldInfo> keyFields = new LinkedHashMap<String, DbTableFieldInfo>();
 		
 		DatabaseMetaData dbMetaData = connection.getMetaData();	
 		String dbProdName = dbMetaData.getDatabaseProductName();
-		getTableInfo().get(getTableName()).setProductName(dbProdName);
-		log.debug("ProductName=" + getTableInfo().get(getTableName()).getProductName());
+		log.debug("ProductName=" + dbProdName);
 		
 		ResultSet result = null;
-		
-        result = dbMetaData.getTables(null, null, getTableName(), new String [] {"TABLE"});         
-		
-		
-		while(result.next())
-        {
-			String tableName = "";
-			tableName = result.getString(3).trim();
-			log.debug("metadata table name =" + tableName);
+		try
+		{
+			result = dbMetaData.getTables(null, null, tableName, new String [] {"TABLE"});         
 			
-			ResultSet result2 =  dbMetaData.getColumns(null, null, tableName, null);
-			while(result2.next())
+			while(result.next())
+			{
+				String metaTableName = result.getString(3).trim();
+				log.debug("metadata table name =" + metaTableName);
+				
+				ResultSet result2 =  dbMetaData.getColumns(null, null, metaTableName, null);
+				try
+				{
+					while(result2.next())
+					{
+						DbTableFieldInfo fieldInfo = readColumnInfo(result2);
+						fields.put(fieldInfo.getFieldName(), fieldInfo);
+					}
+				}
+				finally
+				{
+					result2.close();
+				}
+				
+				log.debug("load keys");
+				result2 = dbMetaData.getPrimaryKeys(null, null, metaTableName);
+				try
+				{
+					while(result2.next())
+					{
+						addKeyField(fields, keyFields, result2.getString(4).trim(), result2.getInt(5));
+					}
+				}
+				finally
+				{
+					result2.close();
+				}
+			}//while
+		}
+		finally
+		{
+			if (result != null)
 			{
-				String columnName =  result2.getString(4).trim();
-				String typeName =  result2.getString(6).trim();
-				Integer columnSize = result2.getInt(7);
-				Integer scale = result2.getInt("DECIMAL_DIGITS");
+				result.close();
+			}
+		}
+		
+		return new DbTable(dbName, tableName, dbProdName, fields, keyFields);
+	}//loadMetaInfo
+	
+	/**
+	 * Read column information of DatabaseMetaData.getColumns result.
+	 */
+	static DbTableFieldInfo readColumnInfo(ResultSet result) throws SQLException
+	{
+		String columnName =  result.getString(4).trim();
+		String typeName =  result.getString(6).trim();
+		Integer sqlType = result.getInt(5);
+		Integer columnSize = result.getInt(7);
+		Integer scale = result.getInt("DECIMAL_DIGITS");
+
+		Boolean isNullable = false;
+		if (result.getInt(11) == 0)
+		{
+			isNullable = false;
+		}
+		else
+		{
+			isNullable = true;        		
+		}
 
-				Boolean isNullable = false;
-	        	if (result2.getInt(11) == 0)
-	        	{
-	        		isNullable = false;
-	        	}
-	        	else
-	        	{
-	        		isNullable = true;        		
-	        	}
+		log.debug(columnName + " " + typeName + " " + columnSize + " " + scale + " " + isNullable);
+		DbTableFieldInfo fieldInfo = new DbTableFieldInfo(columnName, typeName, columnSize, scale, isNullable);
+		fieldInfo.setSqlType(sqlType);
+		return fieldInfo;
+	}
+	
+	/**
+	 * Add key field of the column.
+	 */
+	static void addKeyField(Map<String, DbTableFieldInfo> fields, Map<String, DbTableFieldInfo> keyFields, String columnName, Integer keySeq)
+	{
+		DbTableFieldInfo columnInfo = fields.get(columnName);
+		if (columnInfo == null)
+		{
+			return;
+		}
+		String typeName =  columnInfo.getValueType();
 
-	        	log.debug(columnName + " " + typeName + " " + columnSize + " " + scale + " " + isNullable);
-	        	DbTableFieldInfo fieldInfo = new DbTableFieldInfo(columnName, typeName, columnSize, scale, isNullable);
-	        	getTableInfo().get(getTableName()).getFields().put(columnName, fieldInfo);
+		log.debug(columnName + " " + typeName + " " + keySeq);
+		DbTableFieldInfo fieldInfo = new DbTableFieldInfo(columnName, typeName, columnInfo.getSize(), columnInfo.getScale(), columnInfo.getNullable());
+		fieldInfo.setKeySeq(keySeq);
+		fieldInfo.setSqlType(columnInfo.getSqlType());
+		keyFields.put(columnName, fieldInfo);
+		
+		columnInfo.setKeySeq(keySeq);
+	}
+	
+	//標準 INFORMATION_SCHEMA 查詢所有 primary key 欄位 (SQL Server, HSQLDB, MySQL, PostgreSQL)
+	static final String SQL_PRIMARY_KEYS = 
+			"SELECT K.TABLE_SCHEMA, K.TABLE_NAME, K.COLUMN_NAME, K.ORDINAL_POSITION " +
+			"FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS C " +
+			"JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE K " +
+			"ON C.CONSTRAINT_SCHEMA = K.CONSTRAINT_SCHEMA AND C.CONSTRAINT_NAME = K.CONSTRAINT_NAME " +
+			"AND C.TABLE_SCHEMA = K.TABLE_SCHEMA AND C.TABLE_NAME = K.TABLE_NAME " +
+			"WHERE C.CONSTRAINT_TYPE = 'PRIMARY KEY'";
+	
+	//不支援 schema 的資料庫 (例如 MySQL) 由 getTables 取得的 schema 為 null
+	private static boolean sameSchema(String tableSchema, String schema)
+	{
+		return tableSchema == null || tableSchema.equals(schema);
+	}
+	
+	/**
+	 * Loads metadata of all tables in the schema.
+	 * 
+	 * <pre>
+	 * 欄位以一次 getColumns 取得，primary key 以一次 INFORMATION_SCHEMA 查詢取得，
+	 * 資料庫不支援 INFORMATION_SCHEMA 時，改為每個 table 呼叫 getPrimaryKeys。
+	 * 未指定 schema 時，不同 schema 有相同名稱的 table 不載入，使用時再個別載入。
+	 * </pre>
+	 * 
+	 * @param connection db connection
+	 * @param dbName db name
+	 * @param schema schema name, null for all schemas
+	 * @return table meta-data snapshots
+	 * @throws SQLException sql exception
+	 */
+	static List<DbTable> loadSchemaMetaInfo(Connection connection, String dbName, String schema) throws SQLException
+	{
+		DatabaseMetaData dbMetaData = connection.getMetaData();	
+		String dbProdName = dbMetaData.getDatabaseProductName();
+		
+		//table name -> schema
+		Map<String, String> tableSchemas = new LinkedHashMap<String, String>();
+		Set<String> ambiguous = new HashSet<String>();
+		ResultSet result = dbMetaData.getTables(null, schema, null, new String [] {"TABLE"});
+		try
+		{
+			while(result.next())
+			{
+				String tableSchema = result.getString(2);
+				String tableName = result.getString(3).trim();
+				if (tableSchemas.containsKey(tableName) && Objects.equals(tableSchemas.get(tableName), tableSchema) == false)
+				{
+					ambiguous.add(tableName);
+				}
+				tableSchemas.put(tableName, tableSchema);
 			}
-			
-			log.debug("load keys");
-			result2 = dbMetaData.getPrimaryKeys(null, null, tableName);
-			while(result2.next())
+		}
+		finally
+		{
+			result.close();
+		}
+		
+		Map<String, Map<String, DbTableFieldInfo>> fields = new LinkedHashMap<String, Map<String, DbTableFieldInfo>>();
+		result = dbMetaData.getColumns(null, schema, null, null);
+		try
+		{
+			while(result.next())
 			{
-				String columnName =  result2.getString(4).trim();
-				
-				DbTableFieldInfo columnInfo = getTableInfo().get(getTableName()).getFields().get(columnName);
-				String typeName =  columnInfo.getValueType();
-				Integer keySeq = result2.getInt(5);
-
-	        	log.debug(columnName + " " + typeName + " " + keySeq);
-	        	DbTableFieldInfo fieldInfo = new DbTableFieldInfo(columnName, typeName, columnInfo.getSize(), columnInfo.getScale(), columnInfo.getNullable());
-	        	fieldInfo.setKeySeq(keySeq);
-	        	//keyFields.put(columnName, fieldInfo);
-	        	getTableInfo().get(getTableName()).getKeyFields().put(columnName, fieldInfo);
-	        	
-	        	getTableInfo().get(getTableName()).getFields().get(columnName).setKeySeq(keySeq);
-			}
-        }//while
-	}//loadMetaInfo
+				String tableName = result.getString(3).trim();
+				//view 或其他 schema 的同名 table
+				if (tableSchemas.containsKey(tableName) == false || ambiguous.contains(tableName) || 
+					sameSchema(tableSchemas.get(tableName), result.getString(2)) == false)
+				{
+					continue;
+				}
+				Map<String, DbTableFieldInfo> tableFields = fields.get(tableName);
+				if (tableFields == null)
+				{
+					tableFields = new LinkedHashMap<String, DbTableFieldInfo>();
+					fields.put(tableName, tableFields);
+				}
+				DbTableFieldInfo fieldInfo = readColumnInfo(result);
+				tableFields.put(fieldInfo.getFieldName(), fieldInfo);
+			}
+		}
+		finally
+		{
+			result.close();
+		}
+		
+		Map<String, Map<String, DbTableFieldInfo>> keyFields = new HashMap<String, Map<String, DbTableFieldInfo>>();
+		for(String tableName : fields.keySet())
+		{
+			keyFields.put(tableName, new LinkedHashMap<String, DbTableFieldInfo>());
+		}
+		
+		boolean bulkKeys = true;
+		PreparedStatement ps = null;
+		try
+		{
+			ps = connection.prepareStatement(schema == null ? SQL_PRIMARY_KEYS : SQL_PRIMARY_KEYS + " AND C.TABLE_SCHEMA = ?");
+			if (schema != null)
+			{
+				ps.setString(1, schema);
+			}
+			result = ps.executeQuery();
+			while(result.next())
+			{
+				String tableName = result.getString(2).trim();
+				if (fields.containsKey(tableName) && sameSchema(tableSchemas.get(tableName), result.getString(1)))
+				{
+					addKeyField(fields.get(tableName), keyFields.get(tableName), result.getString(3).trim(), result.getInt(4));
+				}
+			}
+			result.close();
+		}
+		catch (SQLException e)
+		{
+			log.debug("INFORMATION_SCHEMA not supported " + dbProdName + " " + e.getMessage());
+			bulkKeys = false;
+		}
+		finally
+		{
+			if (ps != null)
+			{
+				ps.close();
+			}
+		}
+		
+		if (bulkKeys == false)
+		{
+			for(String tableName : fields.keySet())
+			{
+				result = dbMetaData.getPrimaryKeys(null, tableSchemas.get(tableName), tableName);
+				try
+				{
+					while(result.next())
+					{
+						addKeyField(fields.get(tableName), keyFields.get(tableName), result.getString(4).trim(), result.getInt(5));
+					}
+				}
+				finally
+				{
+					result.close();
+				}
+			}
+		}
+		
+		List<DbTable> ret = new ArrayList<DbTable>();
+		for(Map.Entry<String, Map<String, DbTableFieldInfo>> e : fields.entrySet())
+		{
+			ret.add(new DbTable(dbName, e.getKey(), dbProdName, e.getValue(), keyFields.get(e.getKey())));
+		}
+		return ret;
+	}
 	
 	/**
 	 * Get db tables.
@@ -236,9 +503,7 @@ public abstract class BaseJdbcDao
 	 */
 	public Map<String, DbTableFieldInfo> getKeyFields()
 	{
-		initMetaData();
-		//return keyFields;
-		return getTableInfo().get(getTableName()).getKeyFields();
+		return getTable().getKeyFields();
 	}
 	
 	/**
@@ -247,9 +512,7 @@ public abstract class BaseJdbcDao
 	 */
 	public Map<String, DbTableFieldInfo> getFields()
 	{
-		initMetaData();
-		//return fields;
-		return getTableInfo().get(getTableName()).getFields();
+		return getTable().getFields();
 	}
 	
 	public BaseJdbcDao()
@@ -281,22 +544,71 @@ public abstract class BaseJdbcDao
 	}
 	
 	/**
-	 * Set db query and update hint.
+	 * Query and update hint of a db product, immutable.
 	 */
-	public void setHint()
+	static final class Hint
 	{
-		clearHint();
-		if (getTableInfo().get(getTableName()) != null && useHint == true)
+		static final Hint NONE = new Hint("", "", "", "");
+		static final Hint SQLSERVER = new Hint("", " with (nolock) ", "", " with (rowlock) ");
+		
+		final String query1;
+		final String query2;
+		final String update1;
+		final String update2;
+		
+		Hint(String query1, String query2, String update1, String update2)
 		{
-			String productName = getTableInfo().get(getTableName()).getProductName();
-			if (productName.equalsIgnoreCase(PRODUCT_NAME_SQLSERVER))
-			{
-				queryHint1 = "";
-				queryHint2 = " with (nolock) ";
-				updateHint1 = "";
-				updateHint2 = " with (rowlock) ";
-			}
+			this.query1 = query1;
+			this.query2 = query2;
+			this.update1 = update1;
+			this.update2 = update2;
+		}
+	}
+	
+	/**
+	 * Get db query and update hint of the table, resolved per call from table meta-data.
+	 * @return hint
+	 */
+	Hint getHint()
+	{
+		if (Boolean.TRUE.equals(useHint) == false)
+		{
+			return Hint.NONE;
+		}
+		String productName = getTable().getProductName();
+		if (PRODUCT_NAME_SQLSERVER.equalsIgnoreCase(productName))
+		{
+			return Hint.SQLSERVER;
+		}
+		return Hint.NONE;
+	}
+	
+	/**
+	 * Get sql limits of the db product of the table.
+	 * @return dialect
+	 */
+	DbDialect getDialect()
+	{
+		DbDialect dialect = DbDialect.of(getTable().getProductName());
+		if (this.useCoordinator)
+		{
+			dialect = dialect.withLimits(
+				ConnectionCoordinator.getIntProperty(getDbName(), "db.insert.maxparams", dialect.maxParams),
+				ConnectionCoordinator.getIntProperty(getDbName(), "db.insert.maxrows", dialect.maxRows));
 		}
+		return dialect;
+	}
+	
+	/**
+	 * Set db query and update hint.
+	 */
+	public void setHint()
+	{
+		Hint hint = getHint();
+		queryHint1 = hint.query1;
+		queryHint2 = hint.query2;
+		updateHint1 = hint.update1;
+		updateHint2 = hint.update2;
 	}
 	
 	/**
@@ -315,34 +627,7 @@ public abstract class BaseJdbcDao
 	 */
 	void initMetaData()
 	{
-		//若是不存在則先新增
-		if (getTableInfo().get(getTableName()) == null)
-		{
-		    log.debug("loading table info...");
-			Map<String, DbTableFieldInfo> fields = Collections.synchronizedMap(new LinkedHashMap<String, DbTableFieldInfo>());
-			Map<String, DbTableFieldInfo> keyFields = Collections.synchronizedMap(new HashMap<String, DbTableFieldInfo>());
-			DbTable table = new DbTable();
-			table.setFields(fields);
-			table.setKeyFields(keyFields);
-			getTableInfo().put(getTableName(), table);			
-		}
-		
-		//table 不一定有 key 但一定要有欄位
-		//如果欄位 cache 為空，則載入
-		//if (fields.isEmpty())
-		if (getTableInfo().get(getTableName()).getFields().isEmpty())
-		{
-			try 
-			{
-				this.getDbConnection();
-				loadTableMetaInfo(dbConnection);
-				this.closeConnection();		
-			} 
-			catch (SQLException e) 
-			{
-				e.printStackTrace();
-			}					
-		}
+		getTable();
 	}
 	
 	/**
@@ -363,18 +648,19 @@ public abstract class BaseJdbcDao
 									String dbPassword
 									) 
 	{
+		DaoState st = state();
 		try
 		{
-			if (dbConnection == null || dbConnection.isClosed())
+			if (st.connection == null || st.connection.isClosed())
 			{				
 				if (useJNDI)
 				{
 					log.debug("use jndi data source");
 					Context ctx = new InitialContext();
 					dataSource = (DataSource) ctx.lookup(jndiName);				
-					dbConnection = dataSource.getConnection();
+					st.connection = dataSource.getConnection();
 					
-					for( SQLWarning warn = dbConnection.getWarnings(); warn != null; warn = warn.getNextWarning() )
+					for( SQLWarning warn = st.connection.getWarnings(); warn != null; warn = warn.getNextWarning() )
 			        {
 						log.warn( "SQL Warning:" ) ;
 						log.warn( "State  : " + warn.getSQLState()  ) ;
@@ -386,14 +672,14 @@ public abstract class BaseJdbcDao
 				{
 					log.debug("use jdbc driver");
 					Class.forName(jdbcDriver);
-					dbConnection = DriverManager.getConnection(
+					st.connection = DriverManager.getConnection(
 							dbUrl,
 							dbUser,
 							dbPassword
 							);		
 				}
 				
-			}//if invalid dbConnection
+			}//if invalid st.connection
 		}
 		catch(Exception e)
 		{
@@ -402,7 +688,7 @@ public abstract class BaseJdbcDao
 			log.error(e.getMessage(), e);
 		}
 		
-		return dbConnection;
+		return st.connection;
 	}//getDbConnection
 	
 	/**
@@ -410,29 +696,102 @@ public abstract class BaseJdbcDao
 	 */
 	public void closeConnection()
 	{
+		DaoState st = state();
 		try
 		{			
-			if(dbConnection != null)
+			if(st.connection != null)
 			{
 				//如果有設定 transaction 則不自動 close
 				//必需在 commit 或 rollback 之後 setAutoCommit(true)
 				//再呼叫 closeConnection 才可以
-				if (dbConnection.getAutoCommit() == false)
+				if (st.connection.getAutoCommit() == false)
 				{
-					log.debug("auto commit=" + dbConnection.getAutoCommit());
+					log.debug("auto commit=" + st.connection.getAutoCommit());
 					return;
 				}
 				
-				dbConnection.close();
-				dbConnection = null;
+				endUncommitted(st);
+				StatementCache.remove(st.connection);
+				st.connection.close();
+				st.connection = null;
 			}
 		}
 		catch(Exception e)
 		{			
 		}
+		finally
+		{
+			releaseState(st);
+		}
 		
 	}//closeConnection
 	
+	/**
+	 * Get connection state of the current operation.
+	 * @return state of the dao, or of the current thread in shared mode
+	 */
+	DaoState state()
+	{
+		if (shared == false)
+		{
+			return state;
+		}
+		DaoState st = threadState.get();
+		if (st == null)
+		{
+			st = new DaoState();
+			threadState.set(st);
+		}
+		return st;
+	}
+	
+	/**
+	 * Get connection state of the current operation without creating it, for read only checks.
+	 * @return state of the dao, or of the current thread in shared mode, null if the thread has no state
+	 */
+	DaoState peekState()
+	{
+		return shared ? threadState.get() : state;
+	}
+	
+	/**
+	 * shared 模式時，執行緒沒有持有 connection 則移除其狀態
+	 */
+	void releaseState(DaoState st)
+	{
+		if (shared && st.isIdle())
+		{
+			threadState.remove();
+		}
+	}
+	
+	/**
+	 * Whether the dao instance can be used by multiple threads at the same time.
+	 * @return true if shared mode
+	 */
+	public boolean isShared()
+	{
+		return shared;
+	}
+	
+	/**
+	 * Set shared mode.
+	 * 
+	 * <pre>
+	 * shared 模式時，connection 與 batch 狀態存放於執行緒，每個操作由 pool 取得自己的 connection，
+	 * hint 與 meta-data 每次由不可修改的 table meta-data 取得，一個 table 只需要一個 DAO 物件。
+	 * 在開始共用之前設定，並且不要再呼叫 setter 修改 DAO 設定。
+	 * 交易 (auto commit = false) 只在同一個執行緒內有效。
+	 * </pre>
+	 * 
+	 * @param shared true for shared mode
+	 * @since 1.0.3
+	 */
+	public void setShared(boolean shared)
+	{
+		this.shared = shared;
+	}
+	
 	/**
 	 * Output sql exception
 	 * @param se sql exception
@@ -457,30 +816,12 @@ public abstract class BaseJdbcDao
 	 */
     String getEqualCondition(Map<String, Object> map)
 	{
-		String ret = "";
-		
 		if (map == null || map.isEmpty())
 		{
-			return ret;
-		}
-		
-		ret = " where ";
-		Set<String> ks = map.keySet();
-		int cnt = 0;
-		for(String key : ks)
-		{
-			cnt++;
-			if (cnt < ks.size())
-			{
-				ret = ret + key + " = :" + key + " and "; 				
-			}
-			else
-			{
-				ret = ret + key + " = :" + key + " "; 								
-			}
+			return "";
 		}
 		
-		return ret;
+		return getSqlTemplate(SqlTemplate.Operation.EQUAL_CONDITION, map).getSql();
 	}
 
     /**
@@ -489,25 +830,7 @@ public abstract class BaseJdbcDao
      */
     String getEqualByKeyCondition()
     {
-    	Set<String> set = getKeyFields().keySet();
-    	if (set.isEmpty()) return "";
-    	
-    	String ret = " where ";
-    	int cnt = 0;
-    	for(String key : set)
-    	{
-    		cnt++;
-    		if (cnt < set.size())
-    		{
-    			ret = ret + key + " = :" + key + " and ";     			
-    		}
-    		else
-    		{
-    			ret = ret + key + " = :" + key + " ";     			    			
-    		}
-    	}
-
-    	return ret;
+    	return getSqlTemplate(SqlTemplate.Operation.KEY_CONDITION, null).getSql();
     }
 
     /**
@@ -517,34 +840,12 @@ public abstract class BaseJdbcDao
      */
     String getUpdateStatement(Map<String, Object> map)
 	{
-		String ret = "";
-		
 		if (map == null || map.isEmpty())
 		{
-			return ret;
-		}
-		setHint();		
-		ret = " update " + updateHint1 + getTableName() + updateHint2 + " set ";
-		Set<String> ks = map.keySet();
-		for(String key : ks)
-		{
-			//避開 key 欄位
-			if (getKeyFields().containsKey(key))
-			{
-				continue;
-			}
-			
-			//因為 hashmap 出現位置不固定，所以無法正確判斷，只能後置處理
-			//且 update 有既有欄位 與 條件欄位 
-			if (getFields().containsKey(key))
-			{
-				ret = ret + key + " = :" + key + ", "; 								
-			}
-			
+			return "";
 		}
-		ret = ret.substring(0, ret.lastIndexOf(",")) + " ";
 		
-		return ret;
+		return getSqlTemplate(SqlTemplate.Operation.UPDATE, map).getSql();
 	}
     
     /**
@@ -554,192 +855,1363 @@ public abstract class BaseJdbcDao
      */
     String getUpdateByKeyStatement(Map<String, Object> map)
 	{
-		String ret = "";
-		
 		if (map == null || map.isEmpty())
 		{
-			return ret;
+			return "";
 		}
 		
-		
-		//有可能沒有 key
-		String cond = getEqualByKeyCondition();
-		ret = this.getUpdateStatement(map);
-		if (StrUtil.isNotEmpty(cond))
-		{
-			ret = ret + cond; //getEqualByKeyCondition(); 			
-		}
-		else
+		//有可能沒有 key, 沒有 key 時以 map 欄位為條件
+		return getSqlTemplate(SqlTemplate.Operation.UPDATE_BY_KEY, map).getSql();
+	}
+
+    /**
+     * 產生 insert SQL 語法
+     * @return sql statement
+     */
+    String getInsertStatement()
+    {
+		return getSqlTemplate(SqlTemplate.Operation.INSERT_ALL, null).getSql();
+    }
+    
+    /**
+     * 依照給定的 map 內容產生 insert SQL 語法
+     * @param map parameter map
+     * @return sql statement
+     */
+    String getInsertStatement(Map<String, Object> map)
+	{
+		if (map == null || map.isEmpty())
 		{
-			ret = ret + this.getEqualCondition(map);
+			return "";
 		}
 		
-		return ret;
+		return getSqlTemplate(SqlTemplate.Operation.INSERT, map).getSql();
 	}
+    
+    /**
+     * Get generated SQL from global {@link SqlTemplateCache}, build and cache it if not found.
+     * <pre>
+     * 同一個 table 與欄位組合的 SQL 只產生一次，由所有 DAO instance 共用。
+     * meta-data 未載入成功時產生的 SQL 不放入 cache。
+     * </pre>
+     * @param op operation
+     * @param map parameter map, null for the statements depend on meta-data only
+     * @return sql template
+     */
+    SqlTemplate getSqlTemplate(SqlTemplate.Operation op, Map<String, Object> map)
+    {
+        String [] columns = SqlTemplateCache.columnsOf(map);
+        
+        //單純的等於條件與 table meta-data 無關
+        if (op == SqlTemplate.Operation.EQUAL_CONDITION)
+        {
+            SqlTemplateCache.Key key = new SqlTemplateCache.Key(getDbName(), getTableName(), op, false, columns);
+            SqlTemplate t = SqlTemplateCache.get(key);
+            if (t == null)
+            {
+                StringBuilder sb = new StringBuilder(16 + columns.length * 24);
+                appendEqualCondition(sb, columns);
+                t = new SqlTemplate(op, sb.toString());
+                SqlTemplateCache.put(key, t);
+            }
+            return t;
+        }
+        
+        DbTable table = getTable();
+        Map<String, DbTableFieldInfo> fields = table.getFields();
+        Map<String, DbTableFieldInfo> keyFields = table.getKeyFields();
 
+        //有 key 時, 條件只與 key 欄位有關
+        if (keyFields.isEmpty() == false && 
+            (op == SqlTemplate.Operation.KEY_CONDITION || op == SqlTemplate.Operation.FIND_BY_KEY || op == SqlTemplate.Operation.DELETE_BY_KEY))
+        {
+            columns = SqlTemplateCache.NO_COLUMNS;
+        }
+        
+        SqlTemplateCache.Key key = new SqlTemplateCache.Key(getDbName(), getTableName(), op, Boolean.TRUE.equals(useHint), columns);
+        SqlTemplate t = SqlTemplateCache.get(key);
+        if (t != null)
+        {
+            return t;
+        }
+        
+        Hint hint = getHint();
+        String [] keys = keyFields.keySet().toArray(new String[keyFields.size()]);
+        Arrays.sort(keys);
+        StringBuilder sb = new StringBuilder(64 + (columns.length + keys.length) * 24);
+        
+        switch (op)
+        {
+            case KEY_CONDITION:
+                if (keys.length > 0)
+                {
+                    appendEqualCondition(sb, keys);
+                }
+                break;
+            case INSERT:
+                appendInsert(sb, columns);
+                break;
+            case INSERT_ALL:
+                appendInsert(sb, fields.keySet().toArray(new String[fields.size()]));
+                break;
+            case UPDATE:
+            case UPDATE_BY_KEY:
+                sb.append(" update ").append(hint.update1).append(getTableName()).append(hint.update2).append(" set ");
+                int cnt = 0;
+                for(String col : columns)
+                {
+                    //避開 key 欄位, 並只 update 既有欄位
+                    if (keyFields.containsKey(col) || fields.containsKey(col) == false)
+                    {
+                        continue;
+                    }
+                    if (cnt > 0)
+                    {
+                        sb.append(", ");
+                    }
+                    sb.append(col).append(" = :").append(col);
+                    cnt++;
+                }
+                sb.append(' ');
+                if (op == SqlTemplate.Operation.UPDATE_BY_KEY)
+                {
+                    appendEqualCondition(sb, keys.length > 0 ? keys : columns);
+                }
+                break;
+            case FIND_BY_KEY:
+                sb.append("select ").append(hint.query1).append(" * from ").append(getTableName()).append(hint.query2);
+                //因為 table 有可能沒有 key
+                appendEqualCondition(sb, keys.length > 0 ? keys : columns);
+                break;
+            case DELETE_BY_KEY:
+                sb.append("delete from ").append(getTableName());
+                appendEqualCondition(sb, keys.length > 0 ? keys : columns);
+                break;
+            case MERGE:
+                appendMerge(sb, getDialect(), columns, keys, fields);
+                break;
+            default:
+                break;
+        }
+        
+        String sql = sb.toString();
+        t = new SqlTemplate(op, sql, op == SqlTemplate.Operation.KEY_CONDITION ? null :
+            BindingPlan.build(JdbcNamedParameterStatement.getParsedQuery(sql), fields));
+        if (fields.isEmpty() == false)
+        {
+            SqlTemplateCache.put(key, t);
+        }
+        return t;
+    }
+    
     /**
-     * 產生 insert SQL 語法
+     * Append " where c1 = :c1 and c2 = :c2 " to sql.
+     * @param sb sql buffer
+     * @param columns condition columns
+     */
+    static void appendEqualCondition(StringBuilder sb, String [] columns)
+    {
+        if (columns.length == 0)
+        {
+            return;
+        }
+        sb.append(" where ");
+        for(int i=0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(" and ");
+            }
+            sb.append(columns[i]).append(" = :").append(columns[i]);
+        }
+        sb.append(' ');
+    }
+    
+    /**
+     * Append insert statement to sql.
+     * @param sb sql buffer
+     * @param columns insert columns
+     */
+    void appendInsert(StringBuilder sb, String [] columns)
+    {
+        sb.append("insert into ").append(getTableName()).append(" ( ");
+        for(int i=0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(columns[i]);
+        }
+        sb.append(" )  values (");
+        for(int i=0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(':').append(columns[i]);
+        }
+        sb.append(" ) ");
+    }
+    
+    /**
+     * Append merge statement to sql, update the row if the key exists, insert otherwise.
+     * <pre>
+     * merge into T dst using (values (:K1, :C1)) as src (K1, C1) on dst.K1 = src.K1
+     * when matched then update set C1 = src.C1
+     * when not matched then insert (K1, C1) values (src.K1, src.C1)
+     * </pre>
+     * @param sb sql buffer
+     * @param dialect dialect of the db
+     * @param columns columns of the data, not table fields are ignored
+     * @param keys key columns
+     * @param fields table fields
+     */
+    void appendMerge(StringBuilder sb, DbDialect dialect, String [] columns, String [] keys, Map<String, DbTableFieldInfo> fields)
+    {
+        List<String> cols = new ArrayList<String>(columns.length);
+        for(String col : columns)
+        {
+            if (fields.containsKey(col))
+            {
+                cols.add(col);
+            }
+        }
+        
+        sb.append("merge into ").append(getTableName());
+        if (dialect.merge == DbDialect.MERGE_SQLSERVER)
+        {
+            //避免同時 merge 相同 key 時重複 insert
+            sb.append(" with (holdlock)");
+        }
+        sb.append(" as dst using (values (");
+        for(int i=0; i < cols.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            dialect.appendMergeParam(sb, cols.get(i), fields.get(cols.get(i)));
+        }
+        sb.append(")) as src (");
+        appendColumns(sb, cols, "");
+        sb.append(") on ");
+        for(int i=0; i < keys.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(" and ");
+            }
+            sb.append("dst.").append(keys[i]).append(" = src.").append(keys[i]);
+        }
+        
+        int cnt = 0;
+        for(String col : cols)
+        {
+            if (Arrays.binarySearch(keys, col) >= 0)
+            {
+                continue;
+            }
+            sb.append(cnt == 0 ? " when matched then update set " : ", ");
+            sb.append(col).append(" = src.").append(col);
+            cnt++;
+        }
+        sb.append(" when not matched then insert (");
+        appendColumns(sb, cols, "");
+        sb.append(") values (");
+        appendColumns(sb, cols, "src.");
+        sb.append(')');
+        if (dialect.merge == DbDialect.MERGE_SQLSERVER)
+        {
+            sb.append(';');
+        }
+    }
+    
+    private static void appendColumns(StringBuilder sb, List<String> columns, String prefix)
+    {
+        for(int i=0; i < columns.size(); i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(prefix).append(columns.get(i));
+        }
+    }
+    
+    /**
+     * 產生多筆 key 查詢 SQL 語法，以 ? 表示參數
+     * @param keys key columns
+     * @param rows number of keys
      * @return sql statement
      */
-    String getInsertStatement()
+    String getFindByKeysStatement(String [] keys, int rows)
     {
-		String cols = "insert into " + getTableName() + " ( ";
-		String ret = " values (";
-		Set<String> ks = getFields().keySet();
-		int cnt = 0;
-		for(String key : ks)
+        Hint hint = getHint();
+        StringBuilder sb = new StringBuilder(48 + rows * (keys.length * 16 + 8));
+        sb.append("select ").append(hint.query1).append(" * from ").append(getTableName()).append(hint.query2);
+        appendKeysCondition(sb, keys, rows);
+        return sb.toString();
+    }
+    
+    /**
+     * 產生 key 分頁查詢 SQL 語法，key 值參數為 :_seek0, :_seek1 ...
+     * @param keys key columns in key sequence
+     * @param where sql condition, with or without where keyword
+     * @param rows max rows
+     * @param seek true to read after the key values
+     * @return sql statement
+     */
+    String getPageStatement(String [] keys, String where, int rows, boolean seek)
+    {
+        Hint hint = getHint();
+        DbDialect dialect = getDialect();
+        StringBuilder sb = new StringBuilder(64 + keys.length * keys.length * 24);
+        sb.append("select ").append(dialect.getLimitPrefix(rows)).append(hint.query1).append(" * from ").append(getTableName()).append(hint.query2);
+        
+        String cond = where == null ? "" : where.trim();
+        if (cond.regionMatches(true, 0, "where", 0, 5) && (cond.length() == 5 || Character.isWhitespace(cond.charAt(5))))
+        {
+            cond = cond.substring(5).trim();
+        }
+        if (cond.isEmpty() == false || seek)
+        {
+            sb.append(" where ");
+        }
+        if (cond.isEmpty() == false)
+        {
+            sb.append('(').append(cond).append(')');
+            if (seek)
+            {
+                sb.append(" and ");
+            }
+        }
+        if (seek)
+        {
+            //(K1, K2) > (?, ?) 展開，SQL Server 不支援 row value 比較
+            sb.append('(');
+            for(int i=0; i < keys.length; i++)
+            {
+                sb.append(i > 0 ? " or (" : "(");
+                for(int j=0; j < i; j++)
+                {
+                    sb.append(keys[j]).append(" = :").append(SEEK_PARAM).append(j).append(" and ");
+                }
+                sb.append(keys[i]).append(" > :").append(SEEK_PARAM).append(i).append(')');
+            }
+            sb.append(')');
+        }
+        sb.append(" order by ");
+        for(int i=0; i < keys.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(keys[i]);
+        }
+        sb.append(dialect.getLimitSuffix(rows));
+        return sb.toString();
+    }
+    
+    /**
+     * Append " where K in (?, ?) " or " where (K1 = ? and K2 = ?) or (...) " to sql.
+     * @param sb sql buffer
+     * @param keys key columns
+     * @param rows number of keys
+     */
+    static void appendKeysCondition(StringBuilder sb, String [] keys, int rows)
+    {
+        sb.append(" where ");
+        if (keys.length == 1)
+        {
+            sb.append(keys[0]).append(" in (");
+            for(int r=0; r < rows; r++)
+            {
+                sb.append(r > 0 ? ", ?" : "?");
+            }
+            sb.append(')');
+        }
+        else
+        {
+            for(int r=0; r < rows; r++)
+            {
+                sb.append(r > 0 ? " or (" : "(");
+                for(int i=0; i < keys.length; i++)
+                {
+                    if (i > 0)
+                    {
+                        sb.append(" and ");
+                    }
+                    sb.append(keys[i]).append(" = ?");
+                }
+                sb.append(')');
+            }
+        }
+        sb.append(' ');
+    }
+    
+    /**
+     * 產生多筆 insert SQL 語法，以 ? 表示參數
+     * @param columns insert columns
+     * @param rows number of rows
+     * @return sql statement
+     */
+    String getInsertRowsStatement(String [] columns, int rows)
+    {
+        StringBuilder sb = new StringBuilder(32 + columns.length * 16 + rows * (columns.length * 3 + 4));
+        sb.append("insert into ").append(getTableName()).append(" ( ");
+        for(int i=0; i < columns.length; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(columns[i]);
+        }
+        sb.append(" )  values ");
+        for(int r=0; r < rows; r++)
+        {
+            sb.append(r > 0 ? ", (" : "(");
+            for(int i=0; i < columns.length; i++)
+            {
+                sb.append(i > 0 ? ", ?" : "?");
+            }
+            sb.append(')');
+        }
+        sb.append(' ');
+        return sb.toString();
+    }
+    
+    /**
+     * Create named parameter statement on the connection of this DAO.
+     * @param sql sql statement
+     * @return named parameter statement
+     * @throws SQLException sql exception
+     */
+    JdbcNamedParameterStatement prepareStatement(String sql) throws SQLException
+    {
+        return prepareStatement(getDbConnection(), sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+    
+    /**
+     * Create named parameter statement, reuse the PreparedStatement cached on the connection.
+     * <pre>
+     * 只有跨多個操作持有的 connection ({@link DbTransaction} 或 DAO 自行設定的 transaction) 使用 statement cache，
+     * 一般操作每次取得 connection 只執行一個 statement，不建立 cache。
+     * </pre>
+     * @param connection db connection
+     * @param sql sql statement
+     * @param resultSetType result set type
+     * @param resultSetConcurrency result set concurrency
+     * @return named parameter statement
+     * @throws SQLException sql exception
+     */
+    JdbcNamedParameterStatement prepareStatement(Connection connection, String sql, int resultSetType, int resultSetConcurrency) throws SQLException
+    {
+        int cacheSize = isHeldConnection(connection) ? getStatementCacheSize() : 0;
+        return JdbcNamedParameterStatement.prepare(connection, sql, resultSetType, resultSetConcurrency, cacheSize);
+    }
+    
+    /**
+     * Check if the connection is held across DAO operations.
+     * @param connection db connection
+     * @return true if it is the connection of the current transaction
+     * @throws SQLException sql exception
+     */
+    boolean isHeldConnection(Connection connection) throws SQLException
+    {
+        DbTransaction tx = getTransaction();
+        if (tx != null)
+        {
+            return tx.getConnection() == connection;
+        }
+        DaoState st = peekState();
+        return st != null && st.connection == connection && connection.getAutoCommit() == false;
+    }
+    
+    /**
+     * Get max cached statements per connection, setting by "dbName.db.stmtcache.size" of dbi.properties.
+     * @return max cached statements, 0 means not to use statement cache
+     */
+    int getStatementCacheSize()
+    {
+        Integer ret = statementCacheSize;
+        if (ret == null)
+        {
+            ret = ConnectionCoordinator.getIntProperty(getDbName(), "db.stmtcache.size", DEF_STMT_CACHE_SIZE);
+            statementCacheSize = ret;
+        }
+        return ret;
+    }
+    
+    /**
+     * Whether query rows are {@link CompactRow}, setting by "dbName.db.row.compact" of dbi.properties, default false.
+     * <pre>
+     * CompactRow 不是 LinkedHashMap 或 DataConvertMap，將查詢結果轉型為 DataConvertMap 的程式不可開啟。
+     * </pre>
+     * @return true if rows are compact row, false if rows are {@link DataConvertMap}
+     */
+    public boolean isCompactRow()
+    {
+        if (compactRow != null)
+        {
+            return compactRow;
+        }
+        return Boolean.parseBoolean(ConnectionCoordinator.getProperty(getDbName(), "db.row.compact", "false"));
+    }
+
+    /**
+     * 設定查詢結果每筆資料的型態，null 表示依 dbi.properties 設定
+     * @param compactRow true 使用 {@link CompactRow}，false 使用 {@link DataConvertMap}
+     */
+    public void setCompactRow(Boolean compactRow)
+    {
+        this.compactRow = compactRow;
+    }
+    
+    /**
+     * Get primary key row cache of the table, setting by "dbName.db.rowcache.TABLE_NAME.size" of dbi.properties.
+     * @return row cache, null if not enabled
+     */
+    public RowCache getRowCache()
+    {
+        return RowCache.of(getDbName(), getTableName());
+    }
+    
+    /**
+     * Get row cache usable for reading.
+     * @return row cache, null if not enabled, in transaction or the table is changed by a transaction not yet committed
+     */
+    RowCache getReadRowCache()
+    {
+        if (inTransaction() || UncommittedTables.contains(getDbName(), getTableName()))
+        {
+            return null;
+        }
+        return getRowCache();
+    }
+    
+    /**
+     * Get row cache key of the data, key values are converted to the column type.
+     * @param map data map contain key fields
+     * @return cache key, null if the table has no key or the map does not contain all key values
+     */
+    List<Object> getRowCacheKey(Map<String, Object> map)
+    {
+        Map<String, DbTableFieldInfo> keyFields = getKeyFields();
+        String [] keys = keyFields.keySet().toArray(new String[keyFields.size()]);
+        Arrays.sort(keys);
+        return RowCache.keyOf(keys, getKeySqlTypes(keys, keyFields), map);
+    }
+    
+    /**
+     * Get sql types of the key columns.
+     * @param keys key column names
+     * @param keyFields key field info
+     * @return sql types, {@link BindingPlan#UNKNOWN_TYPE} if unknown
+     */
+    static int [] getKeySqlTypes(String [] keys, Map<String, DbTableFieldInfo> keyFields)
+    {
+        int [] sqlTypes = new int[keys.length];
+        for(int i=0; i < keys.length; i++)
+        {
+            DbTableFieldInfo info = keyFields.get(keys[i]);
+            sqlTypes[i] = info == null || info.getSqlType() == null ? BindingPlan.UNKNOWN_TYPE : info.getSqlType();
+        }
+        return sqlTypes;
+    }
+    
+    /**
+     * 資料異動後移除 row cache 中的資料，並使相依 table 的 query cache 失效
+     * @param map data map contain key fields, null to clear all rows of the table
+     */
+    void invalidateCache(Map<String, Object> map)
+    {
+        QueryCache.invalidate(getDbName(), getTableName());
+        
+        DbTransaction tx = getTransaction();
+        if (tx != null)
+        {
+            tx.touch(getTableName());
+        }
+        else
+        {
+            touchUncommitted(peekState());
+        }
+        
+        RowCache cache = getRowCache();
+        if (cache == null)
+        {
+            return;
+        }
+        cache.invalidate(map == null ? null : getRowCacheKey(map));
+    }
+    
+    /**
+     * 自行設定 transaction (auto commit 為 false) 時記錄異動的 table，
+     * commit 或 rollback 之前其他執行緒不使用該 table 的 cache，見 {@link #endUncommitted(DaoState)}
+     * @param st dao state
+     */
+    void touchUncommitted(DaoState st)
+    {
+        if (st == null)
+        {
+            return;
+        }
+        Connection conn = st.batchConnection != null ? st.batchConnection : st.connection;
+        try
+        {
+            if (conn == null || conn.isClosed() || conn.getAutoCommit())
+            {
+                return;
+            }
+        }
+        catch (SQLException e)
+        {
+            return;
+        }
+        if (st.uncommitted == null)
+        {
+            st.uncommitted = new HashSet<String>();
+        }
+        if (st.uncommitted.add(getTableName()))
+        {
+            UncommittedTables.add(getDbName(), getTableName());
+        }
+    }
+    
+    /**
+     * connection 釋放前 (已 commit 或 rollback)，再次清除 transaction 中異動 table 的 cache
+     * @param st dao state
+     */
+    void endUncommitted(DaoState st)
+    {
+        if (st.uncommitted == null)
+        {
+            return;
+        }
+        for(String tableName : st.uncommitted)
+        {
+            UncommittedTables.remove(getDbName(), tableName);
+            QueryCache.invalidate(getDbName(), tableName);
+            RowCache rowCache = RowCache.of(getDbName(), tableName);
+            if (rowCache != null)
+            {
+                rowCache.clear();
+            }
+        }
+        st.uncommitted = null;
+    }
+    
+    /**
+     * Get query result cache of the db, setting by "dbName.db.querycache.maxbytes" of dbi.properties.
+     * @return query cache, null if not enabled
+     */
+    public QueryCache getQueryCache()
+    {
+        if (Boolean.FALSE.equals(useQueryCache))
+        {
+            return null;
+        }
+        return QueryCache.of(getDbName());
+    }
+    
+    /**
+     * 設定是否使用 query cache，null 表示依 dbi.properties 設定
+     * @param useQueryCache false 不使用 query cache
+     */
+    public void setUseQueryCache(Boolean useQueryCache)
+    {
+        this.useQueryCache = useQueryCache;
+    }
+    
+    /**
+     * Get query cache usable for the query.
+     * @param tables dependent tables
+     * @return query cache, null if not enabled, in transaction, no dependent table
+     *         or a dependent table is changed by a transaction not yet committed
+     */
+    QueryCache getQueryCache(String [] tables)
+    {
+        if (tables == null || tables.length == 0 || inTransaction())
+        {
+            return null;
+        }
+        for(String t : tables)
+        {
+            if (StrUtil.isEmpty(t))
+            {
+                return null;
+            }
+        }
+        if (UncommittedTables.containsAny(getDbName(), tables))
+        {
+            return null;
+        }
+        return getQueryCache();
+    }
+    
+    /**
+     * Make background loader of the query, use its own pooled connection.
+     * @param sql sql statement
+     * @param map parameter map
+     * @return loader, null if not in coordinator mode
+     */
+    QueryCache.Loader getQueryLoader(final String sql, Map<String, Object> map)
+    {
+        if (this.useCoordinator == false)
+        {
+            return null;
+        }
+        final String dbName = getDbName();
+        final String tableName = getTableName();
+        final Map<String, Object> params = map == null ? null : new HashMap<String, Object>(map);
+        final boolean compact = isCompactRow();
+        return () -> {
+            Connection conn = ConnectionCoordinator.getPooledDbConnection(dbName, tableName);
+            JdbcNamedParameterStatement stmt = null;
+            ResultSet rs = null;
+            try
+            {
+                //只執行一個 statement，不使用 statement cache
+                stmt = JdbcNamedParameterStatement.prepare(conn, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, 0);
+                if (params != null)
+                {
+                    for(Map.Entry<String, Object> e : params.entrySet())
+                    {
+                        stmt.setObject(e.getKey(), e.getValue());
+                    }
+                }
+                rs = stmt.executeQuery();
+                return ResultSetReader.read(rs, compact);
+            }
+            finally
+            {
+                if (rs != null) 
+                {
+                    try { rs.close(); } catch (SQLException e) { ; }
+                }
+                if (stmt != null) 
+                {
+                    try { stmt.close(); } catch (SQLException e) { ; }
+                }
+                try { conn.close(); } catch (SQLException e) { ; }
+            }
+        };
+    }
+    
+    /**
+     * Get transaction of the db on the current thread.
+     * @return transaction, null if not in {@link DbTransaction} or not in coordinator mode
+     */
+    DbTransaction getTransaction()
+    {
+        return this.useCoordinator ? DbTransaction.get(getDbName()) : null;
+    }
+    
+    /**
+     * 異動失敗時，目前的 {@link DbTransaction} 只能 rollback
+     */
+    void markRollbackOnly()
+    {
+        DbTransaction tx = getTransaction();
+        if (tx != null)
+        {
+            tx.setRollbackOnly();
+        }
+    }
+    
+    /**
+     * 是否為 {@link DbTransaction} 的 connection，由 transaction 負責 commit 及 close
+     * @param conn connection
+     * @return true if the connection is owned by the current transaction
+     */
+    boolean isTransactionConnection(Connection conn)
+    {
+        DbTransaction tx = getTransaction();
+        return tx != null && tx.getConnection() == conn;
+    }
+    
+    /**
+     * 是否在未 commit 的 transaction 中，此時不使用 cache 的資料
+     * @return true if in {@link DbTransaction} or the dao connection is not auto commit
+     */
+    boolean inTransaction()
+    {
+        if (getTransaction() != null)
+        {
+            return true;
+        }
+        try
+        {
+            DaoState st = peekState();
+            Connection conn = st == null ? null : st.connection;
+            return conn != null && conn.getAutoCommit() == false;
+        }
+        catch (SQLException e)
+        {
+            return true;
+        }
+    }
+    
+    /**
+     * Setup named parameter.
+     * @param stmt named parameter statement
+     * @param map parameter map
+     * @throws SQLException sql exception
+     */
+    void setParam(JdbcNamedParameterStatement stmt, Map<String, Object> map) throws SQLException
+    {
+    	if (map == null || map.isEmpty()) return;
+    	
+		Set<String> ks = map.keySet();
+		for(String key : ks)
+		{
+			stmt.setObject(key, map.get(key)); 
+		}    	
+    }
+    
+    /**
+     * Setup named parameter by key data.
+     * @param stmt named parameter statement
+     * @param map parameter map
+     * @throws SQLException sql exception
+     */
+    void setKeyParam(JdbcNamedParameterStatement stmt, Map<String, Object> map) throws SQLException
+    {
+    	if (map == null || map.isEmpty()) return;
+    	
+		Set<String> ks = getKeyFields().keySet();
+		for(String key : ks)
+		{
+			stmt.setObject(key, map.get(key)); 
+		}    	
+    }
+    
+    /**
+     * Setup parameter of generated statement by its binding plan.
+     * @param stmt named parameter statement prepared from the template
+     * @param template sql template
+     * @param map parameter map
+     * @throws SQLException sql exception
+     */
+    void setParam(JdbcNamedParameterStatement stmt, SqlTemplate template, Map<String, Object> map) throws SQLException
+    {
+        BindingPlan plan = template.getBindingPlan();
+        if (plan == null)
+        {
+            setParam(stmt, map);
+            return;
+        }
+        plan.bind(stmt.getStatement(), map);
+    }
+    
+    /**
+     * Setup key parameter of generated statement by its binding plan, the template contains key columns only.
+     * @param stmt named parameter statement prepared from the template
+     * @param template sql template
+     * @param map parameter map
+     * @throws SQLException sql exception
+     */
+    void setKeyParam(JdbcNamedParameterStatement stmt, SqlTemplate template, Map<String, Object> map) throws SQLException
+    {
+        if (map == null || map.isEmpty()) return;
+        
+        BindingPlan plan = template.getBindingPlan();
+        if (plan == null)
+        {
+            setKeyParam(stmt, map);
+            return;
+        }
+        plan.bindAll(stmt.getStatement(), map);
+    }
+
+    /**
+     * 以主鍵值搜尋，輸入的 map 中必需有主鍵的欄位
+     * @param map parameter map
+     * @return result data
+     */
+	public Map<String, Object> findByKey(Map<String, Object> map)
+	{
+		ResultSet rs = null;
+		JdbcNamedParameterStatement stmt = null;
+		try
+		{
+			//因為 table 有可能沒有 key, 沒有 key 時以 map 欄位為條件
+			boolean hasKey = getKeyFields().isEmpty() == false;
+			
+			//read through row cache
+			RowCache rowCache = hasKey ? getReadRowCache() : null;
+			List<Object> cacheKey = rowCache == null ? null : getRowCacheKey(map);
+			long cacheVersion = 0;
+			if (cacheKey != null)
+			{
+				Map<String, Object> row = rowCache.get(cacheKey);
+				if (row != null)
+				{
+					return row;
+				}
+				cacheVersion = rowCache.version();
+			}
+			
+			SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.FIND_BY_KEY, map);
+			String sql = template.getSql();
+			
+			log.debug("findByKey=" + sql);
+			stmt = prepareStatement(sql);
+			
+			if (hasKey)
+			{
+				setKeyParam(stmt, template, map);				
+			}
+			else
+			{
+				setParam(stmt, template, map);
+			}
+						
+			rs=stmt.executeQuery();
+			
+			Map<String, Object> row = null;
+			if (rs.next())
+			{
+				row = new ResultSetReader(rs.getMetaData(), isCompactRow()).readRow(rs);
+				if (cacheKey != null)
+				{
+					rowCache.put(cacheKey, row, cacheVersion);
+				}
+			}
+			
+			rs.close();
+			rs = null;
+			stmt.close();
+			stmt = null;
+			
+			return row;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			//log.debug(e);
+	         log.error(e.getMessage(), e);
+			checkSchemaError(e);
+
+		}
+		finally
+		{
+			if (rs != null) 
+			{
+			    try { rs.close(); } catch (SQLException e) { ; }
+			    rs = null;
+			}
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			closeConnection();
+		}
+		return null;
+	}//findByKey
+	
+	/**
+	 * 依多筆 key 值搜尋
+	 * <pre>
+	 * 單一 key 欄位以 where K in (?, ?, ...)，多個 key 欄位以 where (K1 = ? and K2 = ?) or (...) 查詢，
+	 * 依資料庫參數個數上限分批 (見 {@link DbDialect})，使用同一個 connection 執行。
+	 * 不在 transaction 中時先由 row cache 取得，查到的資料放入 row cache。
+	 * 傳回結果以 {@link #getKey(Map)} 為 key，依傳入順序排列，找不到的 key 不在結果中。
+	 * key 值先依欄位型態轉換再比對，例如以 String "1" 查詢 INTEGER 欄位，CHAR 欄位不比對尾端空白。
+	 *   Map&lt;List&lt;Object&gt;, Map&lt;String, Object&gt;&gt; rows = dao.findByKeys(keyList);
+	 *   Map&lt;String, Object&gt; row = rows.get(dao.getKey(keyMap));
+	 * </pre>
+	 * @param keyList data maps contain key fields
+	 * @return rows indexed by key, null if failed or the table has no key
+	 */
+	public Map<List<Object>, Map<String, Object>> findByKeys(Collection<? extends Map<String, Object>> keyList)
+	{
+		ResultSet rs = null;
+		JdbcNamedParameterStatement stmt = null;
+		try
+		{
+			Map<String, DbTableFieldInfo> keyFields = getKeyFields();
+			if (keyFields.isEmpty())
+			{
+				log.error("findByKeys table has no key " + getTableName());
+				return null;
+			}
+			String [] keys = keyFields.keySet().toArray(new String[keyFields.size()]);
+			Arrays.sort(keys);
+			int [] sqlTypes = getKeySqlTypes(keys, keyFields);
+			
+			//依傳入順序，略過重複及不完整的 key，key 值先轉為欄位型態才能與查詢結果比對
+			Map<List<Object>, Map<String, Object>> keyMaps = new LinkedHashMap<List<Object>, Map<String, Object>>();
+			for(Map<String, Object> map : keyList)
+			{
+				List<Object> key = RowCache.keyOf(keys, sqlTypes, map);
+				if (key != null && keyMaps.containsKey(key) == false)
+				{
+					keyMaps.put(key, map);
+				}
+			}
+			
+			Map<List<Object>, Map<String, Object>> found = new HashMap<List<Object>, Map<String, Object>>();
+			RowCache rowCache = getReadRowCache();
+			long cacheVersion = rowCache == null ? 0 : rowCache.version();
+			List<Map<String, Object>> pending = new ArrayList<Map<String, Object>>(keyMaps.size());
+			for(Map.Entry<List<Object>, Map<String, Object>> e : keyMaps.entrySet())
+			{
+				Map<String, Object> row = rowCache == null ? null : rowCache.get(e.getKey());
+				if (row != null)
+				{
+					found.put(e.getKey(), row);
+				}
+				else
+				{
+					pending.add(e.getValue());
+				}
+			}
+			
+			if (pending.isEmpty() == false)
+			{
+				BindingPlan.Kind [] kinds = new BindingPlan.Kind[keys.length];
+				for(int i=0; i < keys.length; i++)
+				{
+					kinds[i] = BindingPlan.kindOf(sqlTypes[i]);
+				}
+				
+				int rows = getDialect().getLookupRows(keys.length);
+				Connection conn = getDbConnection();
+				ResultSetReader reader = null;
+				int stmtRows = 0;
+				for(int start=0; start < pending.size(); start += rows)
+				{
+					int n = Math.min(rows, pending.size() - start);
+					//相同筆數使用同一個 statement
+					if (n != stmtRows)
+					{
+						if (stmt != null)
+						{
+							stmt.close();
+						}
+						String sql = getFindByKeysStatement(keys, n);
+						log.debug("findByKeys keys=" + n + " sql=" + (sql.length() > 200 ? sql.substring(0, 200) + "..." : sql));
+						stmt = prepareStatement(conn, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+						stmtRows = n;
+					}
+					PreparedStatement ps = stmt.getStatement();
+					int index = 1;
+					for(int r=0; r < n; r++)
+					{
+						Map<String, Object> map = pending.get(start + r);
+						for(int c=0; c < keys.length; c++)
+						{
+							BindingPlan.setValue(ps, index++, kinds[c], sqlTypes[c], map.get(keys[c]));
+						}
+					}
+					rs = ps.executeQuery();
+					if (reader == null)
+					{
+						reader = new ResultSetReader(rs.getMetaData(), isCompactRow());
+					}
+					while (rs.next())
+					{
+						Map<String, Object> row = reader.readRow(rs);
+						List<Object> key = RowCache.keyOf(keys, sqlTypes, row);
+						found.put(key, row);
+						if (rowCache != null && key != null)
+						{
+							rowCache.put(key, row, cacheVersion);
+						}
+					}
+					rs.close();
+					rs = null;
+				}
+				stmt.close();
+				stmt = null;
+			}
+			
+			Map<List<Object>, Map<String, Object>> ret = new LinkedHashMap<List<Object>, Map<String, Object>>();
+			for(List<Object> key : keyMaps.keySet())
+			{
+				Map<String, Object> row = found.get(key);
+				if (row != null)
+				{
+					ret.put(key, row);
+				}
+			}
+			return ret;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+	        log.error(e.getMessage(), e);
+			checkSchemaError(e);
+		}
+		finally
+		{
+			if (rs != null) 
+			{
+			    try { rs.close(); } catch (SQLException e) { ; }
+			    rs = null;
+			}
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			closeConnection();
+		}
+		return null;
+	}//findByKeys
+	
+	/**
+	 * 依多筆 key 值刪除
+	 * <pre>
+	 * 單一 key 欄位以 delete from T where K in (?, ?, ...) 分批刪除，每批筆數依資料庫參數個數上限決定，
+	 * 多個 key 欄位以 JDBC batch 執行 deleteByKey 的 statement，每批 db.batch.size 筆 (預設 1000)。
+	 * 使用同一個 connection，每批一個 transaction；在 transaction 中時不 commit，由 transaction 負責。
+	 * 某一批失敗時 rollback 該批並停止，該批及之後的筆數為 -1，之前的批次已 commit。
+	 * 刪除後清除 table 的 row cache 及 query cache。
+	 * </pre>
+	 * @param keyList data maps contain key fields, maps without all key values are skipped
+	 * @return deleted rows of each chunk, null if the table has no key
+	 */
+	public int[] deleteByKeys(Collection<? extends Map<String, Object>> keyList)
+	{
+		Map<String, DbTableFieldInfo> keyFields = getKeyFields();
+		if (keyFields.isEmpty())
+		{
+			//沒有 key 時防止誤刪
+			log.error("deleteByKeys table has no key " + getTableName());
+			return null;
+		}
+		String [] keys = keyFields.keySet().toArray(new String[keyFields.size()]);
+		Arrays.sort(keys);
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(keyList.size());
+		for(Map<String, Object> map : keyList)
 		{
-			cnt++;
-			if (cnt < ks.size())
+			if (RowCache.keyOf(keys, map) != null)
 			{
-				cols = cols + key + ", ";
-				ret = ret + ":" + key + ", "; 				
-			}
-			else
-			{
-				cols = cols + key + " ";
-				ret = ret + ":" + key + " "; 								
+				list.add(map);
 			}
 		}
-		cols = cols + ") ";
-		ret = ret + ") ";
-		
-		ret = cols + ret;
-		return ret;    	
-    }
-    
-    /**
-     * 依照給定的 map 內容產生 insert SQL 語法
-     * @param map parameter map
-     * @return sql statement
-     */
-    String getInsertStatement(Map<String, Object> map)
-	{
-		String ret = "";
 		
-		if (map == null || map.isEmpty())
+		int rows;
+		if (keys.length == 1)
+		{
+			rows = getDialect().getLookupRows(1);
+		}
+		else
+		{
+			rows = this.useCoordinator ? 
+				ConnectionCoordinator.getIntProperty(getDbName(), "db.batch.size", BatchWriter.DEF_CHUNK_SIZE) : BatchWriter.DEF_CHUNK_SIZE;
+			rows = Math.max(1, rows);
+		}
+		int [] ret = new int[(list.size() + rows - 1) / rows];
+		if (ret.length == 0)
 		{
 			return ret;
 		}
+		Arrays.fill(ret, -1);
 		
-		String fields = "insert into " + getTableName() + " ( ";
-		ret = " values (";
-		Set<String> ks = map.keySet();
-		int cnt = 0;
-		for(String key : ks)
+		JdbcNamedParameterStatement stmt = null;
+		Connection conn = null;
+		boolean autoCommit = false;
+		int chunk = 0;
+		try
 		{
-			cnt++;
-			if (cnt < ks.size())
+			int [] sqlTypes = new int[keys.length];
+			BindingPlan.Kind [] kinds = new BindingPlan.Kind[keys.length];
+			for(int i=0; i < keys.length; i++)
 			{
-				fields = fields + key + ", ";
-				ret = ret + ":" + key + ", "; 				
+				Integer type = keyFields.get(keys[i]).getSqlType();
+				sqlTypes[i] = type == null ? BindingPlan.UNKNOWN_TYPE : type;
+				kinds[i] = BindingPlan.kindOf(sqlTypes[i]);
 			}
-			else
+			
+			conn = getDbConnection();
+			autoCommit = conn.getAutoCommit();
+			if (autoCommit)
+			{
+				conn.setAutoCommit(false);
+			}
+			
+			int stmtRows = 0;
+			for(int start=0; start < list.size(); start += rows, chunk++)
 			{
-				fields = fields + key + " ";
-				ret = ret + ":" + key + " "; 								
+				int n = Math.min(rows, list.size() - start);
+				if (keys.length == 1)
+				{
+					//相同筆數使用同一個 statement
+					if (n != stmtRows)
+					{
+						if (stmt != null)
+						{
+							stmt.close();
+						}
+						StringBuilder sb = new StringBuilder(32 + n * 3);
+						sb.append("delete from ").append(getTableName());
+						appendKeysCondition(sb, keys, n);
+						log.debug("deleteByKeys keys=" + n);
+						stmt = prepareStatement(conn, sb.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+						stmtRows = n;
+					}
+					PreparedStatement ps = stmt.getStatement();
+					for(int r=0; r < n; r++)
+					{
+						BindingPlan.setValue(ps, r + 1, kinds[0], sqlTypes[0], list.get(start + r).get(keys[0]));
+					}
+					ret[chunk] = ps.executeUpdate();
+				}
+				else
+				{
+					if (stmt == null)
+					{
+						SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.DELETE_BY_KEY, null);
+						log.debug("deleteByKeys=" + template.getSql());
+						stmt = prepareStatement(conn, template.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					}
+					PreparedStatement ps = stmt.getStatement();
+					for(int r=0; r < n; r++)
+					{
+						//template 的 key 欄位依名稱排序
+						Map<String, Object> map = list.get(start + r);
+						for(int c=0; c < keys.length; c++)
+						{
+							BindingPlan.setValue(ps, c + 1, kinds[c], sqlTypes[c], map.get(keys[c]));
+						}
+						ps.addBatch();
+					}
+					ret[chunk] = sumUpdateCounts(ps.executeBatch());
+				}
+				if (autoCommit)
+				{
+					conn.commit();
+				}
 			}
 		}
-		fields = fields + ") ";
-		ret = ret + ") ";
-		
-		ret = fields + ret;
-		return ret;
-	}
-    
-    /**
-     * Setup named parameter.
-     * @param stmt named parameter statement
-     * @param map parameter map
-     * @throws SQLException sql exception
-     */
-    void setParam(JdbcNamedParameterStatement stmt, Map<String, Object> map) throws SQLException
-    {
-    	if (map == null || map.isEmpty()) return;
-    	
-		Set<String> ks = map.keySet();
-		for(String key : ks)
+		catch(Exception e)
 		{
-			stmt.setObject(key, map.get(key)); 
-		}    	
-    }
-    
-    /**
-     * Setup named parameter by key data.
-     * @param stmt named parameter statement
-     * @param map parameter map
-     * @throws SQLException sql exception
-     */
-    void setKeyParam(JdbcNamedParameterStatement stmt, Map<String, Object> map) throws SQLException
-    {
-    	if (map == null || map.isEmpty()) return;
-    	
-		Set<String> ks = getKeyFields().keySet();
-		for(String key : ks)
+			e.printStackTrace();
+			log.error("deleteByKeys Error chunk=" + chunk, e);
+			checkSchemaError(e);
+			if (chunk < ret.length)
+			{
+				ret[chunk] = -1;
+			}
+			if (autoCommit)
+			{
+				try { conn.rollback(); } catch (SQLException e1) { ; }
+			}
+			else
+			{
+				markRollbackOnly();
+			}
+		}
+		finally
 		{
-			stmt.setObject(key, map.get(key)); 
-		}    	
-    }
-
-    /**
-     * 以主鍵值搜尋，輸入的 map 中必需有主鍵的欄位
-     * @param map parameter map
-     * @return result data
-     */
-	public Map<String, Object> findByKey(Map<String, Object> map)
+			invalidateCache(null);
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			if (autoCommit)
+			{
+				try { conn.setAutoCommit(true); } catch (SQLException e) { ; }
+			}
+			closeConnection();
+		}
+		return ret;
+	}//deleteByKeys
+	
+	/**
+	 * 依 key 欄位順序分頁查詢
+	 * <pre>
+	 * 以 key 欄位 (依 key sequence) 排序，傳入上一頁的 token 時由上一頁最後一筆之後開始讀取：
+	 *   select * from T where (條件) and ((K1 &gt; ?) or (K1 = ? and K2 &gt; ?)) order by K1, K2 limit n
+	 * 不使用 OFFSET，每一頁的成本相同，見 {@link RowPage}。
+	 * where 與 {@link #find(String, Map)} 相同，可省略 where 關鍵字，只能有條件，不可有 order by。
+	 * </pre>
+	 * @param where sql condition, empty to use equal condition of the map
+	 * @param map parameter map
+	 * @param pageSize rows of a page
+	 * @param token next page token of the previous page, null for the first page
+	 * @return page, null if failed, the table has no key or the token is not valid
+	 */
+	public RowPage findPage(String where, Map<String, Object> map, int pageSize, String token)
 	{
 		ResultSet rs = null;
 		JdbcNamedParameterStatement stmt = null;
 		try
 		{
-			String cond = getEqualByKeyCondition();			
-			setHint();
-			String sql = "select " + queryHint1 + " * from " + getTableName() + queryHint2;
-			//因為 table 有可能沒有 key
-			if (StrUtil.isNotEmpty(cond))
+			Map<String, DbTableFieldInfo> keyFields = getKeyFields();
+			if (keyFields.isEmpty() || pageSize <= 0)
 			{
-				sql = sql + cond;
+				log.error("findPage table has no key or invalid page size " + getTableName() + " pageSize=" + pageSize);
+				return null;
 			}
-			else
-			{
-				sql = sql + getEqualCondition(map);
-			}
-			
-			log.debug("findByKey=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+			//依 key sequence 排序
+			String [] keys = keyFields.keySet().toArray(new String[keyFields.size()]);
+			Object [] seek = StrUtil.isEmpty(token) ? null : RowPage.decode(getTableName(), keys.length, token);
 			
-			if (StrUtil.isNotEmpty(cond))
+			if (StrUtil.isEmpty(where))
 			{
-				setKeyParam(stmt, map);				
+				where = getEqualCondition(map);
 			}
-			else
+			Map<String, Object> params = map == null ? new HashMap<String, Object>() : new HashMap<String, Object>(map);
+			if (seek != null)
 			{
-				setParam(stmt, map);
+				for(int i=0; i < seek.length; i++)
+				{
+					params.put(SEEK_PARAM + i, seek[i]);
+				}
 			}
-						
-			rs=stmt.executeQuery();
 			
-			MapListHandler handler = new MapListHandler();
-			List<Map<String, Object>> list = handler.handle(rs);
-			DataConvertMap<String, Object> dcMap = new DataConvertMap<String, Object>();
+			//多讀一筆判斷是否有下一頁
+			String sql = getPageStatement(keys, where, pageSize + 1, seek != null);
+			log.debug("findPage=" + sql);
+			stmt = prepareStatement(sql);
+			setParam(stmt, params);
+			rs = stmt.executeQuery();
 			
+			ResultSetReader reader = new ResultSetReader(rs.getMetaData(), isCompactRow());
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(pageSize);
+			boolean more = false;
+			while (rs.next())
+			{
+				if (rows.size() == pageSize)
+				{
+					more = true;
+					break;
+				}
+				rows.add(reader.readRow(rs));
+			}
 			rs.close();
 			rs = null;
 			stmt.close();
 			stmt = null;
 			
-			if (list != null && list.size() > 0)
+			String nextToken = null;
+			if (more)
 			{
-				dcMap.copy(list.get(0));
-				return dcMap;
+				Map<String, Object> last = rows.get(rows.size() - 1);
+				Object [] values = new Object[keys.length];
+				for(int i=0; i < keys.length; i++)
+				{
+					values[i] = last.get(keys[i]);
+				}
+				nextToken = RowPage.encode(getTableName(), values);
 			}
+			return new RowPage(rows, nextToken);
 		}
 		catch(Exception e)
 		{
 			e.printStackTrace();
-			//log.debug(e);
-	         log.error(e.getMessage(), e);
-
+	        log.error(e.getMessage(), e);
+			checkSchemaError(e);
 		}
 		finally
 		{
@@ -756,7 +2228,17 @@ public abstract class BaseJdbcDao
 			closeConnection();
 		}
 		return null;
-	}//findByKey
+	}//findPage
+	
+	/**
+	 * Get key of the data, used as the key of {@link #findByKeys(Collection)} result, values are converted to the column type.
+	 * @param map data map contain key fields
+	 * @return key values in order of sorted key names, null if the table has no key or the map does not contain all key values
+	 */
+	public List<Object> getKey(Map<String, Object> map)
+	{
+		return getRowCacheKey(map);
+	}
     
 	/**
 	 * 依條件搜尋
@@ -779,16 +2261,36 @@ public abstract class BaseJdbcDao
 			{
 				where = getEqualCondition(map);
 			}
-			setHint();
-			String sql = "select " + queryHint1 + " * from " + getTableName() + queryHint2 + where;
+			Hint hint = getHint();
+			String sql = "select " + hint.query1 + " * from " + getTableName() + hint.query2 + where;
 			log.debug("find=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+			
+			String [] tables = new String [] {getTableName()};
+			QueryCache queryCache = getQueryCache(tables);
+			QueryCache.Key cacheKey = null;
+			long [] versions = null;
+			if (queryCache != null)
+			{
+				cacheKey = QueryCache.keyOf(sql, map, isCompactRow());
+				List<Map<String, Object>> cached = queryCache.get(cacheKey, getQueryLoader(sql, map));
+				if (cached != null)
+				{
+					return cached;
+				}
+				versions = queryCache.versions(tables);
+			}
+			
+			stmt = prepareStatement(sql);
 			setParam(stmt, map);
 			rs=stmt.executeQuery();
 			
 			//MapListHandler handler = new MapListHandler();
 			//return handler.handle(rs);
 			List<Map<String, Object>> list =  makeResultList(rs);
+			if (cacheKey != null)
+			{
+				queryCache.put(cacheKey, tables, versions, list);
+			}
 			
 			rs.close();
 			rs = null;
@@ -802,6 +2304,7 @@ public abstract class BaseJdbcDao
 			e.printStackTrace();
 			//log.debug(e);
 	         log.error(e.getMessage(), e);
+			checkSchemaError(e);
 
 		}
 		finally
@@ -828,19 +2331,55 @@ public abstract class BaseJdbcDao
 	 * @return result data
 	 */
 	public List<Map<String, Object>> findBySQL(String sql, Map<String, Object> map)
+	{
+		return findBySQL(sql, map, new String[0]);
+	}
+	
+	/**
+	 * 採用使用者自行輸入的 SQL 做為查詢依據，並宣告 SQL 相依的 table
+	 * <pre>
+	 * 有宣告相依的 table 且啟用 query cache 時，查詢結果會放入 cache，
+	 * 任何相依的 table 經由 DAO 異動後，cache 的結果即失效。
+	 *   dao.findBySQL("select * from A join B on ...", map, "A", "B");
+	 * </pre>
+	 * @param sql sql statement
+	 * @param map parameter map
+	 * @param tables tables the sql depends on
+	 * @return result data
+	 */
+	public List<Map<String, Object>> findBySQL(String sql, Map<String, Object> map, String... tables)
 	{		
 		ResultSet rs = null;
 		JdbcNamedParameterStatement stmt = null;
 		try
 		{
 			log.debug("findBySQL=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+			
+			QueryCache queryCache = getQueryCache(tables);
+			QueryCache.Key cacheKey = null;
+			long [] versions = null;
+			if (queryCache != null)
+			{
+				cacheKey = QueryCache.keyOf(sql, map, isCompactRow());
+				List<Map<String, Object>> cached = queryCache.get(cacheKey, getQueryLoader(sql, map));
+				if (cached != null)
+				{
+					return cached;
+				}
+				versions = queryCache.versions(tables);
+			}
+			
+			stmt = prepareStatement(sql);
 			setParam(stmt, map);
 			rs=stmt.executeQuery();
 			
 			//MapListHandler handler = new MapListHandler();
 			//List<Map<String, Object>> list = handler.handle(rs);
 			List<Map<String, Object>> list =  makeResultList(rs);
+			if (cacheKey != null)
+			{
+				queryCache.put(cacheKey, tables, versions, list);
+			}
 			
 			rs.close();
 			rs = null;
@@ -865,13 +2404,208 @@ public abstract class BaseJdbcDao
 			}
 			if (stmt != null) 
 			{
-			    try { stmt.close(); } catch (SQLException e) { ; }
-			    stmt = null;
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			closeConnection();
+		}
+		return null;
+	}//findBySQL
+	
+	/**
+	 * 採用使用者自行輸入的 SQL 做為查詢依據，結果以欄位方式儲存
+	 * <pre>
+	 * 適用於大量數值資料的統計，INTEGER/BIGINT/DOUBLE 欄位以 primitive array 儲存，不會 boxing。
+	 * </pre>
+	 * @param sql sql statement
+	 * @param map parameter map
+	 * @param fetchSize number of rows fetched per round trip, 0 for driver default
+	 * @return columnar result or null if query failed
+	 */
+	public ColumnarResult findColumnarBySQL(String sql, Map<String, Object> map, int fetchSize)
+	{
+		ResultSet rs = null;
+		JdbcNamedParameterStatement stmt = null;
+		try
+		{
+			log.debug("findColumnarBySQL=" + sql);
+			stmt = prepareStatement(sql);
+			if (fetchSize > 0)
+			{
+				stmt.setFetchSize(fetchSize);
+			}
+			setParam(stmt, map);
+			rs=stmt.executeQuery();
+			
+			ColumnarResult ret = ColumnarResult.read(rs);
+			
+			rs.close();
+			rs = null;
+			stmt.close();
+			stmt = null;
+
+			return ret;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			log.error(e.getMessage(), e);
+		}
+		finally
+		{
+			if (rs != null) 
+			{
+			    try { rs.close(); } catch (SQLException e) { ; }
+			    rs = null;
+			}
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			closeConnection();
+		}
+		return null;
+	}//findColumnarBySQL
+	
+	/**
+	 * 採用使用者自行輸入的 SQL 做為查詢依據，結果以欄位方式儲存
+	 * @param sql sql statement
+	 * @param map parameter map
+	 * @return columnar result or null if query failed
+	 */
+	public ColumnarResult findColumnarBySQL(String sql, Map<String, Object> map)
+	{
+		return findColumnarBySQL(sql, map, 0);
+	}
+	
+	/**
+	 * 依條件以 cursor 方式查詢，資料逐筆讀取，不會一次全部載入記憶體
+	 * <pre>
+	 *   try (RowCursor cursor = dao.openCursor(" where organization_id=:organization_id ", map, 500))
+	 *   {
+	 *       while (cursor.hasNext()) { ... }
+	 *   }
+	 * </pre>
+	 * @param where sql statement
+	 * @param map parameter map
+	 * @param fetchSize number of rows fetched per round trip
+	 * @return cursor or null if query failed
+	 */
+	public RowCursor openCursor(String where, Map<String, Object> map, int fetchSize)
+	{
+		//若是未輸入 where 條件，則再判斷 map 是否可以組條件
+		if (StrUtil.isEmpty(where))
+		{
+			where = getEqualCondition(map);
+		}
+		Hint hint = getHint();
+		String sql = "select " + hint.query1 + " * from " + getTableName() + hint.query2 + where;
+		return openCursorBySQL(sql, map, fetchSize);
+	}
+	
+	/**
+	 * 採用使用者自行輸入的 SQL 以 cursor 方式查詢
+	 * <pre>
+	 * Cursor 持有自己的 connection，讀完或 close 時釋放。
+	 * 若 DAO 的 connection 在交易中 (auto commit = false)，則共用該 connection 且不關閉。
+	 * </pre>
+	 * @param sql sql statement
+	 * @param map parameter map
+	 * @param fetchSize number of rows fetched per round trip
+	 * @return cursor or null if query failed
+	 */
+	public RowCursor openCursorBySQL(String sql, Map<String, Object> map, int fetchSize)
+	{
+		Connection conn = null;
+		boolean closeConn = false;
+		ResultSet rs = null;
+		JdbcNamedParameterStatement stmt = null;
+		try
+		{
+			log.debug("openCursorBySQL=" + sql);
+			conn = getDbConnection();
+			closeConn = conn.getAutoCommit();
+			if (closeConn)
+			{
+				//connection 交由 cursor 管理
+				state().connection = null;
+				releaseState(state());
+			}
+			
+			stmt = prepareStatement(conn, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(fetchSize);
+			setParam(stmt, map);
+			rs = stmt.executeQuery();
+			return new RowCursor(conn, stmt, rs, closeConn, isCompactRow());
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			log.error(e.getMessage(), e);
+			
+			if (rs != null) 
+			{
+			    try { rs.close(); } catch (SQLException se) { ; }
+			}
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException se) { ; }
+			}
+			if (closeConn && conn != null)
+			{
+			    StatementCache.remove(conn);
+			    try { conn.close(); } catch (SQLException se) { ; }
 			}
-			closeConnection();
 		}
 		return null;
-	}//findBySQL
+	}
+	
+	/**
+	 * 依條件逐筆讀取資料並交給 consumer 處理
+	 * @param where sql statement
+	 * @param map parameter map
+	 * @param fetchSize number of rows fetched per round trip
+	 * @param consumer row consumer
+	 * @return number of rows read, -1 if query failed
+	 */
+	public long forEach(String where, Map<String, Object> map, int fetchSize, Consumer<Map<String, Object>> consumer)
+	{
+		return forEach(openCursor(where, map, fetchSize), consumer);
+	}
+	
+	/**
+	 * 採用使用者自行輸入的 SQL 逐筆讀取資料並交給 consumer 處理
+	 * @param sql sql statement
+	 * @param map parameter map
+	 * @param fetchSize number of rows fetched per round trip
+	 * @param consumer row consumer
+	 * @return number of rows read, -1 if query failed
+	 */
+	public long forEachBySQL(String sql, Map<String, Object> map, int fetchSize, Consumer<Map<String, Object>> consumer)
+	{
+		return forEach(openCursorBySQL(sql, map, fetchSize), consumer);
+	}
+	
+	long forEach(RowCursor cursor, Consumer<Map<String, Object>> consumer)
+	{
+		if (cursor == null)
+		{
+			return -1;
+		}
+		try
+		{
+			while (cursor.hasNext())
+			{
+				consumer.accept(cursor.next());
+			}
+			return cursor.getRowCount();
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
 	
 	/**
 	 * Convert ResultSet to List.
@@ -881,17 +2615,8 @@ public abstract class BaseJdbcDao
 	 */
 	List<Map<String, Object>> makeResultList(ResultSet rs) throws SQLException
 	{
-		MapListHandler handler = new MapListHandler();
-		List<Map<String, Object>> list = handler.handle(rs);
-		List<Map<String, Object>> listData = new ArrayList<Map<String, Object>>(); 
-		for(Map<String, Object> m : list)
-		{
-			DataConvertMap<String, Object> dcMap = new DataConvertMap<String, Object>();
-			dcMap.copy(m);
-			listData.add(dcMap);
-		}
-		
-		return listData;		
+		//單次讀取，直接產生 CompactRow 或 DataConvertMap
+		return ResultSetReader.read(rs, isCompactRow());
 	}
 	
 	/**
@@ -912,12 +2637,12 @@ public abstract class BaseJdbcDao
 			{
 				where = getEqualCondition(map);
 			}
-			setHint();
+			Hint hint = getHint();
 						
-			String sql = "select " + queryHint1 + " count(*) from " + getTableName() + queryHint2 + where;
+			String sql = "select " + hint.query1 + " count(*) from " + getTableName() + hint.query2 + where;
 
 			log.debug("getRecordCount=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+			stmt = prepareStatement(sql);
 			setParam(stmt, map);
 			rs=stmt.executeQuery();
 			
@@ -936,6 +2661,7 @@ public abstract class BaseJdbcDao
 			e.printStackTrace();
 			//log.debug(e);
 	        log.error(e.getMessage(), e);
+			checkSchemaError(e);
 
 		}
 		finally
@@ -970,7 +2696,7 @@ public abstract class BaseJdbcDao
         try
         {
             log.debug("getRecordCountBySQL=" + sql);
-            stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+            stmt = prepareStatement(sql);
 
             setParam(stmt, map);
             rs=stmt.executeQuery();
@@ -1020,7 +2746,7 @@ public abstract class BaseJdbcDao
 		JdbcNamedParameterStatement stmt = null;
 		try
 		{
-			String sql = "";
+			SqlTemplate template = null;
 
 			Map<String, Object> keyMap = new HashMap<String, Object>();
 			Set<String> set = getKeyFields().keySet();
@@ -1031,22 +2757,23 @@ public abstract class BaseJdbcDao
 			
 			if (set.isEmpty())
 			{
-				sql = getInsertStatement(map);
+				template = getSqlTemplate(SqlTemplate.Operation.INSERT, map);
 			}
 			else
 			{
-				sql = getInsertStatement(keyMap);				
+				template = getSqlTemplate(SqlTemplate.Operation.INSERT, keyMap);				
 			}
+			String sql = template.getSql();
 			
 			log.debug("insertKey=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+			stmt = prepareStatement(sql);
 			if (set.isEmpty())
 			{
-				setParam(stmt, map);								
+				setParam(stmt, template, map);								
 			}
 			else
 			{
-				setKeyParam(stmt, map);				
+				setKeyParam(stmt, template, map);				
 			}
 			
 			ret = stmt.executeUpdate();
@@ -1057,13 +2784,16 @@ public abstract class BaseJdbcDao
 		}
 		catch(Exception e)
 		{
+			markRollbackOnly();
 			e.printStackTrace();
 			//log.debug(e);
 	         log.error(e.getMessage(), e);
+			checkSchemaError(e);
 
 		}
 		finally
 		{
+			invalidateCache(map);
 			if (stmt != null) 
 			{
 			    try { stmt.close(); } catch (SQLException e) { ; }
@@ -1087,23 +2817,27 @@ public abstract class BaseJdbcDao
 		JdbcNamedParameterStatement stmt = null;
 		try
 		{			
-			String sql = getInsertStatement(map);
+			SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.INSERT, map);
+			String sql = template.getSql();
 			log.debug("insert=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
-			setParam(stmt, map);
+			stmt = prepareStatement(sql);
+			setParam(stmt, template, map);
 			ret = stmt.executeUpdate();
 			stmt.close();
 			stmt = null;
 		}
 		catch(Exception e)
 		{
+			markRollbackOnly();
 			e.printStackTrace();
 			//log.debug(e);
 	        log.error(e.getMessage(), e);
+			checkSchemaError(e);
 
 		}
 		finally
 		{
+			invalidateCache(map);
 			if (stmt != null) 
 			{
 			    try { stmt.close(); } catch (SQLException e) { ; }
@@ -1113,6 +2847,132 @@ public abstract class BaseJdbcDao
 		}
 		return ret;				
 	} //insert
+	
+	/**
+	 * Bulk insert data into table.
+	 * <pre>
+	 * 以 insert into T ( c1, c2 ) values ( ?, ? ), ( ?, ? ), ... 一次寫入多筆，
+	 * 每個 statement 的筆數依資料庫的參數個數上限決定 (見 {@link DbDialect})，
+	 * 不支援 multi-row VALUES 的資料庫 (Oracle) 每筆一個 statement。
+	 * 欄位為各筆資料 key 的聯集，不是 table 欄位的 key 忽略，未給值的欄位寫入 null。
+	 * 未在 transaction 中時全部成功才 commit，失敗時全部 rollback。
+	 * </pre>
+	 * @param list data to insert
+	 * @return number of rows inserted, 0 if failed
+	 */
+	public int insertAll(List<Map<String, Object>> list)
+	{
+		if (list == null || list.isEmpty())
+		{
+			return 0;
+		}
+		int ret = 0;
+		JdbcNamedParameterStatement stmt = null;
+		Connection conn = null;
+		boolean autoCommit = false;
+		try
+		{
+			Map<String, DbTableFieldInfo> fields = getFields();
+			List<String> cols = new ArrayList<String>();
+			for(String col : fields.keySet())
+			{
+				for(Map<String, Object> map : list)
+				{
+					if (map.containsKey(col))
+					{
+						cols.add(col);
+						break;
+					}
+				}
+			}
+			if (cols.isEmpty())
+			{
+				log.error("insertAll no column of table " + getTableName());
+				return 0;
+			}
+			String [] columns = cols.toArray(new String[cols.size()]);
+			int [] sqlTypes = new int[columns.length];
+			BindingPlan.Kind [] kinds = new BindingPlan.Kind[columns.length];
+			for(int i=0; i < columns.length; i++)
+			{
+				Integer type = fields.get(columns[i]).getSqlType();
+				sqlTypes[i] = type == null ? BindingPlan.UNKNOWN_TYPE : type;
+				kinds[i] = BindingPlan.kindOf(sqlTypes[i]);
+			}
+			
+			int rows = getDialect().getInsertRows(columns.length);
+			conn = getDbConnection();
+			autoCommit = conn.getAutoCommit();
+			if (autoCommit)
+			{
+				conn.setAutoCommit(false);
+			}
+			
+			int stmtRows = 0;
+			for(int start=0; start < list.size(); start += rows)
+			{
+				int n = Math.min(rows, list.size() - start);
+				//相同筆數的 chunk 使用同一個 statement
+				if (n != stmtRows)
+				{
+					if (stmt != null)
+					{
+						stmt.close();
+					}
+					String sql = getInsertRowsStatement(columns, n);
+					log.debug("insertAll rows=" + n + " sql=" + (sql.length() > 200 ? sql.substring(0, 200) + "..." : sql));
+					stmt = prepareStatement(conn, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+					stmtRows = n;
+				}
+				PreparedStatement ps = stmt.getStatement();
+				int index = 1;
+				for(int r=0; r < n; r++)
+				{
+					Map<String, Object> map = list.get(start + r);
+					for(int c=0; c < columns.length; c++)
+					{
+						BindingPlan.setValue(ps, index++, kinds[c], sqlTypes[c], map.get(columns[c]));
+					}
+				}
+				ret += ps.executeUpdate();
+			}
+			
+			if (autoCommit)
+			{
+				conn.commit();
+			}
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			log.error(e.getMessage(), e);
+			checkSchemaError(e);
+			ret = 0;
+			if (autoCommit)
+			{
+				try { conn.rollback(); } catch (SQLException e1) { ; }
+			}
+			else
+			{
+				markRollbackOnly();
+			}
+		}
+		finally
+		{
+			invalidateCache(null);
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			if (autoCommit)
+			{
+				try { conn.setAutoCommit(true); } catch (SQLException e) { ; }
+			}
+			closeConnection();
+		}
+		return ret;
+	} //insertAll
 
 	/**
 	 * insert data into table by custom sql.
@@ -1128,7 +2988,7 @@ public abstract class BaseJdbcDao
 		try
 		{						
 			log.debug("custom insert=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+			stmt = prepareStatement(sql);
 			setParam(stmt, map);
 			ret = stmt.executeUpdate();
 			stmt.close();
@@ -1136,12 +2996,14 @@ public abstract class BaseJdbcDao
 		}
 		catch(Exception e)
 		{
+			markRollbackOnly();
 			e.printStackTrace();
 	        log.error(e.getMessage(), e);
 
 		}
 		finally
 		{
+			invalidateCache(null);
 			if (stmt != null) 
 			{
 			    try { stmt.close(); } catch (SQLException e) { ; }
@@ -1160,9 +3022,10 @@ public abstract class BaseJdbcDao
 	 */
 	public void startBatch(String sql) throws SQLException
 	{
-	    batchConnection = getDbConnection();
-	    batchConnection.setAutoCommit(false);
-	    batchStatement = new JdbcNamedParameterStatement(batchConnection, sql);
+	    DaoState st = state();
+	    st.batchConnection = getDbConnection();
+	    st.batchConnection.setAutoCommit(false);
+	    st.batchStatement = prepareStatement(st.batchConnection, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 	}  //startBatchInsert
 	
 	/**
@@ -1172,8 +3035,9 @@ public abstract class BaseJdbcDao
 	 */
 	public void addBatch(Map<String, Object> map) throws SQLException
 	{
-        setParam(batchStatement, map);
-        batchStatement.addBatch();
+	    DaoState st = state();
+        setParam(st.batchStatement, map);
+        st.batchStatement.addBatch();
 	}
 	
 	/**
@@ -1182,16 +3046,32 @@ public abstract class BaseJdbcDao
 	 */
 	public void abortBatch()
 	{
-        if (batchStatement != null) 
+	    DaoState st = state();
+        if (st.batchStatement != null) 
         {
-            try { batchStatement.close(); } catch (SQLException e) { ; }
-            batchStatement = null;
+            try { st.batchStatement.close(); } catch (SQLException e) { ; }
+            st.batchStatement = null;
         }
-        if (batchConnection != null) 
+        if (st.batchConnection != null) 
         {
-            try { batchConnection.close(); } catch (SQLException e) { ; }
-            batchConnection = null;
+            if (isTransactionConnection(st.batchConnection))
+            {
+                //由 transaction rollback
+                markRollbackOnly();
+            }
+            else
+            {
+                endUncommitted(st);
+                StatementCache.remove(st.batchConnection);
+                try { st.batchConnection.close(); } catch (SQLException e) { ; }
+            }
+            if (st.connection == st.batchConnection)
+            {
+                st.connection = null;
+            }
+            st.batchConnection = null;
         }
+        releaseState(st);
 	}  //abortBatchInsert
 	
 	/**
@@ -1201,37 +3081,129 @@ public abstract class BaseJdbcDao
 	 */
 	public int[] endBatch() throws SQLException
 	{
+	    DaoState st = state();
+	    boolean inTx = isTransactionConnection(st.batchConnection);
 	    int[] ret = null;
 	    try
 	    {
-	        ret = batchStatement.executeBatch();
-	        batchConnection.commit();
-	        batchConnection.setAutoCommit(true);
+	        ret = st.batchStatement.executeBatch();
+	        if (inTx == false)
+	        {
+	            st.batchConnection.commit();
+	            st.batchConnection.setAutoCommit(true);
+	        }
 	    }
 	    catch(SQLException  e)
 	    {
             e.printStackTrace();
             log.error(e.getMessage(), e);
-	        batchConnection.rollback();
+            if (inTx)
+            {
+                markRollbackOnly();
+            }
+            else
+            {
+                st.batchConnection.rollback();
+            }
 	    }
 	    finally
 	    {
+	        invalidateCache(null);
 	        
-            if (batchStatement != null) 
+            if (st.batchStatement != null) 
             {
-                try { batchStatement.close(); } catch (SQLException e) { ; }
-                batchStatement = null;
+                try { st.batchStatement.close(); } catch (SQLException e) { ; }
+                st.batchStatement = null;
             }
-            if (batchConnection != null) 
+            if (st.batchConnection != null) 
             {
-                try { batchConnection.close(); } catch (SQLException e) { ; }
-                batchConnection = null;
+                if (inTx == false)
+                {
+                    endUncommitted(st);
+                    StatementCache.remove(st.batchConnection);
+                    try { st.batchConnection.close(); } catch (SQLException e) { ; }
+                }
+                if (st.connection == st.batchConnection)
+                {
+                    st.connection = null;
+                }
+                st.batchConnection = null;
             }
+            releaseState(st);
 	    }
 	    
 	    return ret;
 	}  //endBatch
 	
+	/**
+	 * Open batch writer inserting all columns of the table.
+	 * <pre>
+	 * 未給值的欄位寫入 null
+	 * </pre>
+	 * @return batch writer
+	 * @throws SQLException sql exception
+	 */
+	public BatchWriter openBatchWriter() throws SQLException
+	{
+	    SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.INSERT_ALL, null);
+	    return openBatchWriter(template.getSql(), template.getBindingPlan());
+	}
+	
+	/**
+	 * Open batch writer flushing every chunk of rows, see {@link BatchWriter}.
+	 * @param sql insert/update sql statement with named parameters
+	 * @return batch writer
+	 * @throws SQLException sql exception
+	 */
+	public BatchWriter openBatchWriter(String sql) throws SQLException
+	{
+	    return openBatchWriter(sql, null);
+	}
+	
+	BatchWriter openBatchWriter(String sql, BindingPlan plan) throws SQLException
+	{
+	    Connection conn = getDbConnection();
+	    if (conn == null)
+	    {
+	        throw new SQLException("No connection for " + getDbName() + "." + getTableName());
+	    }
+	    //在 transaction 中的 connection 由 transaction 負責 commit
+	    boolean own = conn.getAutoCommit();
+	    if (own)
+	    {
+	        //connection 交由 writer 管理
+	        state().connection = null;
+	        releaseState(state());
+	    }
+	    JdbcNamedParameterStatement stmt = null;
+	    try
+	    {
+	        if (own)
+	        {
+	            conn.setAutoCommit(false);
+	        }
+	        stmt = prepareStatement(conn, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	    }
+	    catch (SQLException e)
+	    {
+	        if (own)
+	        {
+	            try { conn.setAutoCommit(true); } catch (SQLException e1) { ; }
+	            StatementCache.remove(conn);
+	            try { conn.close(); } catch (SQLException e1) { ; }
+	        }
+	        throw e;
+	    }
+	    
+	    BatchWriter writer = new BatchWriter(this, conn, stmt, plan, own);
+	    if (this.useCoordinator)
+	    {
+	        writer.setChunkSize(ConnectionCoordinator.getIntProperty(getDbName(), "db.batch.size", BatchWriter.DEF_CHUNK_SIZE));
+	        writer.setMaxBytes(ConnectionCoordinator.getIntProperty(getDbName(), "db.batch.maxbytes", 0));
+	    }
+	    return writer;
+	}
+	
 	
 	/**
 	 * 更新資料
@@ -1255,10 +3227,12 @@ public abstract class BaseJdbcDao
 		try
 		{
 			String sql = "";
+			SqlTemplate template = null;
 			//若是未輸入 where 條件，則再判斷 map 是否可以組條件
 			if (StrUtil.isEmpty(where))
 			{
-				sql = getUpdateByKeyStatement(map);
+				template = getSqlTemplate(SqlTemplate.Operation.UPDATE_BY_KEY, map);
+				sql = template.getSql();
 			}
 			else
 			{
@@ -1266,8 +3240,15 @@ public abstract class BaseJdbcDao
 			}
 
 			log.debug("update=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);			
-			setParam(stmt, map);
+			stmt = prepareStatement(sql);			
+			if (template != null)
+			{
+				setParam(stmt, template, map);
+			}
+			else
+			{
+				setParam(stmt, map);
+			}
 			ret = stmt.executeUpdate();
 			stmt.close();
 			stmt = null;
@@ -1275,13 +3256,16 @@ public abstract class BaseJdbcDao
 		}
 		catch(Exception e)
 		{
+			markRollbackOnly();
 			e.printStackTrace();
 			//log.debug(e);
 	         log.error(e.getMessage(), e);
+			checkSchemaError(e);
 
 		}
 		finally
 		{
+			invalidateCache(StrUtil.isEmpty(where) ? map : null);
 			if (stmt != null) 
 			{
 			    try { stmt.close(); } catch (SQLException e) { ; }
@@ -1305,7 +3289,7 @@ public abstract class BaseJdbcDao
         try
         {
             log.debug("updateEx=" + sql);
-            stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);         
+            stmt = prepareStatement(sql);         
             setParam(stmt, map);
             ret = stmt.executeUpdate();
             stmt.close();
@@ -1314,11 +3298,13 @@ public abstract class BaseJdbcDao
         }
         catch(Exception e)
         {
+            markRollbackOnly();
             e.printStackTrace();
             log.error(e.getMessage(), e);
         }
         finally
         {
+            invalidateCache(null);
             if (stmt != null) 
             {
                 try { stmt.close(); } catch (SQLException e) { ; }
@@ -1336,6 +3322,11 @@ public abstract class BaseJdbcDao
 	 */
 	public int save(Map<String, Object> map)
 	{
+		if (isMergeable(map))
+		{
+			return merge(map);
+		}
+		
 		Map<String, Object> m = findByKey(map);
 		if (m != null && m.isEmpty() == false)
 		{
@@ -1351,41 +3342,233 @@ public abstract class BaseJdbcDao
 	}  //save
 	
 	/**
-	 * Delete data by input key value.
-	 * @param map data map contain key fields and values
+	 * 是否可用 MERGE 語法 save 資料
+	 * @param map data map
+	 * @return true if the db supports MERGE and the map contains all key fields
+	 */
+	boolean isMergeable(Map<String, Object> map)
+	{
+		if (map == null || getDialect().isMerge() == false)
+		{
+			return false;
+		}
+		Map<String, DbTableFieldInfo> keyFields = getKeyFields();
+		if (keyFields.isEmpty())
+		{
+			return false;
+		}
+		for(String key : keyFields.keySet())
+		{
+			if (map.containsKey(key) == false)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Save data by one MERGE statement.
+	 * @param map data map contain key fields
 	 * @return affected record numbers
 	 */
-	public int deleteByKey(Map<String, Object> map)
+	int merge(Map<String, Object> map)
+	{
+		int ret = 0;
+		JdbcNamedParameterStatement stmt = null;
+		try
+		{
+			SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.MERGE, map);
+			String sql = template.getSql();
+			log.debug("merge=" + sql);
+			stmt = prepareStatement(sql);
+			//不是 table 欄位的 key 不綁定
+			template.getBindingPlan().bindAll(stmt.getStatement(), map);
+			ret = stmt.executeUpdate();
+			stmt.close();
+			stmt = null;
+		}
+		catch(Exception e)
+		{
+			markRollbackOnly();
+			e.printStackTrace();
+			log.error(e.getMessage(), e);
+			checkSchemaError(e);
+		}
+		finally
+		{
+			invalidateCache(map);
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			closeConnection();
+		}
+		return ret;
+	}  //merge
+	
+	/**
+	 * 儲存多筆資料，資料不存在時新增，存在時更新
+	 * <pre>
+	 * 支援 MERGE 的資料庫 (SQL Server, HSQL) 以 batch 執行 MERGE，
+	 * 每 db.batch.size 筆 (預設 1000) 執行一次，欄位相同的資料使用同一個 statement，
+	 * 其他資料庫逐筆 {@link #save(Map)}。
+	 * 未在 transaction 中時全部成功才 commit，失敗時全部 rollback。
+	 * </pre>
+	 * @param list data to save, each contains key fields
+	 * @return affected record numbers, 0 if failed
+	 */
+	public int saveAll(List<Map<String, Object>> list)
 	{
+		if (list == null || list.isEmpty())
+		{
+			return 0;
+		}
 		int ret = 0;
 		JdbcNamedParameterStatement stmt = null;
+		Connection conn = null;
+		boolean autoCommit = false;
 		try
 		{
-			String cond = getEqualByKeyCondition();
-			String sql = null;
-			if (StrUtil.isNotEmpty(cond))
+			boolean merge = getDialect().isMerge();
+			conn = getDbConnection();
+			autoCommit = conn.getAutoCommit();
+			if (autoCommit)
+			{
+				conn.setAutoCommit(false);
+			}
+			
+			if (merge)
 			{
-				sql = "delete from " + getTableName() + cond;				
+				int batchSize = this.useCoordinator ? 
+					ConnectionCoordinator.getIntProperty(getDbName(), "db.batch.size", BatchWriter.DEF_CHUNK_SIZE) : BatchWriter.DEF_CHUNK_SIZE;
+				String stmtSql = null;
+				int pending = 0;
+				for(Map<String, Object> map : list)
+				{
+					if (isMergeable(map) == false)
+					{
+						throw new SQLException("saveAll key field not found " + getTableName() + " " + map.keySet());
+					}
+					SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.MERGE, map);
+					if (template.getSql().equals(stmtSql) == false || pending >= batchSize)
+					{
+						if (stmt != null)
+						{
+							ret += sumUpdateCounts(stmt.executeBatch());
+							stmt.close();
+							stmt = null;
+						}
+						if (template.getSql().equals(stmtSql) == false)
+						{
+							log.debug("saveAll merge=" + template.getSql());
+						}
+						stmt = prepareStatement(conn, template.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+						stmtSql = template.getSql();
+						pending = 0;
+					}
+					template.getBindingPlan().bindAll(stmt.getStatement(), map);
+					stmt.addBatch();
+					pending++;
+				}
+				ret += sumUpdateCounts(stmt.executeBatch());
 			}
 			else
 			{
-				//既然指定 delete by key ，又沒有key和條件，防止誤刪
-				if (map.isEmpty())
+				//同一個 connection 在 commit 前不會被 closeConnection 關閉
+				for(int i=0; i < list.size(); i++)
 				{
-					log.error("deleteByKey with empty map!!");
-					return ret;
+					int n = save(list.get(i));
+					if (n <= 0)
+					{
+						throw new SQLException("saveAll failed at row " + i + " of " + getTableName());
+					}
+					ret += n;
 				}
-				sql = "delete from " + getTableName() + getEqualCondition(map);								
 			}
+			
+			if (autoCommit)
+			{
+				conn.commit();
+			}
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			log.error(e.getMessage(), e);
+			checkSchemaError(e);
+			ret = 0;
+			if (autoCommit)
+			{
+				try { conn.rollback(); } catch (SQLException e1) { ; }
+			}
+			else
+			{
+				markRollbackOnly();
+			}
+		}
+		finally
+		{
+			invalidateCache(null);
+			if (stmt != null) 
+			{
+			    try { stmt.close(); } catch (SQLException e) { ; }
+			    stmt = null;
+			}
+			if (autoCommit)
+			{
+				try { conn.setAutoCommit(true); } catch (SQLException e) { ; }
+			}
+			closeConnection();
+		}
+		return ret;
+	}  //saveAll
+	
+	/**
+	 * Sum of batch update counts, {@link java.sql.Statement#SUCCESS_NO_INFO} counts as one.
+	 * @param counts update counts
+	 * @return total
+	 */
+	static int sumUpdateCounts(int [] counts)
+	{
+		int ret = 0;
+		for(int n : counts)
+		{
+			ret += n == java.sql.Statement.SUCCESS_NO_INFO ? 1 : Math.max(n, 0);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Delete data by input key value.
+	 * @param map data map contain key fields and values
+	 * @return affected record numbers
+	 */
+	public int deleteByKey(Map<String, Object> map)
+	{
+		int ret = 0;
+		JdbcNamedParameterStatement stmt = null;
+		try
+		{
+			boolean hasKey = getKeyFields().isEmpty() == false;
+			//既然指定 delete by key ，又沒有key和條件，防止誤刪
+			if (hasKey == false && map.isEmpty())
+			{
+				log.error("deleteByKey with empty map!!");
+				return ret;
+			}
+			SqlTemplate template = getSqlTemplate(SqlTemplate.Operation.DELETE_BY_KEY, map);
+			String sql = template.getSql();
 			log.debug("deleteByKey=" + sql);
-			stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
-			if (StrUtil.isNotEmpty(cond))
+			stmt = prepareStatement(sql);
+			if (hasKey)
 			{
-				setKeyParam(stmt, map);
+				setKeyParam(stmt, template, map);
 			}
 			else
 			{
-				setParam(stmt, map);
+				setParam(stmt, template, map);
 			}
 			
 			ret = stmt.executeUpdate();	
@@ -1395,13 +3578,16 @@ public abstract class BaseJdbcDao
 		}
 		catch(Exception e)
 		{
+			markRollbackOnly();
 			e.printStackTrace();
 			//log.debug(e);
 	         log.error(e.getMessage(), e);
+			checkSchemaError(e);
 
 		}
 		finally
 		{
+			invalidateCache(map);
 			if (stmt != null) 
 			{
 			    try { stmt.close(); } catch (SQLException e) { ; }
@@ -1432,7 +3618,7 @@ public abstract class BaseJdbcDao
             }
             
             log.debug("deleteByWhere=" + sql);
-            stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+            stmt = prepareStatement(sql);
 
             setParam(stmt, map);
             
@@ -1443,11 +3629,13 @@ public abstract class BaseJdbcDao
         }
         catch(Exception e)
         {
+            markRollbackOnly();
             log.error("deleteByWhere Error", e);
             ret = -1;
         }
         finally
         {
+            invalidateCache(null);
             if (stmt != null) 
             {
                 try { stmt.close(); } catch (SQLException e) { ; }
@@ -1470,18 +3658,20 @@ public abstract class BaseJdbcDao
         try
         {
             log.debug("deleteBySQL=" + sql);
-            stmt = new JdbcNamedParameterStatement(getDbConnection(), sql);
+            stmt = prepareStatement(sql);
             setParam(stmt, map);
             return stmt.executeUpdate();
         }
         catch(Exception e)
         {
+            markRollbackOnly();
             e.printStackTrace();
             log.error("deleteBySQL Error", e);
             return 0;
         }
         finally
         {
+            invalidateCache(null);
             if (stmt != null) 
             {
                 try { stmt.close(); } catch (SQLException e) { ; }
@@ -1523,7 +3713,7 @@ public abstract class BaseJdbcDao
         JdbcNamedParameterStatement stmt = null;
         try
         {
-            String dbName = getTableInfo().get(getTableName()).getProductName();
+            String dbName = getTable().getProductName();
             log.debug("db name=" + dbName);
             String exec = "CALL ";
             String ql = sql;
@@ -1552,7 +3742,7 @@ public abstract class BaseJdbcDao
             sql = exec + ql;
                     
             log.debug("sql=" + sql);
-            stmt = new JdbcNamedParameterStatement(getDbConnection(), sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+            stmt = prepareStatement(getDbConnection(), sql, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
             
             setParam(stmt, map);
             rs=stmt.executeQuery();
@@ -1655,8 +3845,8 @@ public abstract class BaseJdbcDao
         DbConnectionInfo dbInfo = null;
         try 
         {
-            //未設定 db user 表示未設定相關 db 資訊
-            if (StrUtil.isEmpty(this.dbUser))
+            //未設定 db user 表示未設定相關 db 資訊，shared 模式不修改 DAO 設定
+            if (shared == false && StrUtil.isEmpty(this.dbUser))
             {
                 dbInfo = ConnectionCoordinator.getPooledDbConnectionInfo(getDbName(), getTableName());
                 
@@ -1669,13 +3859,21 @@ public abstract class BaseJdbcDao
                 this.useJNDI = dbInfo.isUseJndi();              
             }
             
-            if (dbConnection == null || dbConnection.isClosed())
+            //在 DbTransaction 中使用 transaction 的 connection，不放入 DAO，closeConnection 不會關閉
+            Connection txConnection = DbTransaction.currentConnection(getDbName());
+            if (txConnection != null)
+            {
+                return txConnection;
+            }
+            
+            DaoState st = state();
+            if (st.connection == null || st.connection.isClosed())
             {
-                dbConnection = ConnectionCoordinator.getPooledDbConnection(getDbName(), getTableName());             
+                st.connection = ConnectionCoordinator.getPooledDbConnection(getDbName(), getTableName());             
                 //dbConnection = ConnectionCoordinator.getJndiDbConnection(getTableName());             
             }
             
-            return dbConnection;
+            return st.connection;
         } 
         catch (Exception e) 
         {
@@ -1687,7 +3885,7 @@ public abstract class BaseJdbcDao
 	}
 
 	public void setDbConnection(Connection dbConn) {
-		this.dbConnection = dbConn;
+		state().connection = dbConn;
 	}
 	public DataSource getDataSource() {
 		return dataSource;
@@ -1725,6 +3923,7 @@ public abstract class BaseJdbcDao
     public void setDbName(String dbName)
     {
         this.dbName = dbName;
+        this.statementCacheSize = null;
     }
 	
 	
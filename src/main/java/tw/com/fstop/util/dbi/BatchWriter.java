@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batch writer flushing every chunk of rows.
+ *
+ * <pre>
+ * 每累積 chunkSize 筆或估計超過 maxBytes 時執行一次 JDBC batch，記憶體用量固定，
+ * commitPerChunk 為 true 時每個 chunk commit 一次，失敗時只 rollback 該 chunk，
+ * 為 false 時在 {@link #finish()} 一次 commit。
+ * 在 {@link DbTransaction} 或 DAO 自行設定的 transaction 中時不 commit，由 transaction 負責。
+ * 在 finish 一次 commit 時，load 期間 table 不使用 row cache 與 query cache，commit 後再清除 cache。
+ *
+ *   try (BatchWriter writer = dao.openBatchWriter())
+ *   {
+ *       writer.setChunkSize(5000);
+ *       writer.setListener(p -&gt; log.info(p.toString()));
+ *       writer.writeAll(cursor);
+ *   }
+ *
+ * 預設值可在 dbi.properties 設定：
+ *   dbName.db.batch.size = 1000       #每個 chunk 筆數
+ *   dbName.db.batch.maxbytes = 0      #每個 chunk 估計 bytes 上限，0 表示不限制
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public class BatchWriter implements AutoCloseable
+{
+    private final static Logger log = LoggerFactory.getLogger(BatchWriter.class);
+
+    public static final int DEF_CHUNK_SIZE = 1000;
+
+    /**
+     * Chunk progress listener.
+     */
+    public interface Listener
+    {
+        void chunkDone(Progress progress);
+    }
+
+    /**
+     * Progress of a flushed chunk.
+     */
+    public static final class Progress
+    {
+        private final int chunk;
+        private final int rows;
+        private final long bytes;
+        private final long totalRows;
+        private final long millis;
+
+        Progress(int chunk, int rows, long bytes, long totalRows, long millis)
+        {
+            this.chunk = chunk;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.totalRows = totalRows;
+            this.millis = millis;
+        }
+
+        public int getChunk()
+        {
+            return chunk;
+        }
+
+        public int getRows()
+        {
+            return rows;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getTotalRows()
+        {
+            return totalRows;
+        }
+
+        public long getMillis()
+        {
+            return millis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "chunk=" + chunk + " rows=" + rows + " bytes=" + bytes + " total=" + totalRows + " time=" + millis + "ms";
+        }
+    }
+
+    private final BaseJdbcDao dao;
+    private Connection connection;
+    private JdbcNamedParameterStatement statement;
+    private final BindingPlan plan;
+    //自行取得的 connection，由 writer commit 及 close
+    private final boolean ownConnection;
+
+    private int chunkSize = DEF_CHUNK_SIZE;
+    private long maxBytes = 0;
+    private boolean commitPerChunk = true;
+    private Listener listener;
+
+    private int rows = 0;
+    private long bytes = 0;
+    private int chunks = 0;
+    private long totalRows = 0;
+    private long committedRows = 0;
+    private boolean closed = false;
+    //commit 前登記在 UncommittedTables 中
+    private boolean uncommitted = false;
+
+    /**
+     * Create writer, use {@link BaseJdbcDao#openBatchWriter(String)}.
+     * @param dao dao of the table
+     * @param connection db connection
+     * @param statement prepared statement
+     * @param plan binding plan of all columns, null to bind by parameter name of the map
+     * @param ownConnection commit and close the connection
+     */
+    BatchWriter(BaseJdbcDao dao, Connection connection, JdbcNamedParameterStatement statement, BindingPlan plan, boolean ownConnection)
+    {
+        this.dao = dao;
+        this.connection = connection;
+        this.statement = statement;
+        this.plan = plan;
+        this.ownConnection = ownConnection;
+    }
+
+    /**
+     * Add row, flush if the chunk is full.
+     * @param map row data
+     * @throws SQLException if failed to flush
+     */
+    public void add(Map<String, Object> map) throws SQLException
+    {
+        if (closed)
+        {
+            throw new SQLException("batch writer closed");
+        }
+        if (plan != null)
+        {
+            //所有欄位都設定，未給值的欄位為 null，不會沿用上一筆的值
+            plan.bindAll(statement.getStatement(), map);
+        }
+        else
+        {
+            dao.setParam(statement, map);
+        }
+        statement.addBatch();
+        rows++;
+        if (maxBytes > 0)
+        {
+            bytes += estimateSize(map);
+        }
+        if (rows >= chunkSize || (maxBytes > 0 && bytes >= maxBytes))
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Write all rows then finish.
+     * @param it rows
+     * @return total rows written
+     * @throws SQLException if failed
+     */
+    public long writeAll(Iterator<? extends Map<String, Object>> it) throws SQLException
+    {
+        while (it.hasNext())
+        {
+            add(it.next());
+        }
+        return finish();
+    }
+
+    /**
+     * Write all rows then finish.
+     * @param stream rows
+     * @return total rows written
+     * @throws SQLException if failed
+     */
+    public long writeAll(Stream<? extends Map<String, Object>> stream) throws SQLException
+    {
+        return writeAll(stream.iterator());
+    }
+
+    /**
+     * Execute rows of the current chunk.
+     * @return number of rows executed
+     * @throws SQLException if failed, the chunk is rolled back when committing per chunk
+     */
+    public int flush() throws SQLException
+    {
+        if (rows == 0)
+        {
+            return 0;
+        }
+        long start = System.nanoTime();
+        int n = rows;
+        long b = bytes;
+        rows = 0;
+        bytes = 0;
+        if (ownConnection && commitPerChunk == false && uncommitted == false)
+        {
+            //finish 才 commit，之前其他執行緒讀取的資料不放入 cache
+            UncommittedTables.add(dao.getDbName(), dao.getTableName());
+            uncommitted = true;
+        }
+        try
+        {
+            statement.executeBatch();
+            if (ownConnection && commitPerChunk)
+            {
+                connection.commit();
+                committedRows = totalRows + n;
+            }
+        }
+        catch (SQLException e)
+        {
+            log.error("batch chunk failed " + dao.getTableName() + " chunk=" + (chunks + 1) + " " + e.getMessage(), e);
+            if (ownConnection)
+            {
+                try { connection.rollback(); } catch (SQLException e1) { ; }
+            }
+            else
+            {
+                dao.markRollbackOnly();
+            }
+            throw e;
+        }
+        finally
+        {
+            dao.invalidateCache(null);
+        }
+        chunks++;
+        totalRows += n;
+        Progress p = new Progress(chunks, n, b, totalRows, (System.nanoTime() - start) / 1000000L);
+        log.debug("batch " + dao.getTableName() + " " + p);
+        if (listener != null)
+        {
+            listener.chunkDone(p);
+        }
+        return n;
+    }
+
+    /**
+     * Flush remaining rows and commit, then release the connection.
+     * @return total rows written
+     * @throws SQLException if failed
+     */
+    public long finish() throws SQLException
+    {
+        try
+        {
+            flush();
+            if (ownConnection && commitPerChunk == false)
+            {
+                connection.commit();
+            }
+            committedRows = totalRows;
+        }
+        finally
+        {
+            close();
+        }
+        return totalRows;
+    }
+
+    /**
+     * Release the connection, rows not committed are rolled back.
+     */
+    @Override
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        if (statement != null)
+        {
+            try { statement.close(); } catch (SQLException e) { ; }
+            statement = null;
+        }
+        if (ownConnection && connection != null)
+        {
+            try
+            {
+                if (committedRows < totalRows || rows > 0)
+                {
+                    connection.rollback();
+                }
+                connection.setAutoCommit(true);
+            }
+            catch (SQLException e)
+            {
+                log.error(e.getMessage(), e);
+            }
+            StatementCache.remove(connection);
+            try { connection.close(); } catch (SQLException e) { ; }
+            if (uncommitted)
+            {
+                //commit 或 rollback 之後再清除 load 期間放入 cache 的資料
+                UncommittedTables.remove(dao.getDbName(), dao.getTableName());
+                uncommitted = false;
+                dao.invalidateCache(null);
+            }
+        }
+        else if (rows > 0)
+        {
+            //未執行的資料不寫入，transaction 不可 commit
+            dao.markRollbackOnly();
+        }
+        connection = null;
+    }
+
+    /**
+     * Estimate size of a row.
+     * @param map row data
+     * @return bytes
+     */
+    static long estimateSize(Map<String, Object> map)
+    {
+        if (map == null)
+        {
+            return 0;
+        }
+        long size = 0;
+        for(Object v : map.values())
+        {
+            if (v == null)
+            {
+                size += 1;
+            }
+            else if (v instanceof CharSequence)
+            {
+                size += ((CharSequence) v).length() * 2L;
+            }
+            else if (v instanceof byte[])
+            {
+                size += ((byte[]) v).length;
+            }
+            else
+            {
+                size += 8;
+            }
+        }
+        return size;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEF_CHUNK_SIZE;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @param maxBytes estimated bytes of a chunk, 0 for no limit
+     */
+    public void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isCommitPerChunk()
+    {
+        return commitPerChunk;
+    }
+
+    public void setCommitPerChunk(boolean commitPerChunk)
+    {
+        this.commitPerChunk = commitPerChunk;
+    }
+
+    public Listener getListener()
+    {
+        return listener;
+    }
+
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    public long getTotalRows()
+    {
+        return totalRows;
+    }
+
+    public int getChunks()
+    {
+        return chunks;
+    }
+
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Map;
+
+/**
+ * Precomputed parameter binding of a generated statement.
+ *
+ * <pre>
+ * 依 table meta-data 預先算好每個參數的 index、欄位 SQL type 與 setter 種類，
+ * 綁定時直接呼叫 setInt/setLong/setTimestamp/setNull(type) 等方法，
+ * 不需要每個 key 查詢參數位置，也不需要 driver 推測型態。
+ * 值的型別與欄位型態不符時 (例如以 String 傳入數值欄位)，仍以 setObject 交由 driver 轉換，與原來的行為相同。
+ * 不是 table 欄位的參數沒有 SQL type，null 值以 setObject(index, null) 綁定。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class BindingPlan
+{
+    /** No SQL type, column not found in meta-data. */
+    static final int UNKNOWN_TYPE = Integer.MIN_VALUE;
+
+    enum Kind
+    {
+        OBJECT,
+        STRING,
+        INT,
+        LONG,
+        DOUBLE,
+        DECIMAL,
+        BOOLEAN,
+        DATE,
+        TIME,
+        TIMESTAMP
+    }
+
+    private final String [] names;
+    private final int [][] indexes;
+    private final int [] sqlTypes;
+    private final Kind [] kinds;
+
+    private BindingPlan(String [] names, int [][] indexes, int [] sqlTypes, Kind [] kinds)
+    {
+        this.names = names;
+        this.indexes = indexes;
+        this.sqlTypes = sqlTypes;
+        this.kinds = kinds;
+    }
+
+    /**
+     * Build binding plan of the query.
+     * @param parsed parsed query
+     * @param fields field info of the table, key is column name
+     * @return binding plan
+     */
+    static BindingPlan build(ParsedQuery parsed, Map<String, DbTableFieldInfo> fields)
+    {
+        String [] names = parsed.getParameterNames().toArray(new String[0]);
+        int [][] indexes = new int[names.length][];
+        int [] sqlTypes = new int[names.length];
+        Kind [] kinds = new Kind[names.length];
+        for(int i=0; i < names.length; i++)
+        {
+            indexes[i] = parsed.getIndexes(names[i]);
+            DbTableFieldInfo info = fields == null ? null : fields.get(names[i]);
+            sqlTypes[i] = info == null || info.getSqlType() == null ? UNKNOWN_TYPE : info.getSqlType();
+            kinds[i] = kindOf(sqlTypes[i]);
+        }
+        return new BindingPlan(names, indexes, sqlTypes, kinds);
+    }
+
+    static Kind kindOf(int sqlType)
+    {
+        switch (sqlType)
+        {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+                return Kind.STRING;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Kind.INT;
+            case Types.BIGINT:
+                return Kind.LONG;
+            case Types.FLOAT:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return Kind.DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return Kind.DECIMAL;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Kind.BOOLEAN;
+            case Types.DATE:
+                return Kind.DATE;
+            case Types.TIME:
+                return Kind.TIME;
+            case Types.TIMESTAMP:
+                return Kind.TIMESTAMP;
+            default:
+                return Kind.OBJECT;
+        }
+    }
+
+    /**
+     * Bind parameters in the map, same as setting every map key by name.
+     * @param ps prepared statement of the query
+     * @param map parameter map
+     * @throws SQLException sql exception
+     * @throws IllegalArgumentException if a map key is not a parameter of the query
+     */
+    public void bind(PreparedStatement ps, Map<String, Object> map) throws SQLException
+    {
+        if (map == null || map.isEmpty()) return;
+
+        int bound = 0;
+        for(int i=0; i < names.length; i++)
+        {
+            Object value = map.get(names[i]);
+            if (value == null && map.containsKey(names[i]) == false)
+            {
+                continue;
+            }
+            bind(ps, i, value);
+            bound++;
+        }
+
+        if (bound < map.size())
+        {
+            for(String key : map.keySet())
+            {
+                if (indexOf(key) < 0)
+                {
+                    throw new IllegalArgumentException("Parameter not found: " + key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bind all parameters of the query, parameters not in the map are null.
+     * @param ps prepared statement of the query
+     * @param map parameter map
+     * @throws SQLException sql exception
+     */
+    public void bindAll(PreparedStatement ps, Map<String, Object> map) throws SQLException
+    {
+        for(int i=0; i < names.length; i++)
+        {
+            bind(ps, i, map == null ? null : map.get(names[i]));
+        }
+    }
+
+    private void bind(PreparedStatement ps, int i, Object value) throws SQLException
+    {
+        int [] idx = indexes[i];
+        for(int j=0; j < idx.length; j++)
+        {
+            setValue(ps, idx[j], kinds[i], sqlTypes[i], value);
+        }
+    }
+
+    private int indexOf(String name)
+    {
+        for(int i=0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Set parameter with the typed setter of the column type.
+     * @param ps prepared statement
+     * @param index parameter index
+     * @param kind setter kind
+     * @param sqlType column sql type, {@link #UNKNOWN_TYPE} if unknown
+     * @param value parameter value
+     * @throws SQLException sql exception
+     */
+    static void setValue(PreparedStatement ps, int index, Kind kind, int sqlType, Object value) throws SQLException
+    {
+        if (value == null)
+        {
+            if (sqlType == UNKNOWN_TYPE)
+            {
+                ps.setObject(index, null);
+            }
+            else
+            {
+                ps.setNull(index, sqlType);
+            }
+            return;
+        }
+
+        switch (kind)
+        {
+            case STRING:
+                if (value instanceof String)
+                {
+                    ps.setString(index, (String) value);
+                    return;
+                }
+                break;
+            case INT:
+                if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+                {
+                    ps.setInt(index, ((Number) value).intValue());
+                    return;
+                }
+                break;
+            case LONG:
+                if (value instanceof Long || value instanceof Integer)
+                {
+                    ps.setLong(index, ((Number) value).longValue());
+                    return;
+                }
+                break;
+            case DOUBLE:
+                if (value instanceof Double || value instanceof Float)
+                {
+                    ps.setDouble(index, ((Number) value).doubleValue());
+                    return;
+                }
+                break;
+            case DECIMAL:
+                if (value instanceof BigDecimal)
+                {
+                    ps.setBigDecimal(index, (BigDecimal) value);
+                    return;
+                }
+                break;
+            case BOOLEAN:
+                if (value instanceof Boolean)
+                {
+                    ps.setBoolean(index, (Boolean) value);
+                    return;
+                }
+                break;
+            case DATE:
+                if (value instanceof java.sql.Date)
+                {
+                    ps.setDate(index, (java.sql.Date) value);
+                    return;
+                }
+                break;
+            case TIME:
+                if (value instanceof java.sql.Time)
+                {
+                    ps.setTime(index, (java.sql.Time) value);
+                    return;
+                }
+                break;
+            case TIMESTAMP:
+                if (value instanceof Timestamp)
+                {
+                    ps.setTimestamp(index, (Timestamp) value);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        //型別不符或其他型態，交由 driver 轉換
+        ps.setObject(index, value);
+    }
+
+    /**
+     * Convert key value to the value type of the column, as the driver converts a mismatched parameter.
+     *
+     * <pre>
+     * 用於比對傳入的 key 值與查詢結果，例如以 String "1" 查詢 INTEGER 欄位時轉為數值，
+     * CHAR 欄位去除尾端空白。無法轉換時傳回原值。
+     * </pre>
+     * @param sqlType column sql type, {@link #UNKNOWN_TYPE} if unknown
+     * @param value key value
+     * @return converted value
+     */
+    static Object keyValue(int sqlType, Object value)
+    {
+        if (value == null || sqlType == UNKNOWN_TYPE)
+        {
+            return value;
+        }
+        try
+        {
+            switch (kindOf(sqlType))
+            {
+                case STRING:
+                    if (value instanceof Number || value instanceof Character)
+                    {
+                        value = value.toString();
+                    }
+                    if (value instanceof String && (sqlType == Types.CHAR || sqlType == Types.NCHAR))
+                    {
+                        String s = (String) value;
+                        int len = s.length();
+                        while (len > 0 && s.charAt(len - 1) == ' ')
+                        {
+                            len--;
+                        }
+                        return s.substring(0, len);
+                    }
+                    return value;
+                case INT:
+                case LONG:
+                case DOUBLE:
+                case DECIMAL:
+                    return value instanceof String ? new BigDecimal(((String) value).trim()) : value;
+                case BOOLEAN:
+                    return value instanceof String ? Boolean.valueOf(((String) value).trim()) : value;
+                case DATE:
+                    return value instanceof String ? java.sql.Date.valueOf(((String) value).trim()) : value;
+                case TIME:
+                    return value instanceof String ? java.sql.Time.valueOf(((String) value).trim()) : value;
+                case TIMESTAMP:
+                    return value instanceof String ? Timestamp.valueOf(((String) value).trim()) : value;
+                default:
+                    return value;
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            //NumberFormatException 也是 IllegalArgumentException，由 driver 決定是否可轉換
+            return value;
+        }
+    }
+
+    public int getParameterCount()
+    {
+        return names.length;
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size bounded, thread safe LRU cache.
+ *
+ * <pre>
+ * 依 key 的 hash 分成數個 segment，每個 segment 是 access order 的 LinkedHashMap，
+ * 各自以 synchronized 保護，因此不同 segment 之間不會互相等待。
+ * 超過容量時移除該 segment 中最久未使用的項目。
+ * 設定 ttl 時，項目在放入後超過 ttl 即視為過期，於下次讀取時移除。
+ * </pre>
+ *
+ * @param <K> key type
+ * @param <V> value type
+ *
+ * @since 1.0.3
+ */
+public class BoundedCache<K, V>
+{
+    static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K> [] segments;
+    private final int segmentMask;
+    private final int maxSize;
+    private final long ttlNanos;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder expirations = new LongAdder();
+
+    /**
+     * Create cache.
+     * @param maxSize max number of entries, 0 or less disables the cache
+     */
+    public BoundedCache(int maxSize)
+    {
+        this(maxSize, 0);
+    }
+
+    /**
+     * Create cache with time to live.
+     * @param maxSize max number of entries, 0 or less disables the cache
+     * @param ttlMillis time to live in milliseconds after put, 0 or less means no expiration
+     */
+    public BoundedCache(int maxSize, long ttlMillis)
+    {
+        this.maxSize = Math.max(maxSize, 0);
+        this.ttlNanos = ttlMillis > 0 ? ttlMillis * 1000000L : 0;
+
+        //小容量時減少 segment 數量，避免每個 segment 容量過小
+        int n = 1;
+        while (n < MAX_SEGMENTS && n * 8 <= this.maxSize)
+        {
+            n <<= 1;
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Segment<K> [] array = (Segment<K> []) new Segment[n];
+        segments = array;
+        segmentMask = n - 1;
+        int capacity = (this.maxSize + n - 1) / n;
+        for(int i=0; i < n; i++)
+        {
+            segments[i] = new Segment<K>(this, capacity);
+        }
+    }
+
+    private Segment<K> segmentFor(Object key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * Get cached value.
+     * @param key cache key
+     * @return cached value or null if not found
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key)
+    {
+        V v = null;
+        if (maxSize > 0)
+        {
+            Segment<K> s = segmentFor(key);
+            synchronized (s)
+            {
+                Object o = s.get(key);
+                if (o instanceof Expiring)
+                {
+                    Expiring e = (Expiring) o;
+                    if (System.nanoTime() - e.expireAt >= 0)
+                    {
+                        s.remove(key);
+                        expirations.increment();
+                        o = null;
+                    }
+                    else
+                    {
+                        o = e.value;
+                    }
+                }
+                v = (V) o;
+            }
+        }
+        if (v == null)
+        {
+            misses.increment();
+        }
+        else
+        {
+            hits.increment();
+        }
+        return v;
+    }
+
+    /**
+     * Put value into cache.
+     * @param key cache key
+     * @param value value, null is ignored
+     */
+    public void put(K key, V value)
+    {
+        if (maxSize <= 0 || value == null)
+        {
+            return;
+        }
+        Object o = ttlNanos > 0 ? new Expiring(value, System.nanoTime() + ttlNanos) : value;
+        Segment<K> s = segmentFor(key);
+        synchronized (s)
+        {
+            s.put(key, o);
+        }
+    }
+
+    /**
+     * Remove cached value.
+     * @param key cache key
+     * @return removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(K key)
+    {
+        Object o;
+        Segment<K> s = segmentFor(key);
+        synchronized (s)
+        {
+            o = s.remove(key);
+        }
+        return (V) (o instanceof Expiring ? ((Expiring) o).value : o);
+    }
+
+    /**
+     * Remove entries of the matched keys.
+     * @param filter key filter
+     * @return number of entries removed
+     */
+    public int removeIf(Predicate<? super K> filter)
+    {
+        int ret = 0;
+        for(Segment<K> s : segments)
+        {
+            synchronized (s)
+            {
+                Iterator<K> it = s.keySet().iterator();
+                while (it.hasNext())
+                {
+                    if (filter.test(it.next()))
+                    {
+                        it.remove();
+                        ret++;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear()
+    {
+        for(Segment<K> s : segments)
+        {
+            synchronized (s)
+            {
+                s.clear();
+            }
+        }
+    }
+
+    public int size()
+    {
+        int ret = 0;
+        for(Segment<K> s : segments)
+        {
+            synchronized (s)
+            {
+                ret += s.size();
+            }
+        }
+        return ret;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Get time to live.
+     * @return time to live in milliseconds, 0 means no expiration
+     */
+    public long getTtl()
+    {
+        return ttlNanos / 1000000L;
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    public long getExpiredCount()
+    {
+        return expirations.sum();
+    }
+
+    /**
+     * Get cache hit rate.
+     * @return hit rate between 0 and 1, 1 if there is no request yet
+     */
+    public double getHitRate()
+    {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "size=" + size() + " max=" + maxSize + " hit=" + getHitCount()
+                + " miss=" + getMissCount() + " eviction=" + getEvictionCount() + " expired=" + getExpiredCount();
+    }
+
+    /**
+     * Value with expiration time.
+     */
+    static final class Expiring
+    {
+        final Object value;
+        final long expireAt;
+
+        Expiring(Object value, long expireAt)
+        {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * LRU segment, value is the cached value or {@link Expiring}.
+     */
+    static final class Segment<K> extends LinkedHashMap<K, Object>
+    {
+        private static final long serialVersionUID = 1L;
+
+        final transient BoundedCache<K, ?> owner;
+        final int capacity;
+
+        Segment(BoundedCache<K, ?> owner, int capacity)
+        {
+            super(16, 0.75f, true);
+            this.owner = owner;
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Object> eldest)
+        {
+            if (size() > capacity)
+            {
+                owner.evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+}
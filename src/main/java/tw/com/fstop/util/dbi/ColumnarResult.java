@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Column oriented query result.
+ *
+ * <pre>
+ * 依 ResultSetMetaData 的欄位型態決定儲存方式：
+ *   TINYINT, SMALLINT, INTEGER  → int[]
+ *   BIGINT                      → long[]
+ *   FLOAT, REAL, DOUBLE         → double[]
+ *   其他                        → Object[]
+ * primitive 欄位以 bitmap 記錄 null。getInt/getLong/getDouble 直接讀取 primitive array，不會 boxing。
+ * row 與 column 皆由 0 開始。null 值的 getInt/getLong/getDouble 傳回 0，與 JDBC 相同，需要時以 isNull 判斷。
+ *
+ *   ColumnarResult r = dao.findColumnarBySQL("select ID, AMOUNT from ORDERS", null);
+ *   int amount = r.findColumn("AMOUNT");
+ *   double sum = 0;
+ *   for(int i=0; i &lt; r.getRowCount(); i++)
+ *   {
+ *       sum += r.getDouble(i, amount);
+ *   }
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public class ColumnarResult
+{
+    static final int DEF_CAPACITY = 1024;
+
+    private final String [] labels;
+    private final int [] sqlTypes;
+    private final Column [] columns;
+    private int rowCount = 0;
+
+    ColumnarResult(String [] labels, int [] sqlTypes, int capacity)
+    {
+        this.labels = labels;
+        this.sqlTypes = sqlTypes;
+        this.columns = new Column[labels.length];
+        for(int i=0; i < labels.length; i++)
+        {
+            columns[i] = Column.of(sqlTypes[i], capacity);
+        }
+    }
+
+    /**
+     * Read all remaining rows of the result set.
+     * @param rs result set
+     * @return columnar result
+     * @throws SQLException sql exception
+     */
+    public static ColumnarResult read(ResultSet rs) throws SQLException
+    {
+        return read(rs, DEF_CAPACITY);
+    }
+
+    /**
+     * Read all remaining rows of the result set.
+     * @param rs result set
+     * @param capacity expected row count
+     * @return columnar result
+     * @throws SQLException sql exception
+     */
+    public static ColumnarResult read(ResultSet rs, int capacity) throws SQLException
+    {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        String [] labels = ResultSetReader.getColumnLabels(rsmd);
+        int [] types = new int[labels.length];
+        for(int i=0; i < types.length; i++)
+        {
+            types[i] = rsmd.getColumnType(i + 1);
+        }
+
+        ColumnarResult ret = new ColumnarResult(labels, types, Math.max(capacity, 16));
+        Column [] cols = ret.columns;
+        int row = 0;
+        while (rs.next())
+        {
+            for(int i=0; i < cols.length; i++)
+            {
+                cols[i].read(rs, i + 1, row);
+            }
+            row++;
+        }
+        ret.rowCount = row;
+        for(Column c : cols)
+        {
+            c.trim(row);
+        }
+        return ret;
+    }
+
+    public int getRowCount()
+    {
+        return rowCount;
+    }
+
+    public int getColumnCount()
+    {
+        return labels.length;
+    }
+
+    public String [] getColumnLabels()
+    {
+        return labels.clone();
+    }
+
+    public String getColumnLabel(int col)
+    {
+        return labels[col];
+    }
+
+    /**
+     * Get column type.
+     * @param col column index
+     * @return sql type defined in {@link java.sql.Types}
+     */
+    public int getColumnType(int col)
+    {
+        return sqlTypes[col];
+    }
+
+    /**
+     * Find column index by label, case insensitive.
+     * @param label column label
+     * @return column index
+     * @throws IllegalArgumentException if column not found
+     */
+    public int findColumn(String label)
+    {
+        for(int i=0; i < labels.length; i++)
+        {
+            if (labels[i].equalsIgnoreCase(label))
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("column not found: " + label);
+    }
+
+    public boolean isNull(int row, int col)
+    {
+        checkRow(row);
+        return columns[col].isNull(row);
+    }
+
+    public int getInt(int row, int col)
+    {
+        checkRow(row);
+        return columns[col].getInt(row);
+    }
+
+    public long getLong(int row, int col)
+    {
+        checkRow(row);
+        return columns[col].getLong(row);
+    }
+
+    public double getDouble(int row, int col)
+    {
+        checkRow(row);
+        return columns[col].getDouble(row);
+    }
+
+    /**
+     * Get value as object, primitive columns are boxed.
+     * @param row row index
+     * @param col column index
+     * @return value or null
+     */
+    public Object getObject(int row, int col)
+    {
+        checkRow(row);
+        return columns[col].getObject(row);
+    }
+
+    public <T> T get(int row, int col, Class<T> clazz)
+    {
+        return ObjectConverter.convert(getObject(row, col), clazz);
+    }
+
+    /**
+     * Get int array of the column, null values are 0.
+     * @param col column index
+     * @return backing array of the column (do not modify), or null if the column is not stored as int
+     */
+    public int [] getIntColumn(int col)
+    {
+        return columns[col] instanceof IntColumn ? ((IntColumn) columns[col]).values : null;
+    }
+
+    /**
+     * Get long array of the column, null values are 0.
+     * @param col column index
+     * @return backing array of the column (do not modify), or null if the column is not stored as long
+     */
+    public long [] getLongColumn(int col)
+    {
+        return columns[col] instanceof LongColumn ? ((LongColumn) columns[col]).values : null;
+    }
+
+    /**
+     * Get double array of the column, null values are 0.
+     * @param col column index
+     * @return backing array of the column (do not modify), or null if the column is not stored as double
+     */
+    public double [] getDoubleColumn(int col)
+    {
+        return columns[col] instanceof DoubleColumn ? ((DoubleColumn) columns[col]).values : null;
+    }
+
+    private void checkRow(int row)
+    {
+        if (row < 0 || row >= rowCount)
+        {
+            throw new IndexOutOfBoundsException("row " + row + ", row count " + rowCount);
+        }
+    }
+
+    /**
+     * Storage of one column.
+     */
+    static abstract class Column
+    {
+        static Column of(int sqlType, int capacity)
+        {
+            switch (sqlType)
+            {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                    return new IntColumn(capacity);
+                case Types.BIGINT:
+                    return new LongColumn(capacity);
+                case Types.FLOAT:
+                case Types.REAL:
+                case Types.DOUBLE:
+                    return new DoubleColumn(capacity);
+                default:
+                    return new ObjectColumn(capacity);
+            }
+        }
+
+        abstract void read(ResultSet rs, int index, int row) throws SQLException;
+        abstract void trim(int size);
+        abstract boolean isNull(int row);
+        abstract int getInt(int row);
+        abstract long getLong(int row);
+        abstract double getDouble(int row);
+        abstract Object getObject(int row);
+
+        static int grow(int length, int row)
+        {
+            return row < length ? length : Math.max(length << 1, row + 1);
+        }
+    }
+
+    /**
+     * Primitive column with null bitmap.
+     */
+    static abstract class PrimitiveColumn extends Column
+    {
+        long [] nulls;
+
+        PrimitiveColumn(int capacity)
+        {
+            nulls = new long[(capacity + 63) >>> 6];
+        }
+
+        void setNull(int row)
+        {
+            int w = row >>> 6;
+            if (w >= nulls.length)
+            {
+                nulls = Arrays.copyOf(nulls, Math.max(nulls.length << 1, w + 1));
+            }
+            nulls[w] |= 1L << row;
+        }
+
+        @Override
+        boolean isNull(int row)
+        {
+            int w = row >>> 6;
+            return w < nulls.length && (nulls[w] & (1L << row)) != 0;
+        }
+
+        @Override
+        Object getObject(int row)
+        {
+            return isNull(row) ? null : box(row);
+        }
+
+        abstract Object box(int row);
+    }
+
+    static final class IntColumn extends PrimitiveColumn
+    {
+        int [] values;
+
+        IntColumn(int capacity)
+        {
+            super(capacity);
+            values = new int[capacity];
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException
+        {
+            if (row >= values.length)
+            {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getInt(index);
+            if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        @Override
+        void trim(int size)
+        {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        int getInt(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        long getLong(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        Object box(int row)
+        {
+            return values[row];
+        }
+    }
+
+    static final class LongColumn extends PrimitiveColumn
+    {
+        long [] values;
+
+        LongColumn(int capacity)
+        {
+            super(capacity);
+            values = new long[capacity];
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException
+        {
+            if (row >= values.length)
+            {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getLong(index);
+            if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        @Override
+        void trim(int size)
+        {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        int getInt(int row)
+        {
+            return (int) values[row];
+        }
+
+        @Override
+        long getLong(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        Object box(int row)
+        {
+            return values[row];
+        }
+    }
+
+    static final class DoubleColumn extends PrimitiveColumn
+    {
+        double [] values;
+
+        DoubleColumn(int capacity)
+        {
+            super(capacity);
+            values = new double[capacity];
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException
+        {
+            if (row >= values.length)
+            {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getDouble(index);
+            if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        @Override
+        void trim(int size)
+        {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        int getInt(int row)
+        {
+            return (int) values[row];
+        }
+
+        @Override
+        long getLong(int row)
+        {
+            return (long) values[row];
+        }
+
+        @Override
+        double getDouble(int row)
+        {
+            return values[row];
+        }
+
+        @Override
+        Object box(int row)
+        {
+            return values[row];
+        }
+    }
+
+    /**
+     * Other types, value of getObject.
+     * 數值型態 (例如 DECIMAL) 以 Number 取得 primitive 值，不額外產生物件。
+     */
+    static final class ObjectColumn extends Column
+    {
+        Object [] values;
+
+        ObjectColumn(int capacity)
+        {
+            values = new Object[capacity];
+        }
+
+        @Override
+        void read(ResultSet rs, int index, int row) throws SQLException
+        {
+            if (row >= values.length)
+            {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = rs.getObject(index);
+        }
+
+        @Override
+        void trim(int size)
+        {
+            values = Arrays.copyOf(values, size);
+        }
+
+        @Override
+        boolean isNull(int row)
+        {
+            return values[row] == null;
+        }
+
+        Number number(int row)
+        {
+            Object v = values[row];
+            if (v == null)
+            {
+                return null;
+            }
+            if (v instanceof Number)
+            {
+                return (Number) v;
+            }
+            throw new ClassCastException("column value " + v.getClass().getName() + " is not a number");
+        }
+
+        @Override
+        int getInt(int row)
+        {
+            Number n = number(row);
+            return n == null ? 0 : n.intValue();
+        }
+
+        @Override
+        long getLong(int row)
+        {
+            Number n = number(row);
+            return n == null ? 0 : n.longValue();
+        }
+
+        @Override
+        double getDouble(int row)
+        {
+            Number n = number(row);
+            return n == null ? 0 : n.doubleValue();
+        }
+
+        @Override
+        Object getObject(int row)
+        {
+            return values[row];
+        }
+    }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Row data backed by an Object array and a shared {@link RowSchema}.
+ *
+ * <pre>
+ * 每筆資料只保存一個 Object[]，欄位名稱與位置由同一查詢結果的所有資料共用，
+ * 不需要像 LinkedHashMap 每個欄位建立 entry 物件。
+ * 行為與一般 Map 相同，可以 put 不在 schema 內的 key (存放於額外的 map)，
+ * 也可以 remove 欄位。提供與 {@link DataConvertMap} 相同的 get(k, Class) 與 as() 轉換。
+ * 非 thread safe。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public class CompactRow extends AbstractMap<String, Object> implements Serializable
+{
+    private static final long serialVersionUID = -3520744367418834157L;
+
+    //已 remove 的欄位
+    private static final Object ABSENT = new Absent();
+
+    private final RowSchema schema;
+    private final Object [] values;
+    private int removed = 0;
+    private LinkedHashMap<String, Object> extra;
+    private transient Set<Map.Entry<String, Object>> entrySet;
+
+    /**
+     * Create row, values are not copied.
+     * @param schema shared schema
+     * @param values column values in schema order
+     */
+    public CompactRow(RowSchema schema, Object [] values)
+    {
+        if (values.length != schema.size())
+        {
+            throw new IllegalArgumentException("values length " + values.length + " not match schema size " + schema.size());
+        }
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public RowSchema getSchema()
+    {
+        return schema;
+    }
+
+    /**
+     * Copy row, the schema is shared.
+     * @return copy of the row
+     */
+    public CompactRow copy()
+    {
+        CompactRow ret = new CompactRow(schema, values.clone());
+        ret.removed = removed;
+        if (extra != null)
+        {
+            ret.extra = new LinkedHashMap<String, Object>(extra);
+        }
+        return ret;
+    }
+
+    public <T> T get(String k, Class<T> clazz)
+    {
+        return ObjectConverter.convert(this.get(k), clazz);
+    }
+
+    /**
+     * 將指定內容依指定的物件型別進行轉換，同 {@link DataConvertMap#as(Object, Object)}
+     * @param k      map key
+     * @param obj    型別物件
+     * @param <T>    target type
+     * @return       轉換後的值
+     */
+    public <T> T as(String k, Object obj)
+    {
+        return DataConvertMap.convertAs(this.get(k), obj);
+    }
+
+    @Override
+    public int size()
+    {
+        return values.length - removed + (extra == null ? 0 : extra.size());
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int i = schema.indexOf(key);
+        if (i >= 0)
+        {
+            return values[i] != ABSENT;
+        }
+        return extra != null && extra.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int i = schema.indexOf(key);
+        if (i >= 0)
+        {
+            Object v = values[i];
+            return v == ABSENT ? null : v;
+        }
+        return extra == null ? null : extra.get(key);
+    }
+
+    @Override
+    public Object put(String key, Object value)
+    {
+        int i = schema.indexOf(key);
+        if (i >= 0)
+        {
+            Object old = values[i];
+            values[i] = value;
+            if (old == ABSENT)
+            {
+                removed--;
+                return null;
+            }
+            return old;
+        }
+        if (extra == null)
+        {
+            extra = new LinkedHashMap<String, Object>();
+        }
+        return extra.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key)
+    {
+        int i = schema.indexOf(key);
+        if (i >= 0)
+        {
+            Object old = values[i];
+            if (old == ABSENT)
+            {
+                return null;
+            }
+            values[i] = ABSENT;
+            removed++;
+            return old;
+        }
+        return extra == null ? null : extra.remove(key);
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill(values, ABSENT);
+        removed = values.length;
+        extra = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        Set<Map.Entry<String, Object>> es = entrySet;
+        if (es == null)
+        {
+            es = new EntrySet();
+            entrySet = es;
+        }
+        return es;
+    }
+
+    final class EntrySet extends AbstractSet<Map.Entry<String, Object>>
+    {
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return CompactRow.this.size();
+        }
+
+        @Override
+        public void clear()
+        {
+            CompactRow.this.clear();
+        }
+    }
+
+    /**
+     * 先依 schema 順序走訪欄位，再走訪額外的 key。
+     */
+    final class EntryIterator implements Iterator<Map.Entry<String, Object>>
+    {
+        int next = 0;
+        int last = -1;
+        Iterator<Map.Entry<String, Object>> extraIt;
+
+        EntryIterator()
+        {
+            advance();
+        }
+
+        void advance()
+        {
+            while (next < values.length && values[next] == ABSENT)
+            {
+                next++;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (next < values.length)
+            {
+                return true;
+            }
+            if (extraIt == null && extra != null)
+            {
+                extraIt = extra.entrySet().iterator();
+            }
+            return extraIt != null && extraIt.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Object> next()
+        {
+            if (next < values.length)
+            {
+                last = next++;
+                advance();
+                return new Entry(last);
+            }
+            if (hasNext() == false)
+            {
+                throw new NoSuchElementException();
+            }
+            last = -1;
+            return extraIt.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            if (last < 0)
+            {
+                if (extraIt == null)
+                {
+                    throw new IllegalStateException();
+                }
+                extraIt.remove();
+                return;
+            }
+            if (values[last] == ABSENT)
+            {
+                throw new IllegalStateException();
+            }
+            values[last] = ABSENT;
+            removed++;
+        }
+    }
+
+    final class Entry implements Map.Entry<String, Object>
+    {
+        final int index;
+
+        Entry(int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return schema.getLabel(index);
+        }
+
+        @Override
+        public Object getValue()
+        {
+            Object v = values[index];
+            return v == ABSENT ? null : v;
+        }
+
+        @Override
+        public Object setValue(Object value)
+        {
+            Object old = getValue();
+            if (values[index] == ABSENT)
+            {
+                removed--;
+            }
+            values[index] = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object v = getValue();
+            return getKey().equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            Object v = getValue();
+            return getKey().hashCode() ^ (v == null ? 0 : v.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    /**
+     * Removed marker, keep identity after deserialization.
+     */
+    static final class Absent implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Object readResolve()
+        {
+            return ABSENT;
+        }
+    }
+
+}
@@ -16,10 +16,13 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -87,7 +90,74 @@ public class ConnectionCoordinator
 	}
 	
 	//index DbConnectionInfo by dbName
-	static Map<String, DbConnectionInfo> info = Collections.synchronizedMap(new HashMap<String, DbConnectionInfo>());
+	static final Map<String, DbConnectionInfo> info = new ConcurrentHashMap<String, DbConnectionInfo>();
+	
+	//connection pool by dbName, 每個 dbName 只建立一個 pool
+	static final ConcurrentHashMap<String, DataSource> dataSources = new ConcurrentHashMap<String, DataSource>();
+	
+	/**
+	 * Get db setting from "dbi.properties".
+	 * @param dbName db name
+	 * @param key property key without db name prefix, ex: db.pool
+	 * @param def default value
+	 * @return property value
+	 */
+	public static String getProperty(String dbName, String key, String def)
+	{
+	    if (prop == null)
+	    {
+	        return def;
+	    }
+	    String ret = prop.getProperty(dbName + "." + key);
+	    return ret == null ? def : ret.trim();
+	}
+	
+	/**
+	 * Get integer db setting from "dbi.properties".
+	 * @param dbName db name
+	 * @param key property key without db name prefix
+	 * @param def default value
+	 * @return property value or default value if not set or invalid
+	 */
+	public static int getIntProperty(String dbName, String key, int def)
+	{
+	    String ret = getProperty(dbName, key, null);
+	    if (ret == null || ret.isEmpty())
+	    {
+	        return def;
+	    }
+	    try
+	    {
+	        return Integer.parseInt(ret);
+	    }
+	    catch (NumberFormatException e)
+	    {
+	        log.warn("invalid setting " + dbName + "." + key + "=" + ret);
+	        return def;
+	    }
+	}
+	
+	/**
+	 * Get db names configured in "dbi.properties".
+	 * @return db names, by "dbName.db.url" or "dbName.db.jndiname" settings
+	 * @since 1.0.3
+	 */
+	public static List<String> getDbNames()
+	{
+	    Set<String> ret = new TreeSet<String>();
+	    if (prop == null)
+	    {
+	        return new ArrayList<String>(ret);
+	    }
+	    for(String key : prop.stringPropertyNames())
+	    {
+	        if (key.endsWith(".db.url") || key.endsWith(".db.jndiname"))
+	        {
+	            ret.add(key.substring(0, key.lastIndexOf(".db.")));
+	        }
+	    }
+	    return new ArrayList<String>(ret);
+	}
 	
 	public static DbConnectionInfo setParam(String dbName,
 	                                        String jndi, 
@@ -116,33 +186,20 @@ public class ConnectionCoordinator
 	
 	public static DbConnectionInfo getDbConnectionInfo(String dbName, String tableName)
 	{
-		String url = null; 
-		String jndi = null;	
-		String driver = null;
-		String user = null;
-		String password = null;
-		String poolName = null;
-		DataSource ds = null;
-		Connection conn = null;
-		DbConnectionInfo dbInfo = null;
-		
-        if (info.get(dbName) == null)
-        {
-            jndi = prop.getProperty(dbName + ".db.jndiname", "");
-            driver = prop.getProperty(dbName + ".db.driver", "");
-            url = prop.getProperty(dbName + ".db.url", "");
-            user = prop.getProperty(dbName + ".db.user", "");
-            password = prop.getProperty(dbName + ".db.password", "");
-            poolName = prop.getProperty(dbName + ".db.pool", "");
-            dbInfo = setParam(dbName, jndi, driver, url, user, password, poolName, ds, conn);
-
-            info.put(dbName, dbInfo);
-        }
-        else
-        {
-            dbInfo = info.get(dbName);
-        }
-		
+		//已建立時不需要 lock
+		DbConnectionInfo dbInfo = info.get(dbName);
+		if (dbInfo == null)
+		{
+			dbInfo = info.computeIfAbsent(dbName, k -> {
+				String jndi = prop.getProperty(k + ".db.jndiname", "");
+				String driver = prop.getProperty(k + ".db.driver", "");
+				String url = prop.getProperty(k + ".db.url", "");
+				String user = prop.getProperty(k + ".db.user", "");
+				String password = prop.getProperty(k + ".db.password", "");
+				String poolName = prop.getProperty(k + ".db.pool", "");
+				return setParam(k, jndi, url, driver, user, password, poolName, null, null);
+			});
+		}
 		return dbInfo;
 	}//getDbConnectionInfo
 	
@@ -214,15 +271,157 @@ public class ConnectionCoordinator
 		// for JDK 1.6 and above
 		if (dbInfo.getDataSource() == null)
 		{
-		    String poolName = dbInfo.getPoolName();
-		    ds = service.getDataSource(poolName, dbName);
-		    dbInfo.setDataSource(ds);
+		    dbInfo.setDataSource(getPooledDataSource(dbName, dbInfo.getPoolName()));
 		}
 		
 
 		return dbInfo;
 	}//getPooledDbConnectionInfo
 	
+	/**
+	 * Get connection pool of the db, create it if not created.
+	 * 
+	 * <pre>
+	 * 同時有多個執行緒第一次使用時，只有一個執行緒建立 pool，其他執行緒等待建立完成後使用同一個 pool。
+	 * 建立後的讀取不需要 lock。
+	 * </pre>
+	 * 
+	 * @param dbName db name
+	 * @param poolName data source provider name
+	 * @return data source, null if the provider is not found
+	 */
+	static DataSource getPooledDataSource(String dbName, String poolName)
+	{
+	    DataSource ds = dataSources.get(dbName);
+	    if (ds == null)
+	    {
+	        ds = dataSources.computeIfAbsent(dbName, k -> {
+	            log.info("create connection pool " + k + " " + poolName);
+	            return service.getDataSource(poolName, k);
+	        });
+	    }
+	    return ds;
+	}
+	
+	/**
+	 * Create connection pools of all configured dbs.
+	 * 
+	 * <pre>
+	 * 在啟動時呼叫，避免第一個 request 建立 pool。
+	 * 使用 JNDI 的 db 由 container 管理，不建立 pool。
+	 * </pre>
+	 * @since 1.0.3
+	 */
+	public static void start()
+	{
+	    for(String dbName : getDbNames())
+	    {
+	        start(dbName);
+	    }
+	}
+	
+	/**
+	 * Create connection pool of the db.
+	 * @param dbName db name
+	 * @return true if the pool is created or already exists
+	 * @since 1.0.3
+	 */
+	public static boolean start(String dbName)
+	{
+	    try
+	    {
+	        DbConnectionInfo dbInfo = getDbConnectionInfo(dbName, "");
+	        if (dbInfo.getPoolName() == null || dbInfo.getPoolName().isEmpty())
+	        {
+	            return false;
+	        }
+	        return getPooledDbConnectionInfo(dbName, "").getDataSource() != null;
+	    }
+	    catch (Exception e)
+	    {
+	        log.error("start connection pool error " + dbName, e);
+	    }
+	    return false;
+	}
+	
+	/**
+	 * Close connection pool of the db, a new pool is created on next use.
+	 * @param dbName db name
+	 * @since 1.0.3
+	 */
+	public static void stop(String dbName)
+	{
+	    DbConnectionInfo dbInfo = info.remove(dbName);
+	    DataSource ds = dataSources.remove(dbName);
+	    if (ds == null && dbInfo != null && dbInfo.isUseJndi() == false)
+	    {
+	        ds = dbInfo.getDataSource();
+	    }
+	    String poolName = dbInfo != null ? dbInfo.getPoolName() : getProperty(dbName, "db.pool", null);
+	    if (service != null && poolName != null)
+	    {
+	        //下次使用時重新建立
+	        DataSource cached = service.removeDataSource(poolName, dbName);
+	        if (ds == null)
+	        {
+	            ds = cached;
+	        }
+	    }
+	    if (ds != null)
+	    {
+	        log.info("close connection pool " + dbName);
+	        close(ds);
+	    }
+	}
+	
+	/**
+	 * Close all connection pools.
+	 * @since 1.0.3
+	 */
+	public static void closeAll()
+	{
+	    Set<String> dbNames = new TreeSet<String>(info.keySet());
+	    dbNames.addAll(dataSources.keySet());
+	    for(String dbName : dbNames)
+	    {
+	        stop(dbName);
+	    }
+	}
+	
+	/**
+	 * Get db names with connection pool created.
+	 * @return db names
+	 * @since 1.0.3
+	 */
+	public static List<String> getStartedDbNames()
+	{
+	    return new ArrayList<String>(new TreeSet<String>(dataSources.keySet()));
+	}
+	
+	static void close(DataSource ds)
+	{
+	    try
+	    {
+	        if (ds instanceof AutoCloseable)
+	        {
+	            ((AutoCloseable) ds).close();
+	        }
+	        else
+	        {
+	            //c3p0 舊版未實作 AutoCloseable
+	            ds.getClass().getMethod("close").invoke(ds);
+	        }
+	    }
+	    catch (NoSuchMethodException e)
+	    {
+	        log.warn("DataSource can not be closed " + ds.getClass().getName());
+	    }
+	    catch (Exception e)
+	    {
+	        log.error("close connection pool error", e);
+	    }
+	}
+	
 	static DataSource getC3p0DataSource(DbConnectionInfo dbInfo)
 	{
 	    DataSource ds = null;
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Connection;
+import java.util.Set;
+
+/**
+ * Connection state of a DAO operation.
+ *
+ * <pre>
+ * 一般模式每個 DAO 物件一份，shared 模式每個執行緒一份，
+ * 讓同一個 DAO 物件可以同時由多個執行緒使用。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+final class DaoState
+{
+    Connection connection;
+
+    //for batch insert/update
+    JdbcNamedParameterStatement batchStatement;
+    Connection batchConnection;
+
+    //auto commit 為 false 時異動的 table，connection 釋放後才清除 cache
+    Set<String> uncommitted;
+
+    /**
+     * @return true if no connection or batch is held
+     */
+    boolean isIdle()
+    {
+        return connection == null && batchStatement == null && batchConnection == null;
+    }
+}
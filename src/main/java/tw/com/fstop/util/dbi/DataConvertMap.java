@@ -25,6 +25,16 @@ public class DataConvertMap<K, V> extends LinkedHashMap<K, V>
 {
 	private static final long serialVersionUID = -4883158026909924823L;
 
+	public DataConvertMap()
+	{
+		super();
+	}
+	
+	public DataConvertMap(int initialCapacity)
+	{
+		super(initialCapacity);
+	}
+
 	public <T> T get(K k, Class<T> clazz)
 	{
 		return ObjectConverter.convert(this.get(k), clazz);
@@ -47,70 +57,82 @@ public class DataConvertMap<K, V> extends LinkedHashMap<K, V>
 	 * @return       轉換後的值
 	 * 
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> T as(K k, Object obj)
+	{
+		return convertAs(this.get(k), obj);
+	}
+	
+	/**
+	 * 將值依指定的物件型別進行轉換，供 {@link #as(Object, Object)} 與 {@link CompactRow#as(String, Object)} 共用
+	 * @param value  原始值
+	 * @param obj    型別物件
+	 * @param <T>    target type
+	 * @return       轉換後的值
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T convertAs(Object value, Object obj)
 	{
 	
 		if (obj == null) return null;
 		
 		if(obj.getClass().equals(String.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), String.class);
+			return (T) ObjectConverter.convert(value, String.class);
 		}
 		
 		if(obj.getClass().equals(BigDecimal.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), BigDecimal.class);
+			return (T) ObjectConverter.convert(value, BigDecimal.class);
 		}
 
 		if(obj.getClass().equals(Boolean.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Boolean.class);
+			return (T) ObjectConverter.convert(value, Boolean.class);
 		}
 		
 		if(obj.getClass().equals(Integer.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Integer.class);
+			return (T) ObjectConverter.convert(value, Integer.class);
 		}
 
 		if(obj.getClass().equals(Long.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Long.class);
+			return (T) ObjectConverter.convert(value, Long.class);
 		}
 
 		if(obj.getClass().equals(Float.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Float.class);
+			return (T) ObjectConverter.convert(value, Float.class);
 		}
 
 		if(obj.getClass().equals(Double.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Double.class);
+			return (T) ObjectConverter.convert(value, Double.class);
 		}
 
 		if(obj.getClass().equals(Byte.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Byte.class);
+			return (T) ObjectConverter.convert(value, Byte.class);
 		}
 
 		if(obj.getClass().equals(Short.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Short.class);
+			return (T) ObjectConverter.convert(value, Short.class);
 		}
 
 		if(obj.getClass().equals(Character.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Character.class);
+			return (T) ObjectConverter.convert(value, Character.class);
 		}
 		
 		if(obj.getClass().equals(Clob.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Clob.class);
+			return (T) ObjectConverter.convert(value, Clob.class);
 		}
 
 		if(obj.getClass().equals(Blob.class))
 		{
-			return (T) ObjectConverter.convert(this.get(k), Blob.class);
+			return (T) ObjectConverter.convert(value, Blob.class);
 		}
 		
 		return (T) obj;		
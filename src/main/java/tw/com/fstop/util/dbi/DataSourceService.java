@@ -30,4 +30,17 @@ public interface DataSourceService
      * @return data source
      */
     DataSource getDataSource(String providerName, String dbName);
+    
+    /**
+     * Remove cached data source, the caller closes it.
+     * 
+     * @param providerName data source provider name
+     * @param dbName database name
+     * @return removed data source, null if not cached
+     * @since 1.0.3
+     */
+    default DataSource removeDataSource(String providerName, String dbName)
+    {
+        return null;
+    }
 }
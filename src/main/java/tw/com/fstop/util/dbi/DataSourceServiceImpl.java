@@ -13,28 +13,69 @@
 
 package tw.com.fstop.util.dbi;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Default data source service.
+ * 
+ * <pre>
+ * 建立時以 ServiceLoader 載入所有 {@link DataSourceProvider}，之後以名稱 (不分大小寫) 查詢，不再重新掃描。
+ * 同一 provider 與 dbName 只建立一個 DataSource，之後傳回同一個物件。
+ * 嵌入式或測試環境可以 {@link #registerProvider(DataSourceProvider)} 加入 provider。
+ * </pre>
+ */
 public class DataSourceServiceImpl implements DataSourceService
 {
     private static Logger log = LoggerFactory.getLogger(DataSourceServiceImpl.class);
             
-    //for Singleton
-    private static DataSourceService service;
+    //for Singleton, initialized on first use
+    private static class Holder
+    {
+        static final DataSourceServiceImpl INSTANCE = new DataSourceServiceImpl();
+    }
     
-    //service loader since JDK 1.6
-    private ServiceLoader<DataSourceProvider> loader;
+    //provider name (lower case) -> provider, 不可修改，註冊時整個替換
+    private volatile Map<String, DataSourceProvider> providers;
+    
+    //provider name (lower case) + "/" + dbName -> data source
+    private final Map<String, DataSource> dataSources = new ConcurrentHashMap<String, DataSource>();
     
     private DataSourceServiceImpl()
     {
-        loader = ServiceLoader.load(DataSourceProvider.class);
+        Map<String, DataSourceProvider> map = new HashMap<String, DataSourceProvider>();
+        //service loader since JDK 1.6
+        Iterator<DataSourceProvider> it = ServiceLoader.load(DataSourceProvider.class).iterator();
+        while (true)
+        {
+            try
+            {
+                if (it.hasNext() == false)
+                {
+                    break;
+                }
+                DataSourceProvider p = it.next();
+                map.put(keyOf(p.getProviderName()), p);
+                log.debug("DataSourceProvider " + p.getProviderName() + "=" + p.getClass().getName());
+            }
+            catch (ServiceConfigurationError serviceError)
+            {
+                //略過無法載入的 provider
+                log.error("DataSourceServiceImpl error=", serviceError);
+            }
+        }
+        providers = Collections.unmodifiableMap(map);
     }
 
     /**
@@ -42,39 +83,73 @@ public class DataSourceServiceImpl implements DataSourceService
      * 
      * @return DataSourceService
      */
-    public static synchronized DataSourceService getInstance()
+    public static DataSourceService getInstance()
     {
-        if (service == null)
-        {
-            service = new DataSourceServiceImpl();
-        }
-        return service;
+        return Holder.INSTANCE;
+    }
+    
+    static String keyOf(String providerName)
+    {
+        return providerName.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Register data source provider, replace the provider with the same name.
+     * 
+     * @param provider data source provider
+     * @since 1.0.3
+     */
+    public static void registerProvider(DataSourceProvider provider)
+    {
+        Holder.INSTANCE.register(provider);
+    }
+    
+    synchronized void register(DataSourceProvider provider)
+    {
+        Map<String, DataSourceProvider> map = new HashMap<String, DataSourceProvider>(providers);
+        map.put(keyOf(provider.getProviderName()), provider);
+        providers = Collections.unmodifiableMap(map);
+    }
+    
+    /**
+     * Get registered data source provider.
+     * 
+     * @param providerName provider name, case insensitive
+     * @return provider, null if not found
+     * @since 1.0.3
+     */
+    public DataSourceProvider getProvider(String providerName)
+    {
+        return providerName == null ? null : providers.get(keyOf(providerName));
     }
     
     @Override
     public DataSource getDataSource(String providerName, String dbName)
     {        
-        try
+        DataSourceProvider p = getProvider(providerName);
+        if (p == null)
         {
-            Iterator<DataSourceProvider> providers = loader.iterator();
-
-            String name;
-            while (providers.hasNext())
-            {
-                DataSourceProvider p = providers.next();
-                name = p.getProviderName();
-                if (providerName.equalsIgnoreCase(name))
-                {
-                    return p.getDataSource(dbName);
-                }
-            }
+            log.error("DataSourceProvider not found " + providerName);
+            return null;
         }
-        catch (ServiceConfigurationError serviceError)
+        
+        String key = keyOf(providerName) + "/" + dbName;
+        DataSource ds = dataSources.get(key);
+        if (ds == null)
         {
-            log.error("DataSourceServiceImpl error=", serviceError);
+            ds = dataSources.computeIfAbsent(key, k -> p.getDataSource(dbName));
         }
-        return null;
+        return ds;
     }
 
+    @Override
+    public DataSource removeDataSource(String providerName, String dbName)
+    {
+        if (providerName == null)
+        {
+            return null;
+        }
+        return dataSources.remove(keyOf(providerName) + "/" + dbName);
+    }
     
 }
@@ -31,7 +31,7 @@ public class DbConnectionInfo
 	String dbName = null;
 	String poolName = null;
 	Boolean useJndi = false;
-	DataSource dataSource = null;
+	volatile DataSource dataSource = null;
 	Connection connection = null;
 	
 	
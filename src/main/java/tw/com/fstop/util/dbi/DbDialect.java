@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Types;
+
+/**
+ * SQL limits and features of a db product, immutable.
+ *
+ * <pre>
+ * 依 DatabaseMetaData 的 product name 決定，
+ * 可在 dbi.properties 調整 multi-row insert 的限制：
+ *   dbName.db.insert.maxparams = 2000   #每個 statement 參數個數上限
+ *   dbName.db.insert.maxrows = 1000     #每個 statement 筆數上限，1 表示不使用 multi-row VALUES
+ *
+ * SQL Server 與 HSQL 以 MERGE 語法在一個 statement 完成 save，其他資料庫先查詢再 insert 或 update。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+final class DbDialect
+{
+    /** No MERGE, save by query then insert or update. */
+    static final int MERGE_NONE = 0;
+    /** SQL Server MERGE, with (holdlock) and terminated by semicolon. */
+    static final int MERGE_SQLSERVER = 1;
+    /** SQL standard MERGE, parameters of VALUES are cast to the column type. */
+    static final int MERGE_STANDARD = 2;
+
+    /** select ... limit n */
+    static final int LIMIT = 0;
+    /** select top (n) ... */
+    static final int LIMIT_TOP = 1;
+    /** select ... fetch first n rows only */
+    static final int LIMIT_FETCH_FIRST = 2;
+
+    //SQL Server 上限為 2100 個參數，保留給 driver 使用
+    static final DbDialect SQLSERVER = new DbDialect(BaseJdbcDao.PRODUCT_NAME_SQLSERVER, 2000, 1000, MERGE_SQLSERVER, LIMIT_TOP);
+    static final DbDialect HSQL = new DbDialect(BaseJdbcDao.PRODUCT_NAME_HSQL, 10000, 1000, MERGE_STANDARD, LIMIT);
+    static final DbDialect POSTGRESQL = new DbDialect("PostgreSQL", 32767, 1000, MERGE_NONE, LIMIT);
+    //Oracle 不支援 insert ... values (...), (...)，12c 之後支援 fetch first
+    static final DbDialect ORACLE = new DbDialect("Oracle", 1000, 1, MERGE_NONE, LIMIT_FETCH_FIRST);
+    static final DbDialect DEFAULT = new DbDialect("", 10000, 1000, MERGE_NONE, LIMIT);
+
+    //Oracle IN 條件最多 1000 個值，其他資料庫也不宜過長
+    static final int MAX_LOOKUP_ROWS = 1000;
+
+    final String productName;
+    final int maxParams;
+    final int maxRows;
+    final int merge;
+    final int limit;
+
+    DbDialect(String productName, int maxParams, int maxRows, int merge, int limit)
+    {
+        this.productName = productName;
+        this.maxParams = maxParams;
+        this.maxRows = maxRows;
+        this.merge = merge;
+        this.limit = limit;
+    }
+
+    /**
+     * Get dialect of the db product.
+     * @param productName product name from DatabaseMetaData
+     * @return dialect, {@link #DEFAULT} if unknown
+     */
+    static DbDialect of(String productName)
+    {
+        if (productName == null)
+        {
+            return DEFAULT;
+        }
+        if (productName.equalsIgnoreCase(SQLSERVER.productName))
+        {
+            return SQLSERVER;
+        }
+        if (productName.equalsIgnoreCase(HSQL.productName))
+        {
+            return HSQL;
+        }
+        if (productName.startsWith(POSTGRESQL.productName))
+        {
+            return POSTGRESQL;
+        }
+        if (productName.startsWith(ORACLE.productName))
+        {
+            return ORACLE;
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Copy with the limits changed.
+     * @param maxParams max parameters of a statement
+     * @param maxRows max rows of a multi-row insert
+     * @return dialect
+     */
+    DbDialect withLimits(int maxParams, int maxRows)
+    {
+        if (maxParams == this.maxParams && maxRows == this.maxRows)
+        {
+            return this;
+        }
+        return new DbDialect(productName, maxParams, maxRows, merge, limit);
+    }
+
+    /**
+     * Rows of a multi-row insert statement.
+     * @param columns number of columns of a row
+     * @return rows, at least 1
+     */
+    int getInsertRows(int columns)
+    {
+        if (columns <= 0)
+        {
+            return 1;
+        }
+        return Math.max(1, Math.min(maxRows, maxParams / columns));
+    }
+
+    /**
+     * Keys of a multi-key lookup statement.
+     * @param keyColumns number of key columns
+     * @return keys, at least 1
+     */
+    int getLookupRows(int keyColumns)
+    {
+        if (keyColumns <= 0)
+        {
+            return 1;
+        }
+        return Math.max(1, Math.min(MAX_LOOKUP_ROWS, maxParams / keyColumns));
+    }
+
+    /**
+     * @return true if multi-row VALUES insert is supported
+     */
+    boolean isMultiRowInsert()
+    {
+        return maxRows > 1;
+    }
+
+    /**
+     * @return true if save can be done by a MERGE statement
+     */
+    boolean isMerge()
+    {
+        return merge != MERGE_NONE;
+    }
+
+    /**
+     * Append parameter of the MERGE source row.
+     * @param sb sql buffer
+     * @param column column name
+     * @param info field info of the column
+     */
+    void appendMergeParam(StringBuilder sb, String column, DbTableFieldInfo info)
+    {
+        if (merge != MERGE_STANDARD || info == null || info.getValueType() == null || info.getSqlType() == null)
+        {
+            sb.append(':').append(column);
+            return;
+        }
+        //VALUES 中的參數沒有型態，需要 cast
+        sb.append("cast(:").append(column).append(" as ").append(info.getValueType());
+        switch (info.getSqlType())
+        {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.BINARY:
+            case Types.VARBINARY:
+                if (info.getSize() != null && info.getSize() > 0)
+                {
+                    sb.append('(').append(info.getSize()).append(')');
+                }
+                break;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                if (info.getSize() != null && info.getSize() > 0)
+                {
+                    sb.append('(').append(info.getSize()).append(',').append(info.getScale() == null ? 0 : info.getScale()).append(')');
+                }
+                break;
+            default:
+                break;
+        }
+        sb.append(')');
+    }
+
+    /**
+     * @param rows max rows
+     * @return limit clause after select, empty if the limit is at the end
+     */
+    String getLimitPrefix(int rows)
+    {
+        return limit == LIMIT_TOP ? " top (" + rows + ") " : "";
+    }
+
+    /**
+     * @param rows max rows
+     * @return limit clause at the end of the statement, empty if the limit is after select
+     */
+    String getLimitSuffix(int rows)
+    {
+        switch (limit)
+        {
+            case LIMIT:
+                return " limit " + rows;
+            case LIMIT_FETCH_FIRST:
+                return " fetch first " + rows + " rows only";
+            default:
+                return "";
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DbDialect[" + productName + " maxParams=" + maxParams + " maxRows=" + maxRows + " merge=" + merge + "]";
+    }
+}
@@ -12,11 +12,22 @@
 
 package tw.com.fstop.util.dbi;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Store db table information.
  * 
+ * <pre>
+ * 由 {@link #DbTable(String, String, String, Map, Map)} 建立的物件為 meta-data 的 snapshot，
+ * fields 與 keyFields 不可修改，可由多個執行緒同時讀取，meta-data 改變時整個物件替換。
+ * 共用的物件不可被修改，因此 setter 只限 package 內使用。
+ * </pre>
+ * 
  * @since 1.0.0
  */
 public class DbTable 
@@ -27,35 +38,67 @@ public class DbTable
 	Map<String, DbTableFieldInfo> keyFields;
 	Map<String, DbTableFieldInfo> fields;
 	
+	public DbTable()
+	{
+	}
+	
+	/**
+	 * Create immutable table meta-data.
+	 * @param dbName db name
+	 * @param name table name
+	 * @param productName db product name
+	 * @param fields field information, in column order
+	 * @param keyFields key field information, ordered by key sequence
+	 * @since 1.0.3
+	 */
+	public DbTable(String dbName, String name, String productName, 
+			Map<String, DbTableFieldInfo> fields, Map<String, DbTableFieldInfo> keyFields)
+	{
+		this.dbName = dbName;
+		this.name = name;
+		this.productName = productName;
+		this.fields = Collections.unmodifiableMap(new LinkedHashMap<String, DbTableFieldInfo>(fields));
+		
+		List<Map.Entry<String, DbTableFieldInfo>> keys = new ArrayList<Map.Entry<String, DbTableFieldInfo>>(keyFields.entrySet());
+		Collections.sort(keys, Comparator.comparing((Map.Entry<String, DbTableFieldInfo> e) -> 
+			e.getValue().getKeySeq() == null ? 0 : e.getValue().getKeySeq()));
+		Map<String, DbTableFieldInfo> sorted = new LinkedHashMap<String, DbTableFieldInfo>();
+		for(Map.Entry<String, DbTableFieldInfo> e : keys)
+		{
+			sorted.put(e.getKey(), e.getValue());
+		}
+		this.keyFields = Collections.unmodifiableMap(sorted);
+	}
+	
 	public String getProductName() {
 		return productName;
 	}
-	public void setProductName(String productName) {
+	void setProductName(String productName) {
 		this.productName = productName;
 	}	
 	public String getName() {
 		return name;
 	}
-	public void setName(String name) {
+	void setName(String name) {
 		this.name = name;
 	}
 	public Map<String, DbTableFieldInfo> getKeyFields() {
 		return keyFields;
 	}
-	public void setKeyFields(Map<String, DbTableFieldInfo> keyFields) {
+	void setKeyFields(Map<String, DbTableFieldInfo> keyFields) {
 		this.keyFields = keyFields;
 	}
 	public Map<String, DbTableFieldInfo> getFields() {
 		return fields;
 	}
-	public void setFields(Map<String, DbTableFieldInfo> fields) {
+	void setFields(Map<String, DbTableFieldInfo> fields) {
 		this.fields = fields;
 	}
     public String getDbName()
     {
         return dbName;
     }
-    public void setDbName(String dbName)
+    void setDbName(String dbName)
     {
         this.dbName = dbName;
     }
@@ -0,0 +1,606 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Global cache of table meta-data snapshots.
+ *
+ * <pre>
+ * 每個 table 的 meta-data 是不會再改變的 {@link DbTable}，存放於 ConcurrentHashMap，讀取時不需要 lock。
+ * 同一個 table 同時只會有一個執行緒從資料庫載入，其他執行緒等待同一個結果 (single-flight)。
+ * 載入完成後整個 snapshot 一次替換，讀取端不會看到載入一半或空的 meta-data。
+ * 載入失敗或找不到欄位時不會放入 cache，下次使用時重新載入。
+ *
+ * schema 變更 (線上 migration) 時的更新，只適用於使用 ConnectionCoordinator 的 DAO：
+ *   dbName.db.metadata.ttl = 300   #秒，0 或未設定表示不定期檢查
+ * 每隔 ttl 以一次 getColumns 計算已載入 table 的欄位 fingerprint，與 cache 不同時在背景重新載入該 table。
+ * DAO 產生的 SQL 因欄位不存在 (SQLState 42S22, 42703, S0022) 失敗時，也會在背景重新載入該 table。
+ * 重新載入期間讀取端繼續使用舊的 snapshot，完成後一次替換，並清除該 table 的 SQL、row cache 與 query cache。
+ * fingerprint 只比較欄位，primary key 的變更需等到下次重新載入。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class DbTableCache
+{
+    private final static Logger log = LoggerFactory.getLogger(DbTableCache.class);
+
+    static final Map<String, DbTable> tables = new ConcurrentHashMap<String, DbTable>();
+
+    //載入中的 table
+    static final Map<String, FutureTask<DbTable>> loading = new ConcurrentHashMap<String, FutureTask<DbTable>>();
+
+    private static volatile ScheduledExecutorService scheduler;
+
+    //欄位不存在的 SQLState: SQL Server/MySQL, PostgreSQL/HSQLDB, ODBC
+    static final Set<String> SCHEMA_ERROR_STATES = new HashSet<String>(Arrays.asList("42S22", "42703", "S0022"));
+
+    //同一 table 因錯誤重新載入的最小間隔
+    static final long MIN_RELOAD_INTERVAL = 10000;
+
+    //已啟動 ttl 檢查的 dbName
+    static final Set<String> refreshers = ConcurrentHashMap.newKeySet();
+
+    //table 最後一次因錯誤重新載入的時間
+    static final Map<String, Long> reloaded = new ConcurrentHashMap<String, Long>();
+
+    private DbTableCache()
+    {
+    }
+
+    /**
+     * Background thread for meta-data refresh.
+     */
+    static ScheduledExecutorService getScheduler()
+    {
+        ScheduledExecutorService ex = scheduler;
+        if (ex == null)
+        {
+            synchronized (DbTableCache.class)
+            {
+                ex = scheduler;
+                if (ex == null)
+                {
+                    ex = new ScheduledThreadPoolExecutor(1, r -> {
+                        Thread t = new Thread(r, "dbi-metadata-refresh");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    scheduler = ex;
+                }
+            }
+        }
+        return ex;
+    }
+
+    static String keyOf(String dbName, String tableName)
+    {
+        return dbName + "." + tableName;
+    }
+
+    /**
+     * Get loaded table meta-data.
+     * @param dbName db name
+     * @param tableName table name
+     * @return table meta-data, null if not loaded
+     */
+    public static DbTable get(String dbName, String tableName)
+    {
+        return tables.get(keyOf(dbName, tableName));
+    }
+
+    /**
+     * Get table meta-data, load it if not loaded.
+     * @param dbName db name
+     * @param tableName table name
+     * @param loader loads meta-data from db
+     * @return table meta-data
+     * @throws SQLException if load failed
+     */
+    static DbTable get(String dbName, String tableName, Callable<DbTable> loader) throws SQLException
+    {
+        DbTable table = tables.get(keyOf(dbName, tableName));
+        if (table != null)
+        {
+            return table;
+        }
+        return load(dbName, tableName, loader, false);
+    }
+
+    /**
+     * Load table meta-data and replace the cached one.
+     * @param dbName db name
+     * @param tableName table name
+     * @param loader loads meta-data from db
+     * @return new table meta-data
+     * @throws SQLException if load failed, the cached one is kept
+     */
+    static DbTable reload(String dbName, String tableName, Callable<DbTable> loader) throws SQLException
+    {
+        return load(dbName, tableName, loader, true);
+    }
+
+    private static DbTable load(final String dbName, final String tableName, final Callable<DbTable> loader, final boolean force) throws SQLException
+    {
+        final String key = keyOf(dbName, tableName);
+        FutureTask<DbTable> task = new FutureTask<DbTable>(() -> {
+            //等待期間可能已由其他執行緒載入
+            DbTable old = tables.get(key);
+            if (force == false && old != null)
+            {
+                return old;
+            }
+            DbTable t = loader.call();
+            //table 不一定有 key 但一定要有欄位，沒有欄位 (table 不存在) 時不放入 cache
+            if (t.getFields().isEmpty())
+            {
+                return t;
+            }
+            //沒有變更時保留原來的 snapshot，已產生的 SQL 不需要重建
+            if (old != null && sameTable(old, t))
+            {
+                return old;
+            }
+            publish(dbName, tableName, t);
+            if (old != null)
+            {
+                log.info("meta-data changed " + key);
+                //舊的欄位組成的資料不可再使用
+                QueryCache.invalidate(dbName, tableName);
+                RowCache rowCache = RowCache.of(dbName, tableName);
+                if (rowCache != null)
+                {
+                    rowCache.clear();
+                }
+            }
+            return t;
+        });
+
+        FutureTask<DbTable> running = loading.putIfAbsent(key, task);
+        if (running == null)
+        {
+            running = task;
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                loading.remove(key, task);
+            }
+        }
+
+        try
+        {
+            return running.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("load meta-data interrupted " + key, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+            {
+                throw (SQLException) cause;
+            }
+            throw new SQLException("load meta-data failed " + key + " " + cause, cause);
+        }
+    }
+
+    /**
+     * Loader of table meta-data with a pooled connection of ConnectionCoordinator.
+     * @param dbName db name
+     * @param tableName table name
+     * @return loader
+     */
+    static Callable<DbTable> pooledLoader(final String dbName, final String tableName)
+    {
+        return () -> {
+            Connection conn = ConnectionCoordinator.getPooledDbConnection(dbName, tableName);
+            try
+            {
+                return BaseJdbcDao.loadTableMetaInfo(conn, dbName, tableName);
+            }
+            finally
+            {
+                conn.close();
+            }
+        };
+    }
+
+    /**
+     * Fingerprint of the columns, name, type, size, scale and nullable in column order.
+     * @param fields field information
+     * @return fingerprint
+     */
+    static long fingerprint(Collection<DbTableFieldInfo> fields)
+    {
+        long h = 1125899906842597L;
+        for(DbTableFieldInfo f : fields)
+        {
+            h = 31 * h + Objects.hashCode(f.getFieldName());
+            h = 31 * h + Objects.hashCode(f.getValueType());
+            h = 31 * h + Objects.hashCode(f.getSqlType());
+            h = 31 * h + Objects.hashCode(f.getSize());
+            h = 31 * h + Objects.hashCode(f.getScale());
+            h = 31 * h + Objects.hashCode(f.getNullable());
+        }
+        return h;
+    }
+
+    static boolean sameTable(DbTable a, DbTable b)
+    {
+        return fingerprint(a.getFields().values()) == fingerprint(b.getFields().values()) &&
+            a.getKeyFields().keySet().equals(b.getKeyFields().keySet());
+    }
+
+    /**
+     * Check if the error is caused by a column not found.
+     * @param e exception
+     * @return true if SQLState is invalid column
+     */
+    static boolean isSchemaError(Throwable e)
+    {
+        for(Throwable t = e; t != null; t = t.getCause())
+        {
+            if (t instanceof SQLException && SCHEMA_ERROR_STATES.contains(((SQLException) t).getSQLState()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reload table meta-data in background, readers keep using the cached one until reloaded.
+     * @param dbName db name
+     * @param tableName table name
+     */
+    static void reloadAsync(final String dbName, final String tableName)
+    {
+        final String key = keyOf(dbName, tableName);
+        long now = System.currentTimeMillis();
+        Long last = reloaded.get(key);
+        if (last != null && now - last < MIN_RELOAD_INTERVAL)
+        {
+            return;
+        }
+        reloaded.put(key, now);
+        getScheduler().execute(() -> reload(dbName, tableName));
+    }
+
+    /**
+     * Reload table meta-data with a pooled connection.
+     * @param dbName db name
+     * @param tableName table name
+     * @return true if reloaded
+     */
+    static boolean reload(String dbName, String tableName)
+    {
+        try
+        {
+            DbTable t = reload(dbName, tableName, pooledLoader(dbName, tableName));
+            if (t.getFields().isEmpty())
+            {
+                //table 已不存在
+                invalidate(dbName, tableName);
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            log.error("reload meta-data error " + dbName + "." + tableName + " " + e.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Start periodic fingerprint check of the db once, if "dbName.db.metadata.ttl" is set.
+     * @param dbName db name
+     */
+    static void startRefresher(final String dbName)
+    {
+        if (refreshers.add(dbName) == false)
+        {
+            return;
+        }
+        int ttl = ConnectionCoordinator.getIntProperty(dbName, "db.metadata.ttl", 0);
+        if (ttl <= 0)
+        {
+            return;
+        }
+        log.info("meta-data refresh enabled " + dbName + " ttl=" + ttl);
+        getScheduler().scheduleWithFixedDelay(() -> checkFingerprints(dbName), ttl, ttl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compare column fingerprints of loaded tables with db, reload changed tables.
+     * <pre>
+     * 未設定 dbName.db.metadata.schema 時，不同 schema 有相同名稱的 table 無法分辨，不檢查。
+     * </pre>
+     * @param dbName db name
+     * @return number of tables reloaded
+     */
+    static int checkFingerprints(String dbName)
+    {
+        List<DbTable> loaded = getTables(dbName);
+        if (loaded.isEmpty())
+        {
+            return 0;
+        }
+        
+        //getColumns 傳回資料庫存放的名稱，DAO 的 table 名稱大小寫可能不同
+        Map<String, List<DbTableFieldInfo>> columns = new TreeMap<String, List<DbTableFieldInfo>>(String.CASE_INSENSITIVE_ORDER);
+        for(DbTable t : loaded)
+        {
+            columns.put(t.getName(), new ArrayList<DbTableFieldInfo>());
+        }
+        //table name -> schema，出現在多個 schema 的 table
+        Map<String, String> schemas = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        Set<String> ambiguous = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        
+        String schema = ConnectionCoordinator.getProperty(dbName, "db.metadata.schema", "");
+        Connection conn = null;
+        try
+        {
+            conn = ConnectionCoordinator.getPooledDbConnection(dbName, "");
+            DatabaseMetaData dbMetaData = conn.getMetaData();
+            ResultSet result = dbMetaData.getColumns(null, schema.isEmpty() ? null : schema, null, null);
+            try
+            {
+                while(result.next())
+                {
+                    String tableName = result.getString(3).trim();
+                    List<DbTableFieldInfo> list = columns.get(tableName);
+                    if (list != null)
+                    {
+                        String tableSchema = result.getString(2);
+                        if (schemas.containsKey(tableName) && Objects.equals(schemas.get(tableName), tableSchema) == false)
+                        {
+                            ambiguous.add(tableName);
+                        }
+                        schemas.put(tableName, tableSchema);
+                        list.add(BaseJdbcDao.readColumnInfo(result));
+                    }
+                }
+            }
+            finally
+            {
+                result.close();
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("check meta-data error " + dbName + " " + e.toString());
+            return 0;
+        }
+        finally
+        {
+            if (conn != null)
+            {
+                try
+                {
+                    conn.close();
+                }
+                catch (SQLException e)
+                {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+        
+        int count = 0;
+        for(DbTable t : loaded)
+        {
+            if (ambiguous.contains(t.getName()))
+            {
+                log.debug("meta-data check skipped, table in more than one schema " + dbName + "." + t.getName());
+                continue;
+            }
+            List<DbTableFieldInfo> current = columns.get(t.getName());
+            if (fingerprint(current) != fingerprint(t.getFields().values()))
+            {
+                log.info("meta-data fingerprint changed " + dbName + "." + t.getName());
+                if (reload(dbName, t.getName()))
+                {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Publish loaded meta-data.
+     * @param dbName db name
+     * @param tableName table name
+     * @param table table meta-data
+     */
+    static void publish(String dbName, String tableName, DbTable table)
+    {
+        tables.put(keyOf(dbName, tableName), table);
+        //meta-data 已改變，舊的 SQL 不可再使用
+        SqlTemplateCache.invalidate(dbName, tableName);
+        log.debug("meta-data loaded " + dbName + "." + tableName + " fields=" + table.getFields().size());
+    }
+
+    /**
+     * Load meta-data of all tables in the db.
+     *
+     * <pre>
+     * 以整個 schema 一次查詢欄位與 primary key，取代每個 table 個別查詢。
+     * 只載入 dbName.db.metadata.schema 設定的 schema，未設定時載入所有 schema。
+     * DAO 的 table 名稱需與資料庫存放的名稱 (大小寫) 相同，否則使用時仍會個別載入。
+     * </pre>
+     *
+     * @param dbName db name
+     * @return number of tables loaded
+     */
+    public static int preload(String dbName)
+    {
+        String schema = ConnectionCoordinator.getProperty(dbName, "db.metadata.schema", "");
+        Connection conn = null;
+        try
+        {
+            long t = System.currentTimeMillis();
+            conn = ConnectionCoordinator.getPooledDbConnection(dbName, "");
+            List<DbTable> list = BaseJdbcDao.loadSchemaMetaInfo(conn, dbName, schema.isEmpty() ? null : schema);
+            for(DbTable table : list)
+            {
+                publish(dbName, table.getName(), table);
+            }
+            log.info("meta-data preloaded " + dbName + " tables=" + list.size() + " " + (System.currentTimeMillis() - t) + "ms");
+            return list.size();
+        }
+        catch (Exception e)
+        {
+            log.error("preload meta-data error " + dbName, e);
+        }
+        finally
+        {
+            if (conn != null)
+            {
+                try
+                {
+                    conn.close();
+                }
+                catch (SQLException e)
+                {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Load meta-data of all configured dbs in parallel.
+     * @return number of tables loaded
+     */
+    public static int preloadAll()
+    {
+        List<String> dbNames = ConnectionCoordinator.getDbNames();
+        if (dbNames.isEmpty())
+        {
+            return 0;
+        }
+        ExecutorService ex = Executors.newFixedThreadPool(Math.min(dbNames.size(), 8), r -> {
+            Thread t = new Thread(r, "dbi-metadata-preload");
+            t.setDaemon(true);
+            return t;
+        });
+        try
+        {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for(final String dbName : dbNames)
+            {
+                results.add(ex.submit(() -> preload(dbName)));
+            }
+            int count = 0;
+            for(Future<Integer> f : results)
+            {
+                count += f.get();
+            }
+            return count;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            log.error("preload meta-data error " + e.getCause());
+        }
+        finally
+        {
+            ex.shutdown();
+        }
+        return 0;
+    }
+
+    /**
+     * Remove table meta-data, it will be loaded again on next use.
+     * @param dbName db name
+     * @param tableName table name
+     */
+    public static void invalidate(String dbName, String tableName)
+    {
+        tables.remove(keyOf(dbName, tableName));
+        SqlTemplateCache.invalidate(dbName, tableName);
+    }
+
+    /**
+     * Get loaded tables of the db.
+     * @param dbName db name
+     * @return table meta-data
+     */
+    public static List<DbTable> getTables(String dbName)
+    {
+        List<DbTable> ret = new ArrayList<DbTable>();
+        for(DbTable t : tables.values())
+        {
+            if (dbName.equals(t.getDbName()))
+            {
+                ret.add(t);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all table meta-data.
+     */
+    public static void clear()
+    {
+        tables.clear();
+        reloaded.clear();
+        SqlTemplateCache.clear();
+    }
+
+    public static int size()
+    {
+        return tables.size();
+    }
+
+}
@@ -27,6 +27,7 @@ public class DbTableFieldInfo
     private Integer precision;
     private Integer scale;
     private Boolean nullable;
+    private Integer sqlType;  //java.sql.Types
     
     public DbTableFieldInfo()
     {    	
@@ -97,5 +98,11 @@ public class DbTableFieldInfo
 	public void setNullable(Boolean nullable) {
 		this.nullable = nullable;
 	}
+	public Integer getSqlType() {
+		return sqlType;
+	}
+	public void setSqlType(Integer sqlType) {
+		this.sqlType = sqlType;
+	}
 
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table meta-data snapshot file.
+ *
+ * <pre>
+ * 將已載入的 table meta-data 存成本機檔案，啟動時直接載入，不需要查詢 DatabaseMetaData。
+ * 在 dbi.properties 設定後啟用，只適用於使用 ConnectionCoordinator 的 DAO：
+ *   dbName.db.metadata.file = data/meta-test.bin   #snapshot 檔案
+ *   dbName.db.metadata.version = 20170801          #schema 版本，與檔案內的版本不同時不使用檔案
+ *   dbName.db.metadata.savedelay = 60              #秒，沒有檔案時，延遲多久將已載入的 table 存檔
+ *
+ * 第一次使用該 dbName 時載入檔案，之後在背景以資料庫重新載入檔案內的 table，完成後重新存檔，
+ * schema 有變更時，背景更新前可能短暫使用舊的 meta-data，schema 變更時請一併修改 version。
+ * 檔案格式錯誤、版本不符或讀取失敗時忽略檔案，改由資料庫載入。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class DbTableSnapshot
+{
+    private final static Logger log = LoggerFactory.getLogger(DbTableSnapshot.class);
+
+    static final int MAGIC = 0x46534d44; //FSMD
+    static final int FORMAT_VERSION = 1;
+
+    static final int DEF_SAVE_DELAY = 60;
+
+    //已初始化的 dbName
+    static final Set<String> initialized = ConcurrentHashMap.newKeySet();
+
+    private DbTableSnapshot()
+    {
+    }
+
+    /**
+     * Get snapshot file of the db.
+     * @param dbName db name
+     * @return snapshot file, null if not configured
+     */
+    public static File getFile(String dbName)
+    {
+        String path = ConnectionCoordinator.getProperty(dbName, "db.metadata.file", "");
+        return path.isEmpty() ? null : new File(path);
+    }
+
+    static String getSchemaVersion(String dbName)
+    {
+        return ConnectionCoordinator.getProperty(dbName, "db.metadata.version", "");
+    }
+
+    /**
+     * Load snapshot file of the db once, and refresh it in background.
+     * @param dbName db name
+     */
+    static void init(final String dbName)
+    {
+        if (initialized.add(dbName) == false)
+        {
+            return;
+        }
+        final File file = getFile(dbName);
+        if (file == null)
+        {
+            return;
+        }
+
+        final List<String> loaded = load(dbName, file);
+        if (loaded.isEmpty())
+        {
+            //沒有可用的檔案，等啟動時的 table 載入後存檔
+            int delay = ConnectionCoordinator.getIntProperty(dbName, "db.metadata.savedelay", DEF_SAVE_DELAY);
+            DbTableCache.getScheduler().schedule(() -> save(dbName, file), delay, TimeUnit.SECONDS);
+        }
+        else
+        {
+            DbTableCache.getScheduler().execute(() -> refresh(dbName, loaded, file));
+        }
+    }
+
+    /**
+     * Reload tables from db, then save the snapshot.
+     */
+    static void refresh(String dbName, List<String> tableNames, File file)
+    {
+        int count = 0;
+        for(String tableName : tableNames)
+        {
+            //失敗時保留 snapshot 的資料，下次啟動再更新
+            if (DbTableCache.reload(dbName, tableName))
+            {
+                count++;
+            }
+        }
+        log.info("meta-data refreshed " + dbName + " tables=" + count + "/" + tableNames.size());
+        if (count == tableNames.size())
+        {
+            save(dbName, file);
+        }
+    }
+
+    /**
+     * Save loaded tables of the db.
+     * @param dbName db name
+     * @param file snapshot file
+     * @return number of tables saved, -1 if failed
+     */
+    public static int save(String dbName, File file)
+    {
+        List<DbTable> tables = DbTableCache.getTables(dbName);
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = null;
+        try
+        {
+            if (dir != null && dir.exists() == false)
+            {
+                dir.mkdirs();
+            }
+            tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                write(out, dbName, getSchemaVersion(dbName), tables);
+            }
+            finally
+            {
+                out.close();
+            }
+            //整個檔案一次替換，讀取端不會讀到寫入一半的檔案
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("meta-data saved " + dbName + " tables=" + tables.size() + " file=" + file);
+            return tables.size();
+        }
+        catch (Exception e)
+        {
+            log.error("save meta-data error " + dbName + " file=" + file, e);
+            if (tmp != null)
+            {
+                tmp.delete();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Load tables of the db from the snapshot file.
+     * @param dbName db name
+     * @param file snapshot file
+     * @return table names loaded, empty if the file does not exist or is not valid
+     */
+    public static List<String> load(String dbName, File file)
+    {
+        List<String> ret = new ArrayList<String>();
+        if (file.exists() == false)
+        {
+            return ret;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            List<DbTable> tables;
+            try
+            {
+                tables = read(in, dbName, getSchemaVersion(dbName));
+            }
+            finally
+            {
+                in.close();
+            }
+            if (tables == null)
+            {
+                log.info("meta-data file ignored " + dbName + " file=" + file);
+                return ret;
+            }
+            for(DbTable t : tables)
+            {
+                DbTableCache.publish(dbName, t.getName(), t);
+                ret.add(t.getName());
+            }
+            log.info("meta-data loaded " + dbName + " tables=" + ret.size() + " file=" + file);
+        }
+        catch (Exception e)
+        {
+            log.error("load meta-data error " + dbName + " file=" + file + " " + e.toString());
+        }
+        return ret;
+    }
+
+    static void write(DataOutputStream out, String dbName, String schemaVersion, List<DbTable> tables) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(dbName);
+        out.writeUTF(schemaVersion);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(tables.size());
+        for(DbTable t : tables)
+        {
+            out.writeUTF(t.getName());
+            out.writeUTF(t.getProductName() == null ? "" : t.getProductName());
+            out.writeInt(t.getFields().size());
+            for(Map.Entry<String, DbTableFieldInfo> e : t.getFields().entrySet())
+            {
+                DbTableFieldInfo f = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeUTF(f.getValueType() == null ? "" : f.getValueType());
+                writeInt(out, f.getSize());
+                writeInt(out, f.getScale());
+                out.writeBoolean(Boolean.TRUE.equals(f.getNullable()));
+                writeInt(out, f.getSqlType());
+                //key 欄位以 key sequence 標示
+                out.writeBoolean(t.getKeyFields().containsKey(e.getKey()));
+                writeInt(out, f.getKeySeq());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return tables, null if the file is not for the db or the schema version
+     */
+    static List<DbTable> read(DataInputStream in, String dbName, String schemaVersion) throws IOException
+    {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+        {
+            return null;
+        }
+        if (dbName.equals(in.readUTF()) == false || schemaVersion.equals(in.readUTF()) == false)
+        {
+            return null;
+        }
+        in.readLong();
+        int count = in.readInt();
+        List<DbTable> ret = new ArrayList<DbTable>(count);
+        for(int i=0; i < count; i++)
+        {
+            String name = in.readUTF();
+            String productName = in.readUTF();
+            int n = in.readInt();
+            Map<String, DbTableFieldInfo> fields = new LinkedHashMap<String, DbTableFieldInfo>();
+            Map<String, DbTableFieldInfo> keyFields = new LinkedHashMap<String, DbTableFieldInfo>();
+            for(int j=0; j < n; j++)
+            {
+                String columnName = in.readUTF();
+                String typeName = in.readUTF();
+                Integer size = readInt(in);
+                Integer scale = readInt(in);
+                Boolean nullable = in.readBoolean();
+                Integer sqlType = readInt(in);
+                boolean isKey = in.readBoolean();
+                Integer keySeq = readInt(in);
+
+                DbTableFieldInfo fieldInfo = new DbTableFieldInfo(columnName, typeName, size, scale, nullable);
+                fieldInfo.setSqlType(sqlType);
+                fieldInfo.setKeySeq(keySeq);
+                fields.put(columnName, fieldInfo);
+                if (isKey)
+                {
+                    DbTableFieldInfo keyInfo = new DbTableFieldInfo(columnName, typeName, size, scale, nullable);
+                    keyInfo.setSqlType(sqlType);
+                    keyInfo.setKeySeq(keySeq);
+                    keyFields.put(columnName, keyInfo);
+                }
+            }
+            ret.add(new DbTable(dbName, name, productName, fields, keyFields));
+        }
+        return ret;
+    }
+
+    private static void writeInt(DataOutputStream out, Integer v) throws IOException
+    {
+        out.writeBoolean(v != null);
+        if (v != null)
+        {
+            out.writeInt(v);
+        }
+    }
+
+    private static Integer readInt(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+}
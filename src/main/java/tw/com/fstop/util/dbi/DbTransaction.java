@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transaction scope of a db bound to the current thread.
+ *
+ * <pre>
+ * 交易期間同一執行緒、同一 dbName 且使用 ConnectionCoordinator 的 DAO 都使用同一個 connection，
+ * DAO 的操作不會自行 commit 或 close connection，最後一次 commit 或 rollback。
+ *
+ *   try (DbTransaction tx = DbTransaction.begin("_default"))
+ *   {
+ *       orderDao.insert(order);
+ *       itemDao.insert(item);
+ *       tx.commit();
+ *   }   //未 commit 時 rollback
+ *
+ *   DbTransaction.execute("_default", () -> {
+ *       orderDao.insert(order);
+ *       return itemDao.insert(item);
+ *   }); //正常結束時 commit，發生 exception 時 rollback
+ *
+ * 交易中再呼叫 begin 時加入原來的交易，由最外層 commit 或 rollback。
+ * 交易中 DAO 的異動失敗時 (傳回 0) 交易標示為只能 rollback，commit 時 rollback 並丟出 SQLException。
+ * 交易中的查詢不使用 row cache 與 query cache，異動的 table 在交易結束前所有執行緒都不使用 cache，
+ * commit 或 rollback 後再清除異動 table 的 cache。
+ * 使用 JDBC 或 JNDI 設定的 DAO (未使用 ConnectionCoordinator) 不加入交易。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class DbTransaction implements AutoCloseable
+{
+    private final static Logger log = LoggerFactory.getLogger(DbTransaction.class);
+
+    //dbName -> 目前執行緒的交易
+    private static final ThreadLocal<Map<String, DbTransaction>> current = new ThreadLocal<Map<String, DbTransaction>>();
+
+    private final String dbName;
+    private final Connection connection;
+
+    //加入的交易，不 commit 也不 close
+    private final DbTransaction outer;
+
+    private boolean rollbackOnly = false;
+    private boolean completed = false;
+
+    //交易中異動的 table
+    private final Set<String> tables;
+
+    private DbTransaction(String dbName, Connection connection, DbTransaction outer)
+    {
+        this.dbName = dbName;
+        this.connection = connection;
+        this.outer = outer;
+        this.tables = outer == null ? new LinkedHashSet<String>() : null;
+    }
+
+    /**
+     * Begin transaction of the db on the current thread, join it if already begun.
+     * @param dbName db name
+     * @return transaction
+     * @throws SQLException if failed to get connection
+     */
+    public static DbTransaction begin(String dbName) throws SQLException
+    {
+        DbTransaction tx = get(dbName);
+        if (tx != null)
+        {
+            return new DbTransaction(dbName, tx.connection, tx);
+        }
+
+        Connection conn = ConnectionCoordinator.getPooledDbConnection(dbName, "");
+        try
+        {
+            conn.setAutoCommit(false);
+        }
+        catch (SQLException e)
+        {
+            conn.close();
+            throw e;
+        }
+        tx = new DbTransaction(dbName, conn, null);
+        Map<String, DbTransaction> map = current.get();
+        if (map == null)
+        {
+            map = new HashMap<String, DbTransaction>();
+            current.set(map);
+        }
+        map.put(dbName, tx);
+        log.debug("begin transaction " + dbName);
+        return tx;
+    }
+
+    /**
+     * Run the work in a transaction, commit if it returns normally, rollback if it throws.
+     * @param dbName db name
+     * @param work work of the transaction
+     * @param <T> result type
+     * @return result of the work
+     * @throws SQLException if the work throws checked exception or failed to commit
+     */
+    public static <T> T execute(String dbName, Callable<T> work) throws SQLException
+    {
+        try (DbTransaction tx = begin(dbName))
+        {
+            T ret;
+            try
+            {
+                ret = work.call();
+            }
+            catch (RuntimeException | SQLException e)
+            {
+                tx.setRollbackOnly();
+                throw e;
+            }
+            catch (Exception e)
+            {
+                tx.setRollbackOnly();
+                throw new SQLException("transaction failed " + dbName + " " + e, e);
+            }
+            tx.commit();
+            return ret;
+        }
+    }
+
+    /**
+     * Get the outermost transaction of the db on the current thread.
+     * @param dbName db name
+     * @return transaction, null if not in transaction
+     */
+    static DbTransaction get(String dbName)
+    {
+        Map<String, DbTransaction> map = current.get();
+        return map == null ? null : map.get(dbName);
+    }
+
+    /**
+     * Get the transaction connection of the db on the current thread.
+     * @param dbName db name
+     * @return connection, null if not in transaction
+     */
+    static Connection currentConnection(String dbName)
+    {
+        DbTransaction tx = get(dbName);
+        return tx == null ? null : tx.connection;
+    }
+
+    /**
+     * Check if the current thread is in transaction of the db.
+     * @param dbName db name
+     * @return true if in transaction
+     */
+    public static boolean isActive(String dbName)
+    {
+        return get(dbName) != null;
+    }
+
+    /**
+     * Record changed table, its caches are cleared again after the transaction ends.
+     * @param tableName table name
+     */
+    void touch(String tableName)
+    {
+        if (root().tables.add(tableName))
+        {
+            UncommittedTables.add(dbName, tableName);
+        }
+    }
+
+    private DbTransaction root()
+    {
+        return outer == null ? this : outer;
+    }
+
+    /**
+     * Mark the transaction to rollback only.
+     */
+    public void setRollbackOnly()
+    {
+        rollbackOnly = true;
+        root().rollbackOnly = true;
+    }
+
+    public boolean isRollbackOnly()
+    {
+        return root().rollbackOnly;
+    }
+
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
+    public String getDbName()
+    {
+        return dbName;
+    }
+
+    /**
+     * Commit the transaction, joined transaction commits with the outermost one.
+     * @throws SQLException if failed or marked rollback only
+     */
+    public void commit() throws SQLException
+    {
+        if (completed)
+        {
+            throw new SQLException("transaction already completed " + dbName);
+        }
+        completed = true;
+        if (outer != null)
+        {
+            return;
+        }
+        boolean committed = false;
+        try
+        {
+            if (rollbackOnly == false)
+            {
+                connection.commit();
+                committed = true;
+                log.debug("commit transaction " + dbName);
+            }
+        }
+        finally
+        {
+            //commit 失敗或標示為只能 rollback 時 rollback，只 end 一次
+            if (committed == false)
+            {
+                rollback0();
+            }
+            end();
+        }
+        if (committed == false)
+        {
+            throw new SQLException("transaction rolled back, marked rollback only " + dbName);
+        }
+    }
+
+    /**
+     * Rollback the transaction, joined transaction marks the outermost one rollback only.
+     * @throws SQLException sql exception
+     */
+    public void rollback() throws SQLException
+    {
+        if (completed)
+        {
+            return;
+        }
+        completed = true;
+        if (outer != null)
+        {
+            setRollbackOnly();
+            return;
+        }
+        try
+        {
+            connection.rollback();
+            log.debug("rollback transaction " + dbName);
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    /**
+     * Rollback without throwing, the caller ends the transaction.
+     */
+    private void rollback0()
+    {
+        try
+        {
+            connection.rollback();
+        }
+        catch (SQLException e)
+        {
+            log.error("rollback error " + dbName, e);
+        }
+    }
+
+    /**
+     * Rollback if not completed, then release the connection.
+     */
+    @Override
+    public void close() throws SQLException
+    {
+        if (completed == false)
+        {
+            rollback();
+        }
+    }
+
+    private void end()
+    {
+        Map<String, DbTransaction> map = current.get();
+        if (map != null && map.get(dbName) == this)
+        {
+            map.remove(dbName);
+            if (map.isEmpty())
+            {
+                current.remove();
+            }
+        }
+        try
+        {
+            connection.setAutoCommit(true);
+        }
+        catch (SQLException e)
+        {
+            log.error("reset auto commit error " + dbName, e);
+        }
+        StatementCache.remove(connection);
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            log.error("close connection error " + dbName, e);
+        }
+        //交易期間其他執行緒可能放入舊的資料
+        for(String tableName : tables)
+        {
+            UncommittedTables.remove(dbName, tableName);
+            QueryCache.invalidate(dbName, tableName);
+            RowCache rowCache = RowCache.of(dbName, tableName);
+            if (rowCache != null)
+            {
+                rowCache.clear();
+            }
+        }
+    }
+
+}
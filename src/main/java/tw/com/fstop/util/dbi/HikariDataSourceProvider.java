@@ -13,6 +13,8 @@
 
 package tw.com.fstop.util.dbi;
 
+import java.util.Properties;
+
 import javax.sql.DataSource;
 
 import org.slf4j.Logger;
@@ -25,6 +27,13 @@ import com.zaxxer.hikari.HikariDataSource;
  * Hikari connection pool DataSource provider.
  * 
  * Hikari config by dbName.hikari.properties 
+ * 
+ * <pre>
+ * Hikari 沒有 statement cache，依 jdbcUrl 開啟 driver 的 statement cache，
+ * 跨 connection 取得 (每次 DAO 呼叫) 重複使用 PreparedStatement。
+ * dbName.hikari.properties 中已設定的 dataSource.* 屬性不會被覆蓋，例如
+ *   dataSource.prepStmtCacheSize=500
+ * </pre>
  *
  * @since 1.0.1
  */
@@ -34,6 +43,8 @@ public class HikariDataSourceProvider implements DataSourceProvider
                       
     static final String PROVIDER_NAME = "Hikari";
     
+    static final int DEF_DRIVER_STMT_CACHE_SIZE = 250;
+    
     @Override
     public String getProviderName()
     {        
@@ -49,6 +60,7 @@ public class HikariDataSourceProvider implements DataSourceProvider
         String cfg = "/" + dbName + ".hikari.properties";
 
         HikariConfig config = new HikariConfig(cfg);
+        setDriverStatementCache(config.getJdbcUrl(), config.getDataSourceProperties());
 //        config.setMaximumPoolSize(10);
 //        config.setDataSourceClassName(dbInfo.jdbcDriver);
 //        config.setJdbcUrl(dbInfo.jdbcUrl);
@@ -64,5 +76,41 @@ public class HikariDataSourceProvider implements DataSourceProvider
 
         return ds;
     }
+    
+    /**
+     * Enable statement cache of the jdbc driver, keep properties already set.
+     * @param jdbcUrl jdbc url
+     * @param props data source properties
+     */
+    static void setDriverStatementCache(String jdbcUrl, Properties props)
+    {
+        if (jdbcUrl == null)
+        {
+            return;
+        }
+        String size = String.valueOf(DEF_DRIVER_STMT_CACHE_SIZE);
+        if (jdbcUrl.startsWith("jdbc:mysql:") || jdbcUrl.startsWith("jdbc:mariadb:"))
+        {
+            props.putIfAbsent("cachePrepStmts", "true");
+            props.putIfAbsent("prepStmtCacheSize", size);
+            props.putIfAbsent("prepStmtCacheSqlLimit", "2048");
+            props.putIfAbsent("useServerPrepStmts", "true");
+        }
+        else if (jdbcUrl.startsWith("jdbc:sqlserver:"))
+        {
+            props.putIfAbsent("disableStatementPooling", "false");
+            props.putIfAbsent("statementPoolingCacheSize", size);
+        }
+        else if (jdbcUrl.startsWith("jdbc:oracle:"))
+        {
+            props.putIfAbsent("oracle.jdbc.implicitStatementCacheSize", size);
+        }
+        else
+        {
+            //PostgreSQL driver 預設已 cache (preparedStatementCacheQueries)，jTDS 預設 maxStatements=500
+            return;
+        }
+        log.debug("driver statement cache enabled " + jdbcUrl);
+    }
 
 }
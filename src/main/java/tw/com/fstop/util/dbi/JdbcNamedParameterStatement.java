@@ -18,29 +18,43 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 /**
  * Convert JDBC named parameter to positional parameter.
  * 
+ * <pre>
+ * 解析結果以原始 SQL 為 key cache 於 {@link BoundedCache}，相同的 SQL 不再重新解析。
+ * Cache 大小與可 cache 的 SQL 長度可由 system property 設定：
+ *   dbi.parse.cache.size       cache 筆數，預設 1024，0 表示不使用 cache
+ *   dbi.parse.cache.maxlength  超過此長度的 SQL 不 cache，預設 8192
+ * </pre>
  *
  * @since 1.0.0
  */
 public class JdbcNamedParameterStatement 
 {
+    static final int PARSE_CACHE_SIZE = Integer.getInteger("dbi.parse.cache.size", 1024);
+    static final int PARSE_CACHE_MAX_LENGTH = Integer.getInteger("dbi.parse.cache.maxlength", 8192);
+    
+    /** Parsed query cache, key is the original query. */
+    static final BoundedCache<String, ParsedQuery> parseCache = new BoundedCache<String, ParsedQuery>(PARSE_CACHE_SIZE);
+    
     /** The statement this object is wrapping. */
     private final PreparedStatement statement;
 
     /** Maps parameter names to arrays of ints which are the parameter indices.*/
-    @SuppressWarnings("rawtypes")
-    private final Map indexMap;
+    private final Map<String, int []> indexMap;
 
     private int fetchSize = 10;
     
+    /** Statement cache to return the statement to, null if not cached. */
+    private final StatementCache cache;
+    private final Connection cacheConnection;
+    private final StatementCache.Key cacheKey;
+    
     /**
      * Creates a NamedParameterStatement.  Wraps a call to
      * c.{@link Connection#prepareStatement(java.lang.String) prepareStatement}.
@@ -48,13 +62,15 @@ public class JdbcNamedParameterStatement
      * @param query      the parameterized query
      * @throws SQLException if the statement could not be created
      */
-    @SuppressWarnings("rawtypes")
     public JdbcNamedParameterStatement(Connection connection, String query) throws SQLException 
     {
-        indexMap=new HashMap();
-        String parsedQuery=parse(query, indexMap);
-        statement=connection.prepareStatement(parsedQuery);
+        ParsedQuery parsed = getParsedQuery(query);
+        indexMap=parsed.getIndexMap();
+        statement=connection.prepareStatement(parsed.getSql());
         statement.setFetchSize(fetchSize);
+        cache=null;
+        cacheConnection=null;
+        cacheKey=null;
     }
 
     /**
@@ -67,15 +83,89 @@ public class JdbcNamedParameterStatement
      * @param resultSetConcurrency result set concurrency
      * @throws SQLException if the statement could not be created
      */
-    @SuppressWarnings("rawtypes")
     public JdbcNamedParameterStatement(Connection connection, String query, int resultSetType, int resultSetConcurrency) throws SQLException 
     {
-        indexMap=new HashMap();
-        String parsedQuery=parse(query, indexMap);
-        statement=connection.prepareStatement(parsedQuery, resultSetType, resultSetConcurrency);
+        ParsedQuery parsed = getParsedQuery(query);
+        indexMap=parsed.getIndexMap();
+        statement=connection.prepareStatement(parsed.getSql(), resultSetType, resultSetConcurrency);
+        statement.setFetchSize(fetchSize);
+        cache=null;
+        cacheConnection=null;
+        cacheKey=null;
+    }
+
+    private JdbcNamedParameterStatement(ParsedQuery parsed, PreparedStatement statement, StatementCache cache, Connection cacheConnection, StatementCache.Key cacheKey) throws SQLException 
+    {
+        this.indexMap=parsed.getIndexMap();
+        this.statement=statement;
+        this.cache=cache;
+        this.cacheConnection=cacheConnection;
+        this.cacheKey=cacheKey;
         statement.setFetchSize(fetchSize);
     }
 
+    /**
+     * Creates a NamedParameterStatement that reuses PreparedStatement of the connection.
+     * <pre>
+     * 由 {@link StatementCache} 取得同一 connection 上已 prepare 的 statement，
+     * {@link #close()} 時放回 cache 而不關閉。
+     * </pre>
+     * @param connection the database connection
+     * @param query the parameterized query
+     * @param resultSetType result set type
+     * @param resultSetConcurrency result set concurrency
+     * @param cacheSize max idle statements per connection, 0 or less disables the cache
+     * @return named parameter statement
+     * @throws SQLException if the statement could not be created
+     */
+    public static JdbcNamedParameterStatement prepare(Connection connection, String query, int resultSetType, int resultSetConcurrency, int cacheSize) throws SQLException 
+    {
+        if (cacheSize <= 0)
+        {
+            return new JdbcNamedParameterStatement(connection, query, resultSetType, resultSetConcurrency);
+        }
+        
+        ParsedQuery parsed = getParsedQuery(query);
+        StatementCache stmtCache = StatementCache.of(connection, cacheSize);
+        StatementCache.Key key = new StatementCache.Key(parsed.getSql(), resultSetType, resultSetConcurrency);
+        PreparedStatement ps = stmtCache.take(key);
+        if (ps == null || ps.isClosed())
+        {
+            ps = connection.prepareStatement(parsed.getSql(), resultSetType, resultSetConcurrency);
+        }
+        return new JdbcNamedParameterStatement(parsed, ps, stmtCache, connection, key);
+    }
+
+    /**
+     * Get parse result of the query from cache, parse and cache it if not found.
+     * @param query query to parse
+     * @return parse result
+     */
+    public static ParsedQuery getParsedQuery(String query)
+    {
+        if (query.length() > PARSE_CACHE_MAX_LENGTH)
+        {
+            return parseQuery(query);
+        }
+        
+        ParsedQuery parsed = parseCache.get(query);
+        if (parsed == null)
+        {
+            parsed = parseQuery(query);
+            parseCache.put(query, parsed);
+        }
+        return parsed;
+    }
+    
+    /**
+     * Get parsed query cache, for statistics.
+     * @return parsed query cache
+     */
+    public static BoundedCache<String, ParsedQuery> getParseCache()
+    {
+        return parseCache;
+    }
+
     /**
      * Parses a query with named parameters.  The parameter-index mappings are put into the map, and the
      * parsed query is returned.  DO NOT CALL FROM CLIENT CODE.  This method is non-private so JUnit code can
@@ -86,11 +176,24 @@ public class JdbcNamedParameterStatement
      */
     @SuppressWarnings({ "rawtypes", "unchecked" })
     static final String parse(String query, Map paramMap) 
+    {
+        ParsedQuery parsed = parseQuery(query);
+        paramMap.putAll(parsed.getIndexMap());
+        return parsed.getSql();
+    }
+
+    /**
+     * Parses a query with named parameters.
+     * @param query query to parse
+     * @return parse result
+     */
+    static ParsedQuery parseQuery(String query) 
     {
         // I was originally using regular expressions, but they didn't work well for ignoring
         // parameter-like strings inside quotes.
         int length=query.length();
-        StringBuffer parsedQuery=new StringBuffer(length);
+        StringBuilder parsedQuery=new StringBuilder(length);
+        Map<String, int []> paramMap=new HashMap<String, int []>();
         boolean inSingleQuote=false;
         boolean inDoubleQuote=false;
         int index=1;
@@ -120,12 +223,15 @@ public class JdbcNamedParameterStatement
                     c='?'; // replace the parameter with a question mark
                     i+=name.length(); // skip past the end if the parameter
 
-                    List indexList=(List)paramMap.get(name);
-                    if(indexList==null) {
-                        indexList=new LinkedList();
-                        paramMap.put(name, indexList);
+                    // parameters seldom repeat, grow the index array one by one
+                    int[] indexes=paramMap.get(name);
+                    if(indexes==null) {
+                        indexes=new int[] {index};
+                    } else {
+                        indexes=Arrays.copyOf(indexes, indexes.length+1);
+                        indexes[indexes.length-1]=index;
                     }
-                    indexList.add(new Integer(index));
+                    paramMap.put(name, indexes);
 
                     index++;
                 }
@@ -133,20 +239,7 @@ public class JdbcNamedParameterStatement
             parsedQuery.append(c);
         }
 
-        // replace the lists of Integer objects with arrays of ints
-        for(Iterator itr=paramMap.entrySet().iterator(); itr.hasNext();) {
-            Map.Entry entry=(Map.Entry)itr.next();
-            List list=(List)entry.getValue();
-            int[] indexes=new int[list.size()];
-            int i=0;
-            for(Iterator itr2=list.iterator(); itr2.hasNext();) {
-                Integer x=(Integer)itr2.next();
-                indexes[i++]=x.intValue();
-            }
-            entry.setValue(indexes);
-        }
-
-        return parsedQuery.toString();
+        return new ParsedQuery(parsedQuery.toString(), paramMap, index-1);
     }
 
 
@@ -158,7 +251,7 @@ public class JdbcNamedParameterStatement
      */
     private int[] getIndexes(String name) 
     {
-        int[] indexes=(int[])indexMap.get(name);
+        int[] indexes=indexMap.get(name);
         if(indexes==null) 
         {
             throw new IllegalArgumentException("Parameter not found: "+name);
@@ -257,6 +350,18 @@ public class JdbcNamedParameterStatement
     }
 
 
+    /**
+     * Gives the driver a hint as to the number of rows that should be fetched.
+     * @param rows number of rows to fetch
+     * @throws SQLException if an error occurred
+     * @see PreparedStatement#setFetchSize(int)
+     */
+    public void setFetchSize(int rows) throws SQLException 
+    {
+        statement.setFetchSize(rows);
+    }
+
+
     /**
      * Returns the underlying statement.
      * @return the statement
@@ -305,12 +410,17 @@ public class JdbcNamedParameterStatement
 
 
     /**
-     * Closes the statement.
+     * Closes the statement, or returns it to the statement cache.
      * @throws SQLException if an error occurred
      * @see Statement#close()
      */
     public void close() throws SQLException 
     {
+        if (cache != null)
+        {
+            cache.release(cacheConnection, cacheKey, statement);
+            return;
+        }
         statement.close();
     }
 
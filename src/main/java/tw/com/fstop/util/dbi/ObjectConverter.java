@@ -22,10 +22,19 @@
 
 package tw.com.fstop.util.dbi;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Generic object converter.
@@ -60,6 +69,11 @@ import java.util.Map;
  * The method name doesn't matter. It's all about the parameter type and the
  * return type.
  * 
+ * <pre>
+ * 轉換方法在載入時以 LambdaMetafactory 轉為 {@link Function}，依 (from class, to class) 兩層查詢，
+ * 第一層以 ClassValue 取得該來源型別的轉換表 (identity map)，查詢時不需組字串也不經過 Method.invoke。
+ * 其他型別的轉換可以用 {@link #register(Class, Class, Function)} 加入。
+ * </pre>
  */
 public final class ObjectConverter
 {
@@ -67,24 +81,121 @@ public final class ObjectConverter
     // Init
     // ---------------------------------------------------------------------------------------
 
-    private static final Map<String, Method> CONVERTERS = new HashMap<String, Method>();
+    // from class -> (to class -> converter)
+    private static final Map<Class<?>, Map<Class<?>, Function<Object, Object>>> CONVERTERS =
+            new ConcurrentHashMap<Class<?>, Map<Class<?>, Function<Object, Object>>>();
+
+    // Lookup cache of CONVERTERS by from class.
+    private static final ClassValue<Map<Class<?>, Function<Object, Object>>> LOOKUP =
+            new ClassValue<Map<Class<?>, Function<Object, Object>>>()
+            {
+                @Override
+                protected Map<Class<?>, Function<Object, Object>> computeValue(Class<?> from)
+                {
+                    Map<Class<?>, Function<Object, Object>> m = CONVERTERS.get(from);
+                    if (m == null)
+                    {
+                        return Collections.emptyMap();
+                    }
+                    return Collections.unmodifiableMap(new IdentityHashMap<Class<?>, Function<Object, Object>>(m));
+                }
+            };
 
     static
     {
         // Preload converters.
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
         Method[] methods = ObjectConverter.class.getDeclaredMethods();
         for (Method method : methods)
         {
-            if (method.getParameterTypes().length == 1)
+            int mod = method.getModifiers();
+            if (method.getParameterTypes().length == 1 && Modifier.isStatic(mod) && Modifier.isPublic(mod)
+                    && method.isSynthetic() == false)
             {
                 // Converter should accept 1 argument. This skips the convert()
                 // method.
-                CONVERTERS.put(method.getParameterTypes()[0].getName() + "_" + method.getReturnType().getName(),
-                        method);
+                put(method.getParameterTypes()[0], method.getReturnType(), toFunction(lookup, method));
             }
         }
     }
 
+    /**
+     * Make direct function of the static converter method.
+     */
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> toFunction(MethodHandles.Lookup lookup, final Method method)
+    {
+        try
+        {
+            MethodHandle mh = lookup.unreflect(method);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class), mh, mh.type().wrap());
+            return (Function<Object, Object>) site.getTarget().invoke();
+        }
+        catch (Throwable e)
+        {
+            // Should not happen, fallback to reflection.
+            return new Function<Object, Object>()
+            {
+                @Override
+                public Object apply(Object value)
+                {
+                    try
+                    {
+                        return method.invoke(null, value);
+                    }
+                    catch (Exception ex)
+                    {
+                        throw new RuntimeException(ex.getMessage(), ex);
+                    }
+                }
+            };
+        }
+    }
+
+    private static void put(Class<?> from, Class<?> to, Function<Object, Object> converter)
+    {
+        Map<Class<?>, Function<Object, Object>> m = CONVERTERS.get(from);
+        if (m == null)
+        {
+            m = new ConcurrentHashMap<Class<?>, Function<Object, Object>>();
+            Map<Class<?>, Function<Object, Object>> old = CONVERTERS.putIfAbsent(from, m);
+            if (old != null)
+            {
+                m = old;
+            }
+        }
+        m.put(to, converter);
+    }
+
+    /**
+     * Register converter of the class pair, replace the existing one.
+     * 
+     * @param from
+     *            The exact class of the object value to be converted.
+     * @param to
+     *            The type class which the given object should be converted to.
+     * @param converter
+     *            The converter.
+     * @param <F>
+     *            source type
+     * @param <T>
+     *            target type
+     */
+    @SuppressWarnings("unchecked")
+    public static <F, T> void register(Class<F> from, Class<T> to, Function<? super F, ? extends T> converter)
+    {
+        if (from == null || to == null || converter == null)
+        {
+            throw new NullPointerException("from, to and converter are required");
+        }
+        synchronized (CONVERTERS)
+        {
+            put(from, to, (Function<Object, Object>) converter);
+            LOOKUP.remove(from);
+        }
+    }
+
     private ObjectConverter()
     {
         // Utility class, hide the constructor.
@@ -128,8 +239,7 @@ public final class ObjectConverter
         }
 
         // Lookup the suitable converter.
-        String converterId = from.getClass().getName() + "_" + to.getName();
-        Method converter = CONVERTERS.get(converterId);
+        Function<Object, Object> converter = LOOKUP.get(from.getClass()).get(to);
         if (converter == null)
         {
             throw new UnsupportedOperationException("Cannot convert from " + from.getClass().getName() + " to "
@@ -139,7 +249,7 @@ public final class ObjectConverter
         // Convert the value.
         try
         {
-            return to.cast(converter.invoke(to, from));
+            return to.cast(converter.apply(from));
         }
         catch (Exception e)
         {
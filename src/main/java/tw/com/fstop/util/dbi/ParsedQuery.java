@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parse result of a named parameter query.
+ *
+ * <pre>
+ * Immutable, 由 {@link JdbcNamedParameterStatement} 解析後 cache 共用。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class ParsedQuery
+{
+    private final String sql;
+    private final Map<String, int []> indexMap;
+    private final int parameterCount;
+
+    ParsedQuery(String sql, Map<String, int []> indexMap, int parameterCount)
+    {
+        this.sql = sql;
+        this.indexMap = Collections.unmodifiableMap(indexMap);
+        this.parameterCount = parameterCount;
+    }
+
+    /**
+     * Get rewritten query with positional parameters.
+     * @return sql statement
+     */
+    public String getSql()
+    {
+        return sql;
+    }
+
+    /**
+     * Get parameter indexes, do not modify the returned array.
+     * @param name parameter name
+     * @return parameter indexes or null if the parameter does not exist
+     */
+    public int [] getIndexes(String name)
+    {
+        return indexMap.get(name);
+    }
+
+    public Set<String> getParameterNames()
+    {
+        return indexMap.keySet();
+    }
+
+    public int getParameterCount()
+    {
+        return parameterCount;
+    }
+
+    Map<String, int []> getIndexMap()
+    {
+        return indexMap;
+    }
+
+}
@@ -0,0 +1,611 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Query result cache of a database.
+ *
+ * <pre>
+ * 以改寫後的 SQL 與參數值為 key 快取 find/findBySQL 的結果，每個 db 依 dbi.properties 設定，未設定時不啟用：
+ *   dbName.db.querycache.maxbytes = 33554432  #估計的記憶體上限，超過時移除最久未使用的結果
+ *   dbName.db.querycache.ttl      = 60        #秒
+ *   dbName.db.querycache.stale    = 30        #秒，過期後仍可使用的時間，0 表示不使用
+ *   dbName.db.querycache.maxrows  = 10000     #超過筆數的結果不放入 cache
+ *
+ * 每個結果記錄相依的 table，透過 {@link BaseJdbcDao} 異動 table 時，table 的版本加 1，
+ * 相依該 table 的結果即失效 (讀取時移除)。find 相依 DAO 的 table，findBySQL 需自行宣告相依的 table。
+ *
+ * stale-while-revalidate：結果過期但仍在 stale 時間內時，直接傳回舊的結果，
+ * 並在背景以另一個 connection 重新查詢，不會讓呼叫端等待。只有 coordinator 模式可以背景查詢。
+ *
+ * 傳回的資料為 cache 的複本，修改不會影響 cache。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class QueryCache
+{
+    private final static Logger log = LoggerFactory.getLogger(QueryCache.class);
+
+    static final int DEF_TTL = 60;
+    static final int DEF_MAX_ROWS = 10000;
+
+    static final Map<String, QueryCache> caches = new ConcurrentHashMap<String, QueryCache>();
+
+    //table 版本，key 為 dbName.TABLE_NAME
+    static final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<String, AtomicLong>();
+
+    //未啟用的 db
+    private static final QueryCache DISABLED = new QueryCache("", 0, 0, 0, 0);
+
+    private static volatile ExecutorService refresher;
+
+    /**
+     * Reload query result in background.
+     */
+    public interface Loader
+    {
+        List<Map<String, Object>> load() throws Exception;
+    }
+
+    private final String dbName;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final long staleNanos;
+    private final int maxRows;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+    private long bytes = 0;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder staleHits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder refreshes = new LongAdder();
+
+    QueryCache(String dbName, long maxBytes, long ttlMillis, long staleMillis, int maxRows)
+    {
+        this.dbName = dbName;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.staleNanos = staleMillis * 1000000L;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Get query cache of the db.
+     * @param dbName db name
+     * @return query cache, null if not enabled
+     */
+    public static QueryCache of(String dbName)
+    {
+        QueryCache cache = caches.get(dbName);
+        if (cache == null)
+        {
+            cache = create(dbName);
+            QueryCache old = caches.putIfAbsent(dbName, cache);
+            if (old != null)
+            {
+                cache = old;
+            }
+        }
+        return cache == DISABLED ? null : cache;
+    }
+
+    private static QueryCache create(String dbName)
+    {
+        long maxBytes = 0;
+        String s = ConnectionCoordinator.getProperty(dbName, "db.querycache.maxbytes", "0");
+        try
+        {
+            maxBytes = Long.parseLong(s);
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("invalid setting " + dbName + ".db.querycache.maxbytes=" + s);
+        }
+        if (maxBytes <= 0)
+        {
+            return DISABLED;
+        }
+        int ttl = ConnectionCoordinator.getIntProperty(dbName, "db.querycache.ttl", DEF_TTL);
+        int stale = ConnectionCoordinator.getIntProperty(dbName, "db.querycache.stale", 0);
+        int maxRows = ConnectionCoordinator.getIntProperty(dbName, "db.querycache.maxrows", DEF_MAX_ROWS);
+        log.info("query cache enabled " + dbName + " maxbytes=" + maxBytes + " ttl=" + ttl + " stale=" + stale);
+        return new QueryCache(dbName, maxBytes, ttl * 1000L, stale * 1000L, maxRows);
+    }
+
+    static String tableKey(String dbName, String tableName)
+    {
+        return dbName + "." + tableName.trim().toUpperCase(Locale.ROOT);
+    }
+
+    static AtomicLong versionOf(String dbName, String tableName)
+    {
+        String k = tableKey(dbName, tableName);
+        AtomicLong v = tableVersions.get(k);
+        if (v == null)
+        {
+            v = new AtomicLong();
+            AtomicLong old = tableVersions.putIfAbsent(k, v);
+            if (old != null)
+            {
+                v = old;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Invalidate cached results depend on the table.
+     * @param dbName db name
+     * @param tableName table name
+     */
+    public static void invalidate(String dbName, String tableName)
+    {
+        if (tableName == null || tableName.isEmpty())
+        {
+            return;
+        }
+        versionOf(dbName, tableName).incrementAndGet();
+    }
+
+    /**
+     * Make cache key of the query.
+     * <pre>
+     * 與實際執行相同，map 中有 SQL 沒有的參數或 SQL 的參數未給值時丟出 exception，
+     * 不會因為 cache 中已有結果而成功。
+     * </pre>
+     * @param sql query with named parameters
+     * @param map parameter map
+     * @param compact row type of the result
+     * @return cache key
+     * @throws IllegalArgumentException if a parameter of the map is not found in the query or a query parameter is not set
+     */
+    static Key keyOf(String sql, Map<String, Object> map, boolean compact)
+    {
+        ParsedQuery parsed = JdbcNamedParameterStatement.getParsedQuery(sql);
+        Object [] values = new Object[parsed.getParameterCount()];
+        if (map != null)
+        {
+            for(String name : map.keySet())
+            {
+                if (parsed.getIndexes(name) == null)
+                {
+                    throw new IllegalArgumentException("Parameter not found: " + name);
+                }
+            }
+        }
+        for(String name : parsed.getParameterNames())
+        {
+            if (map == null || map.containsKey(name) == false)
+            {
+                throw new IllegalArgumentException("Parameter not set: " + name);
+            }
+            Object v = RowCache.normalize(map.get(name));
+            for(int idx : parsed.getIndexes(name))
+            {
+                values[idx - 1] = v;
+            }
+        }
+        return new Key(parsed.getSql(), values, compact);
+    }
+
+    /**
+     * Get current versions of the tables, call before reading db.
+     * @param tables dependent tables
+     * @return versions
+     */
+    long [] versions(String [] tables)
+    {
+        long [] ret = new long[tables.length];
+        for(int i=0; i < tables.length; i++)
+        {
+            ret[i] = versionOf(dbName, tables[i]).get();
+        }
+        return ret;
+    }
+
+    /**
+     * Get cached result.
+     * @param key cache key
+     * @param loader background loader for stale-while-revalidate, null to treat stale result as expired
+     * @return copy of the cached result, null if not found
+     */
+    List<Map<String, Object>> get(Key key, Loader loader)
+    {
+        Entry e;
+        synchronized (this)
+        {
+            e = entries.get(key);
+        }
+        if (e == null)
+        {
+            misses.increment();
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (e.isCurrent() == false || now - e.staleUntil >= 0 || (loader == null && now - e.freshUntil >= 0))
+        {
+            remove(key, e);
+            misses.increment();
+            return null;
+        }
+
+        if (now - e.freshUntil >= 0)
+        {
+            //過期但仍可使用，背景重新查詢
+            staleHits.increment();
+            if (e.refreshing.compareAndSet(false, true))
+            {
+                refresh(key, e, loader);
+            }
+        }
+        else
+        {
+            hits.increment();
+        }
+        return copyOf(e.rows);
+    }
+
+    private void refresh(final Key key, final Entry e, final Loader loader)
+    {
+        final long [] versions = versions(e.tables);
+        try
+        {
+            getRefresher().execute(() -> {
+                try
+                {
+                    List<Map<String, Object>> rows = loader.load();
+                    refreshes.increment();
+                    put(key, e.tables, versions, rows);
+                }
+                catch (Exception ex)
+                {
+                    log.warn("refresh query cache failed=" + ex.getMessage(), ex);
+                    remove(key, e);
+                }
+            });
+        }
+        catch (Exception ex)
+        {
+            log.warn("refresh query cache rejected=" + ex.getMessage());
+            e.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Put result read from db, ignored if any dependent table is changed after the versions.
+     * @param key cache key
+     * @param tables dependent tables
+     * @param versions table versions before reading db
+     * @param rows query result
+     */
+    void put(Key key, String [] tables, long [] versions, List<Map<String, Object>> rows)
+    {
+        if (rows == null || rows.size() > maxRows)
+        {
+            return;
+        }
+        Entry e = new Entry(tables, versions, copyOf(rows));
+        if (e.isCurrent() == false || e.bytes > maxBytes)
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        e.freshUntil = now + ttlNanos;
+        e.staleUntil = e.freshUntil + staleNanos;
+
+        synchronized (this)
+        {
+            Entry old = entries.put(key, e);
+            if (old != null)
+            {
+                bytes -= old.bytes;
+            }
+            bytes += e.bytes;
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext())
+            {
+                Entry eldest = it.next();
+                if (eldest == e)
+                {
+                    continue;
+                }
+                it.remove();
+                bytes -= eldest.bytes;
+                evictions.increment();
+            }
+        }
+    }
+
+    private synchronized void remove(Key key, Entry e)
+    {
+        if (entries.get(key) == e)
+        {
+            entries.remove(key);
+            bytes -= e.bytes;
+        }
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Get estimated memory of cached results.
+     * @return estimated bytes
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public String getDbName()
+    {
+        return dbName;
+    }
+
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public long getStaleHitCount()
+    {
+        return staleHits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    public long getRefreshCount()
+    {
+        return refreshes.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return dbName + " size=" + size() + " bytes=" + getBytes() + " hit=" + getHitCount() + " stale=" + getStaleHitCount()
+                + " miss=" + getMissCount() + " eviction=" + getEvictionCount() + " refresh=" + getRefreshCount();
+    }
+
+    static List<Map<String, Object>> copyOf(List<Map<String, Object>> rows)
+    {
+        List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>(rows.size());
+        for(Map<String, Object> row : rows)
+        {
+            ret.add(RowCache.copyOf(row));
+        }
+        return ret;
+    }
+
+    /**
+     * Estimate memory of the result, by sampling at most 32 rows.
+     * @param rows query result
+     * @return estimated bytes
+     */
+    static long weigh(List<Map<String, Object>> rows)
+    {
+        int n = rows.size();
+        if (n == 0)
+        {
+            return 64;
+        }
+        int step = Math.max(1, n / 32);
+        long sampled = 0;
+        int cnt = 0;
+        for(int i=0; i < n; i += step)
+        {
+            Map<String, Object> row = rows.get(i);
+            long b = row instanceof CompactRow ? 32 + 16 + 4L * row.size() : 64 + 40L * row.size();
+            for(Object v : row.values())
+            {
+                b += weighValue(v);
+            }
+            sampled += b;
+            cnt++;
+        }
+        return 64 + 4L * n + sampled * n / cnt;
+    }
+
+    static long weighValue(Object v)
+    {
+        if (v == null)
+        {
+            return 0;
+        }
+        if (v instanceof String)
+        {
+            return 40 + 2L * ((String) v).length();
+        }
+        if (v instanceof BigDecimal)
+        {
+            return 64;
+        }
+        if (v instanceof byte [])
+        {
+            return 16 + ((byte []) v).length;
+        }
+        if (v instanceof Number || v instanceof Boolean)
+        {
+            return 24;
+        }
+        return 48;
+    }
+
+    private static ExecutorService getRefresher()
+    {
+        ExecutorService ex = refresher;
+        if (ex == null)
+        {
+            synchronized (QueryCache.class)
+            {
+                ex = refresher;
+                if (ex == null)
+                {
+                    ex = Executors.newFixedThreadPool(2, r -> {
+                        Thread t = new Thread(r, "dbi-querycache-refresh");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    refresher = ex;
+                }
+            }
+        }
+        return ex;
+    }
+
+    /**
+     * Get enabled query caches.
+     * @return query caches
+     */
+    public static List<QueryCache> getCaches()
+    {
+        List<QueryCache> ret = new ArrayList<QueryCache>();
+        for(QueryCache c : caches.values())
+        {
+            if (c != DISABLED)
+            {
+                ret.add(c);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all cached results and reload settings on next use.
+     */
+    public static void clearAll()
+    {
+        for(QueryCache c : caches.values())
+        {
+            c.clear();
+        }
+        caches.clear();
+    }
+
+    /**
+     * Cached result with dependent table versions.
+     */
+    final class Entry
+    {
+        final String [] tables;
+        final AtomicLong [] tableVersions;
+        final long [] versions;
+        final List<Map<String, Object>> rows;
+        final long bytes;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        long freshUntil;
+        long staleUntil;
+
+        Entry(String [] tables, long [] versions, List<Map<String, Object>> rows)
+        {
+            this.tables = tables;
+            this.versions = versions;
+            this.rows = rows;
+            this.bytes = weigh(rows) + 64L * tables.length;
+            this.tableVersions = new AtomicLong[tables.length];
+            for(int i=0; i < tables.length; i++)
+            {
+                tableVersions[i] = versionOf(dbName, tables[i]);
+            }
+        }
+
+        boolean isCurrent()
+        {
+            for(int i=0; i < versions.length; i++)
+            {
+                if (tableVersions[i].get() != versions[i])
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Cache key, rewritten sql and positional parameter values.
+     */
+    static final class Key
+    {
+        final String sql;
+        final Object [] values;
+        final boolean compact;
+        final int hash;
+
+        Key(String sql, Object [] values, boolean compact)
+        {
+            this.sql = sql;
+            this.values = values;
+            this.compact = compact;
+            this.hash = (sql.hashCode() * 31 + Arrays.hashCode(values)) * 31 + (compact ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+
+            Key k = (Key) obj;
+            return hash == k.hash && compact == k.compact && sql.equals(k.sql) && Arrays.equals(values, k.values);
+        }
+    }
+
+}
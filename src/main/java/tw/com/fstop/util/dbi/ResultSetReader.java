@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass ResultSet to row map reader.
+ *
+ * <pre>
+ * ResultSetMetaData 每個結果只讀一次，欄位名稱預先算好，
+ * 每筆資料直接填入最終的 row，不再經過中間的 map 複製。
+ * 欄位名稱規則與 commons-dbutils 相同：優先使用 column label，沒有時使用 column name。
+ * compact 模式產生共用 {@link RowSchema} 的 {@link CompactRow}，否則產生 {@link DataConvertMap}。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public class ResultSetReader
+{
+    private final String [] labels;
+    private final int capacity;
+    private final RowSchema schema;
+    //每個欄位在 schema 中的位置 (同名欄位會對應到同一位置)
+    private final int [] slots;
+
+    /**
+     * Create reader of the result set, rows are {@link DataConvertMap}.
+     * @param rsmd result set meta-data
+     * @throws SQLException sql exception
+     */
+    public ResultSetReader(ResultSetMetaData rsmd) throws SQLException
+    {
+        this(rsmd, false);
+    }
+
+    /**
+     * Create reader of the result set.
+     * @param rsmd result set meta-data
+     * @param compact true to read rows as {@link CompactRow}
+     * @throws SQLException sql exception
+     */
+    public ResultSetReader(ResultSetMetaData rsmd, boolean compact) throws SQLException
+    {
+        this.labels = getColumnLabels(rsmd);
+        //避免 LinkedHashMap 擴充 table
+        this.capacity = (int) (labels.length / 0.75f) + 1;
+        if (compact)
+        {
+            this.schema = new RowSchema(labels);
+            this.slots = new int[labels.length];
+            for(int i=0; i < labels.length; i++)
+            {
+                slots[i] = schema.indexOf(labels[i]);
+            }
+        }
+        else
+        {
+            this.schema = null;
+            this.slots = null;
+        }
+    }
+
+    /**
+     * Get column labels, same as commons-dbutils.
+     * @param rsmd result set meta-data
+     * @return column labels
+     * @throws SQLException sql exception
+     */
+    static String [] getColumnLabels(ResultSetMetaData rsmd) throws SQLException
+    {
+        int cols = rsmd.getColumnCount();
+        String [] ret = new String[cols];
+        for(int i=0; i < cols; i++)
+        {
+            String label = rsmd.getColumnLabel(i + 1);
+            if (label == null || label.isEmpty())
+            {
+                label = rsmd.getColumnName(i + 1);
+            }
+            ret[i] = label;
+        }
+        return ret;
+    }
+
+    /**
+     * Get column labels.
+     * @return column labels
+     */
+    public String [] getColumnLabels()
+    {
+        return labels.clone();
+    }
+
+    public int getColumnCount()
+    {
+        return labels.length;
+    }
+
+    public boolean isCompact()
+    {
+        return schema != null;
+    }
+
+    /**
+     * Read current row of the result set.
+     * @param rs result set positioned on a row
+     * @return row data
+     * @throws SQLException sql exception
+     */
+    public Map<String, Object> readRow(ResultSet rs) throws SQLException
+    {
+        if (schema != null)
+        {
+            Object [] values = new Object[schema.size()];
+            for(int i=0; i < slots.length; i++)
+            {
+                values[slots[i]] = rs.getObject(i + 1);
+            }
+            return new CompactRow(schema, values);
+        }
+
+        DataConvertMap<String, Object> row = new DataConvertMap<String, Object>(capacity);
+        for(int i=0; i < labels.length; i++)
+        {
+            row.put(labels[i], rs.getObject(i + 1));
+        }
+        return row;
+    }
+
+    /**
+     * Read all remaining rows of the result set.
+     * @param rs result set
+     * @return list of row data
+     * @throws SQLException sql exception
+     */
+    public List<Map<String, Object>> readAll(ResultSet rs) throws SQLException
+    {
+        List<Map<String, Object>> ret = new ArrayList<Map<String, Object>>();
+        while (rs.next())
+        {
+            ret.add(readRow(rs));
+        }
+        return ret;
+    }
+
+    /**
+     * Read all rows of the result set.
+     * @param rs result set
+     * @return list of row data
+     * @throws SQLException sql exception
+     */
+    public static List<Map<String, Object>> read(ResultSet rs) throws SQLException
+    {
+        return new ResultSetReader(rs.getMetaData()).readAll(rs);
+    }
+
+    /**
+     * Read all rows of the result set.
+     * @param rs result set
+     * @param compact true to read rows as {@link CompactRow}
+     * @return list of row data
+     * @throws SQLException sql exception
+     */
+    public static List<Map<String, Object>> read(ResultSet rs, boolean compact) throws SQLException
+    {
+        return new ResultSetReader(rs.getMetaData(), compact).readAll(rs);
+    }
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Primary key row cache of a db table.
+ *
+ * <pre>
+ * 以主鍵值為 key 快取 findByKey 的結果，每個 table 依 dbi.properties 個別設定，未設定時不啟用：
+ *   dbName.db.rowcache.TABLE_NAME.size = 10000   #最大筆數
+ *   dbName.db.rowcache.TABLE_NAME.ttl  = 60      #秒，0 表示不過期
+ *
+ * 同一 DAO table 的 insert/update/delete/save 會移除對應的 key，
+ * 以自訂條件或 SQL 異動、batch 時無法得知異動的 key，整個 table 的 cache 清除。
+ * 透過其他 table 的 DAO 或其他程式異動資料時不會通知，只能依 ttl 過期。
+ * 在 transaction 中異動的 table，commit 或 rollback 且 connection 釋放之前所有執行緒都不使用 cache，
+ * 自行 setAutoCommit(false) 時請在 commit 或 rollback 後 setAutoCommit(true) 並呼叫 closeConnection。
+ * 主鍵值以數值大小比較 (1 與 1L 視為相同)，字串則完全比對，
+ * 資料庫若是不分大小寫的比對，請使用一致的大小寫，否則只能依 ttl 過期。
+ *
+ * 傳回的資料為 cache 的複本，修改不會影響 cache。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class RowCache
+{
+    private final static Logger log = LoggerFactory.getLogger(RowCache.class);
+
+    static final Map<String, RowCache> caches = new ConcurrentHashMap<String, RowCache>();
+
+    //未啟用的 table
+    private static final RowCache DISABLED = new RowCache("", "", 0, 0);
+
+    private final String dbName;
+    private final String tableName;
+    private final BoundedCache<List<Object>, Map<String, Object>> rows;
+
+    //每次異動加 1，讀取 db 期間若有異動則不放入 cache
+    private final AtomicLong version = new AtomicLong();
+
+    RowCache(String dbName, String tableName, int maxSize, long ttlMillis)
+    {
+        this.dbName = dbName;
+        this.tableName = tableName;
+        this.rows = new BoundedCache<List<Object>, Map<String, Object>>(maxSize, ttlMillis);
+    }
+
+    /**
+     * Get row cache of the table.
+     * @param dbName db name
+     * @param tableName table name
+     * @return row cache, null if not enabled for the table
+     */
+    public static RowCache of(String dbName, String tableName)
+    {
+        if (tableName == null || tableName.isEmpty())
+        {
+            return null;
+        }
+        String name = dbName + "." + tableName;
+        RowCache cache = caches.get(name);
+        if (cache == null)
+        {
+            cache = create(dbName, tableName);
+            RowCache old = caches.putIfAbsent(name, cache);
+            if (old != null)
+            {
+                cache = old;
+            }
+        }
+        return cache == DISABLED ? null : cache;
+    }
+
+    private static RowCache create(String dbName, String tableName)
+    {
+        int size = ConnectionCoordinator.getIntProperty(dbName, "db.rowcache." + tableName + ".size", 0);
+        if (size <= 0)
+        {
+            return DISABLED;
+        }
+        int ttl = ConnectionCoordinator.getIntProperty(dbName, "db.rowcache." + tableName + ".ttl", 0);
+        log.info("row cache enabled " + dbName + "." + tableName + " size=" + size + " ttl=" + ttl);
+        return new RowCache(dbName, tableName, size, ttl * 1000L);
+    }
+
+    /**
+     * Make cache key of the key values.
+     * @param keyNames key column names in fixed order
+     * @param map data map
+     * @return cache key, null if the map does not contain all key values
+     */
+    static List<Object> keyOf(String [] keyNames, Map<String, Object> map)
+    {
+        return keyOf(keyNames, null, map);
+    }
+
+    /**
+     * Key of the row, values are converted to the column type first, see {@link BindingPlan#keyValue(int, Object)}.
+     * @param keyNames sorted key names
+     * @param sqlTypes sql types of the key columns, null to use the values as is
+     * @param map row or key map
+     * @return key, null if the map does not contain all key values
+     */
+    static List<Object> keyOf(String [] keyNames, int [] sqlTypes, Map<String, Object> map)
+    {
+        if (map == null || keyNames.length == 0)
+        {
+            return null;
+        }
+        Object [] values = new Object[keyNames.length];
+        for(int i=0; i < keyNames.length; i++)
+        {
+            Object v = map.get(keyNames[i]);
+            if (v == null)
+            {
+                return null;
+            }
+            values[i] = normalize(sqlTypes == null ? v : BindingPlan.keyValue(sqlTypes[i], v));
+        }
+        return Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    /**
+     * 數值統一為 BigDecimal，讓 Integer 1 與 Long 1 對應到同一個 key。
+     * NaN 與 Infinity 無法轉為 BigDecimal，保持原值。
+     */
+    static Object normalize(Object v)
+    {
+        if (v instanceof Double || v instanceof Float)
+        {
+            double d = ((Number) v).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d))
+            {
+                return v;
+            }
+        }
+        if (v instanceof Number && (v instanceof BigDecimal) == false)
+        {
+            return new BigDecimal(v.toString()).stripTrailingZeros();
+        }
+        if (v instanceof BigDecimal)
+        {
+            return ((BigDecimal) v).stripTrailingZeros();
+        }
+        return v;
+    }
+
+    /**
+     * Copy row, keep the row type.
+     */
+    static Map<String, Object> copyOf(Map<String, Object> row)
+    {
+        if (row instanceof CompactRow)
+        {
+            return ((CompactRow) row).copy();
+        }
+        DataConvertMap<String, Object> ret = new DataConvertMap<String, Object>((int) (row.size() / 0.75f) + 1);
+        ret.putAll(row);
+        return ret;
+    }
+
+    /**
+     * Get cached row.
+     * @param key cache key
+     * @return copy of the cached row, null if not found
+     */
+    Map<String, Object> get(List<Object> key)
+    {
+        Map<String, Object> row = rows.get(key);
+        return row == null ? null : copyOf(row);
+    }
+
+    /**
+     * Get current version, call before reading db.
+     * @return version
+     */
+    long version()
+    {
+        return version.get();
+    }
+
+    /**
+     * Put row read from db, ignored if the table is changed after the version.
+     * @param key cache key
+     * @param row row data
+     * @param readVersion version before reading db
+     */
+    void put(List<Object> key, Map<String, Object> row, long readVersion)
+    {
+        if (row == null || version.get() != readVersion)
+        {
+            return;
+        }
+        rows.put(key, copyOf(row));
+        //放入期間有異動則移除
+        if (version.get() != readVersion)
+        {
+            rows.remove(key);
+        }
+    }
+
+    /**
+     * Remove the row.
+     * @param key cache key, null to clear all rows of the table
+     */
+    void invalidate(List<Object> key)
+    {
+        version.incrementAndGet();
+        if (key == null)
+        {
+            rows.clear();
+        }
+        else
+        {
+            rows.remove(key);
+        }
+    }
+
+    /**
+     * Remove all rows of the table.
+     */
+    public void clear()
+    {
+        invalidate(null);
+    }
+
+    public String getDbName()
+    {
+        return dbName;
+    }
+
+    public String getTableName()
+    {
+        return tableName;
+    }
+
+    public int size()
+    {
+        return rows.size();
+    }
+
+    public long getHitCount()
+    {
+        return rows.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return rows.getMissCount();
+    }
+
+    public long getEvictionCount()
+    {
+        return rows.getEvictionCount() + rows.getExpiredCount();
+    }
+
+    public double getHitRate()
+    {
+        return rows.getHitRate();
+    }
+
+    @Override
+    public String toString()
+    {
+        return dbName + "." + tableName + " " + rows;
+    }
+
+    /**
+     * Get enabled row caches.
+     * @return row caches
+     */
+    public static List<RowCache> getCaches()
+    {
+        List<RowCache> ret = new ArrayList<RowCache>();
+        for(RowCache c : caches.values())
+        {
+            if (c != DISABLED)
+            {
+                ret.add(c);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Remove all cached rows and reload settings on next use.
+     */
+    public static void clearAll()
+    {
+        for(RowCache c : caches.values())
+        {
+            c.clear();
+        }
+        caches.clear();
+    }
+
+}
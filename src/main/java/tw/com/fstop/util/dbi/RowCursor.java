@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Forward only cursor over a query result.
+ *
+ * <pre>
+ * 查詢結果一筆一筆讀取，不會一次全部載入記憶體。
+ * Cursor 開啟期間會持有 connection 與 ResultSet，
+ * 讀完最後一筆或呼叫 {@link #close()} 時釋放。
+ *
+ *   try (RowCursor cursor = dao.openCursorBySQL(sql, map, 500))
+ *   {
+ *       while (cursor.hasNext())
+ *       {
+ *           Map&lt;String, Object&gt; row = cursor.next();
+ *       }
+ *   }
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public class RowCursor implements Iterator<Map<String, Object>>, Closeable
+{
+    private final static Logger log = LoggerFactory.getLogger(RowCursor.class);
+
+    private Connection connection;
+    private JdbcNamedParameterStatement statement;
+    private ResultSet resultSet;
+    private final boolean closeConnection;
+    private final ResultSetReader reader;
+
+    private boolean fetched = false;
+    private boolean hasRow = false;
+    private boolean closed = false;
+    private long rowCount = 0;
+
+    /**
+     * Create cursor.
+     * @param connection db connection
+     * @param statement executed statement
+     * @param resultSet result set of the statement
+     * @param closeConnection close connection when the cursor is closed
+     * @param compact read rows as {@link CompactRow}
+     * @throws SQLException sql exception
+     */
+    RowCursor(Connection connection, JdbcNamedParameterStatement statement, ResultSet resultSet, boolean closeConnection, boolean compact) throws SQLException
+    {
+        this.connection = connection;
+        this.statement = statement;
+        this.resultSet = resultSet;
+        this.closeConnection = closeConnection;
+        this.reader = new ResultSetReader(resultSet.getMetaData(), compact);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (closed)
+        {
+            return false;
+        }
+        if (fetched == false)
+        {
+            try
+            {
+                hasRow = resultSet.next();
+                fetched = true;
+            }
+            catch (SQLException e)
+            {
+                close();
+                throw new RuntimeException("Read result set failed with " + e.getMessage(), e);
+            }
+            if (hasRow == false)
+            {
+                //已讀完，釋放 connection
+                close();
+            }
+        }
+        return hasRow;
+    }
+
+    @Override
+    public Map<String, Object> next()
+    {
+        if (hasNext() == false)
+        {
+            throw new NoSuchElementException();
+        }
+        fetched = false;
+        try
+        {
+            Map<String, Object> row = reader.readRow(resultSet);
+            rowCount++;
+            return row;
+        }
+        catch (SQLException e)
+        {
+            close();
+            throw new RuntimeException("Read result set failed with " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get column labels of the result.
+     * @return column labels
+     */
+    public String [] getColumnLabels()
+    {
+        return reader.getColumnLabels();
+    }
+
+    /**
+     * Get number of rows read.
+     * @return number of rows read
+     */
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Get rows as sequential stream, close the stream to release the cursor.
+     * @return stream of rows
+     */
+    public Stream<Map<String, Object>> stream()
+    {
+        Spliterator<Map<String, Object>> sp = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(sp, false).onClose(this::close);
+    }
+
+    /**
+     * Release result set, statement and connection.
+     */
+    @Override
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        hasRow = false;
+
+        if (resultSet != null)
+        {
+            try { resultSet.close(); } catch (SQLException e) { ; }
+            resultSet = null;
+        }
+        if (statement != null)
+        {
+            try { statement.close(); } catch (SQLException e) { ; }
+            statement = null;
+        }
+        if (connection != null)
+        {
+            if (closeConnection)
+            {
+                StatementCache.remove(connection);
+                try { connection.close(); } catch (SQLException e) { ; }
+            }
+            connection = null;
+        }
+        log.debug("cursor closed, rows=" + rowCount);
+    }
+
+}
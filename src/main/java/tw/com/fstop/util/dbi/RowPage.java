@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of rows read by key order, see {@link BaseJdbcDao#findPage(String, Map, int, String)}.
+ *
+ * <pre>
+ * 以 key 欄位排序，由上一頁最後一筆的 key 值往後讀取 (keyset pagination)，
+ * 不使用 OFFSET，每一頁的成本相同。
+ *
+ *   String token = null;
+ *   do
+ *   {
+ *       RowPage page = dao.findPage(null, null, 500, token);
+ *       for(Map&lt;String, Object&gt; row : page.getRows()) { ... }
+ *       token = page.getNextToken();
+ *   } while (token != null);
+ *
+ * token 為 table 名稱與最後一筆 key 值的 Base64 編碼，只接受數值、字串、日期時間型態的 key。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class RowPage
+{
+    static final int TOKEN_VERSION = 1;
+
+    private final List<Map<String, Object>> rows;
+    private final String nextToken;
+
+    RowPage(List<Map<String, Object>> rows, String nextToken)
+    {
+        this.rows = rows;
+        this.nextToken = nextToken;
+    }
+
+    public List<Map<String, Object>> getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * @return token of the next page, null if this is the last page
+     */
+    public String getNextToken()
+    {
+        return nextToken;
+    }
+
+    public boolean hasNext()
+    {
+        return nextToken != null;
+    }
+
+    /**
+     * Encode key values of the last row.
+     * @param tableName table name
+     * @param values key values in key order
+     * @return token
+     * @throws IOException if a value type is not supported
+     */
+    static String encode(String tableName, Object [] values) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TOKEN_VERSION);
+        out.writeUTF(tableName);
+        out.writeByte(values.length);
+        for(Object v : values)
+        {
+            if (v instanceof String)
+            {
+                out.writeByte('S');
+                out.writeUTF((String) v);
+            }
+            else if (v instanceof Integer || v instanceof Short || v instanceof Byte)
+            {
+                out.writeByte('I');
+                out.writeInt(((Number) v).intValue());
+            }
+            else if (v instanceof Long)
+            {
+                out.writeByte('L');
+                out.writeLong((Long) v);
+            }
+            else if (v instanceof BigDecimal)
+            {
+                out.writeByte('D');
+                out.writeUTF(((BigDecimal) v).toString());
+            }
+            else if (v instanceof Double || v instanceof Float)
+            {
+                out.writeByte('F');
+                out.writeDouble(((Number) v).doubleValue());
+            }
+            else if (v instanceof Timestamp)
+            {
+                out.writeByte('T');
+                out.writeLong(((Timestamp) v).getTime());
+                out.writeInt(((Timestamp) v).getNanos());
+            }
+            else if (v instanceof java.sql.Date)
+            {
+                out.writeByte('d');
+                out.writeLong(((java.sql.Date) v).getTime());
+            }
+            else if (v instanceof java.sql.Time)
+            {
+                out.writeByte('t');
+                out.writeLong(((java.sql.Time) v).getTime());
+            }
+            else
+            {
+                throw new IOException("Key type not supported by page token: " + (v == null ? "null" : v.getClass().getName()));
+            }
+        }
+        out.flush();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decode key values of the token.
+     * @param tableName table name
+     * @param keyCount number of key fields
+     * @param token token
+     * @return key values in key order
+     * @throws IllegalArgumentException if the token is not valid for the table
+     */
+    static Object [] decode(String tableName, int keyCount, String token)
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+            if (in.readByte() != TOKEN_VERSION || tableName.equals(in.readUTF()) == false || in.readByte() != keyCount)
+            {
+                throw new IllegalArgumentException("Page token is not for table " + tableName);
+            }
+            Object [] values = new Object[keyCount];
+            for(int i=0; i < keyCount; i++)
+            {
+                byte type = in.readByte();
+                switch (type)
+                {
+                    case 'S':
+                        values[i] = in.readUTF();
+                        break;
+                    case 'I':
+                        values[i] = in.readInt();
+                        break;
+                    case 'L':
+                        values[i] = in.readLong();
+                        break;
+                    case 'D':
+                        values[i] = new BigDecimal(in.readUTF());
+                        break;
+                    case 'F':
+                        values[i] = in.readDouble();
+                        break;
+                    case 'T':
+                        Timestamp ts = new Timestamp(in.readLong());
+                        ts.setNanos(in.readInt());
+                        values[i] = ts;
+                        break;
+                    case 'd':
+                        values[i] = new java.sql.Date(in.readLong());
+                        break;
+                    case 't':
+                        values[i] = new java.sql.Time(in.readLong());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Page token is not valid");
+                }
+            }
+            return values;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Page token is not valid", e);
+        }
+    }
+
+}
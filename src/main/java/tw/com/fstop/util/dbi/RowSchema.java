@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Column layout shared by all {@link CompactRow} of the same result.
+ *
+ * <pre>
+ * 欄位名稱與位置的對應只建立一次，同一個查詢結果的每筆資料共用。
+ * 欄位名稱重複時 (例如 join 後同名欄位)，與 LinkedHashMap 相同：位置以第一次出現為準，值以最後一個為準。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class RowSchema implements Serializable
+{
+    private static final long serialVersionUID = 2204914410392958871L;
+
+    private final String [] labels;
+    private final Map<String, Integer> index;
+
+    /**
+     * Create schema.
+     * @param labels column labels in result order
+     */
+    public RowSchema(String [] labels)
+    {
+        Map<String, Integer> m = new HashMap<String, Integer>((int) (labels.length / 0.75f) + 1);
+        String [] unique = new String[labels.length];
+        int n = 0;
+        for(int i=0; i < labels.length; i++)
+        {
+            //同名欄位保留第一次出現的位置
+            if (m.containsKey(labels[i]) == false)
+            {
+                m.put(labels[i], n);
+                unique[n++] = labels[i];
+            }
+        }
+        this.labels = n == labels.length ? unique : Arrays.copyOf(unique, n);
+        this.index = m;
+    }
+
+    /**
+     * Get position of the column.
+     * @param key column label
+     * @return position, or -1 if not found
+     */
+    public int indexOf(Object key)
+    {
+        Integer i = index.get(key);
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Get column label of the position.
+     * @param i position
+     * @return column label
+     */
+    public String getLabel(int i)
+    {
+        return labels[i];
+    }
+
+    public int size()
+    {
+        return labels.length;
+    }
+
+    public String [] getLabels()
+    {
+        return labels.clone();
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(labels);
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+/**
+ * Generated SQL statement template of a db table.
+ *
+ * <pre>
+ * 由 {@link BaseJdbcDao} 依照 table meta-data 與欄位組合產生的 SQL，
+ * 產生後存放於 {@link SqlTemplateCache}，由所有 DAO instance 共用。
+ * 依 meta-data 產生的 SQL 同時帶有參數的 {@link BindingPlan}。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public class SqlTemplate
+{
+    /**
+     * Kind of generated statement.
+     */
+    public enum Operation
+    {
+        INSERT,
+        INSERT_ALL,
+        UPDATE,
+        UPDATE_BY_KEY,
+        FIND_BY_KEY,
+        DELETE_BY_KEY,
+        KEY_CONDITION,
+        EQUAL_CONDITION,
+        MERGE
+    }
+
+    private final Operation operation;
+    private final String sql;
+    private final BindingPlan bindingPlan;
+
+    public SqlTemplate(Operation operation, String sql)
+    {
+        this(operation, sql, null);
+    }
+
+    public SqlTemplate(Operation operation, String sql, BindingPlan bindingPlan)
+    {
+        this.operation = operation;
+        this.sql = sql;
+        this.bindingPlan = bindingPlan;
+    }
+
+    public Operation getOperation()
+    {
+        return operation;
+    }
+
+    public String getSql()
+    {
+        return sql;
+    }
+
+    /**
+     * Get parameter binding plan.
+     * @return binding plan, null if the template is not a complete statement
+     */
+    public BindingPlan getBindingPlan()
+    {
+        return bindingPlan;
+    }
+
+    @Override
+    public String toString()
+    {
+        return sql;
+    }
+
+}
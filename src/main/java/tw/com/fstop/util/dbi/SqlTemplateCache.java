@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global cache of generated CRUD SQL.
+ *
+ * <pre>
+ * Cache key 為 (db name, table name, operation, hint, 排序後的欄位集合)。
+ * 欄位集合固定排序，所以不同 map 的 key 順序會共用同一份 SQL。
+ *
+ * Table meta-data 重新載入時必需呼叫 {@link #invalidate(String, String)}。
+ * 欄位集合來自呼叫端的 map，為避免無限成長，以 LRU 限制數量，
+ * 可用 system property dbi.sqltemplate.cache.size 設定，預設 4096。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class SqlTemplateCache
+{
+    static final String [] NO_COLUMNS = new String[0];
+
+    static final int CACHE_SIZE = Integer.getInteger("dbi.sqltemplate.cache.size", 4096);
+
+    static final BoundedCache<Key, SqlTemplate> templates = new BoundedCache<Key, SqlTemplate>(CACHE_SIZE);
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+
+    private SqlTemplateCache()
+    {
+    }
+
+    /**
+     * Get cached template.
+     * @param key cache key
+     * @return cached template or null if not found
+     */
+    static SqlTemplate get(Key key)
+    {
+        SqlTemplate t = templates.get(key);
+        if (t == null)
+        {
+            misses.increment();
+        }
+        else
+        {
+            hits.increment();
+        }
+        return t;
+    }
+
+    /**
+     * Put template into cache.
+     * @param key cache key
+     * @param template sql template
+     */
+    static void put(Key key, SqlTemplate template)
+    {
+        templates.put(key, template);
+    }
+
+    /**
+     * Sorted column names of parameter map.
+     * @param map parameter map
+     * @return sorted column names
+     */
+    static String [] columnsOf(Map<String, Object> map)
+    {
+        if (map == null || map.isEmpty())
+        {
+            return NO_COLUMNS;
+        }
+        String [] cols = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(cols);
+        return cols;
+    }
+
+    /**
+     * Remove all templates of the table.
+     * @param dbName db name
+     * @param tableName table name
+     */
+    public static void invalidate(String dbName, String tableName)
+    {
+        templates.removeIf(k -> k.dbName.equals(dbName) && k.tableName.equals(tableName));
+    }
+
+    /**
+     * Remove all templates.
+     */
+    public static void clear()
+    {
+        templates.clear();
+    }
+
+    public static int size()
+    {
+        return templates.size();
+    }
+
+    public static long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public static long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Get cache hit rate.
+     * @return hit rate between 0 and 1, 1 if there is no request yet
+     */
+    public static double getHitRate()
+    {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    public static void resetStats()
+    {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Cache key.
+     */
+    static final class Key
+    {
+        final String dbName;
+        final String tableName;
+        final SqlTemplate.Operation operation;
+        final boolean hint;
+        final String [] columns;
+        final int hash;
+
+        Key(String dbName, String tableName, SqlTemplate.Operation operation, boolean hint, String [] columns)
+        {
+            this.dbName = dbName;
+            this.tableName = tableName;
+            this.operation = operation;
+            this.hint = hint;
+            this.columns = columns;
+
+            int h = dbName.hashCode();
+            h = 31 * h + tableName.hashCode();
+            h = 31 * h + operation.hashCode();
+            h = 31 * h + (hint ? 1 : 0);
+            h = 31 * h + Arrays.hashCode(columns);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+
+            Key k = (Key) obj;
+            return hash == k.hash
+                    && operation == k.operation
+                    && hint == k.hint
+                    && tableName.equals(k.tableName)
+                    && dbName.equals(k.dbName)
+                    && Arrays.equals(columns, k.columns);
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LRU cache of idle PreparedStatement, scoped to a connection.
+ *
+ * <pre>
+ * Statement 在 DAO 取得的 connection (pool 的 proxy) 上 prepare，
+ * 由 pool 追蹤 statement、偵測錯誤及 leak，歸還 pool 時由 pool 關閉。
+ * 因此 cache 只在同一次取得的 connection 內重複使用 statement，
+ * DAO 只在跨多個操作持有 connection 時使用 ({@link DbTransaction} 或 DAO 自行設定的 transaction)，
+ * 不提供跨 DAO 呼叫 (每次呼叫歸還 connection) 的重複使用。
+ * 跨 connection 的重複使用由 pool 或 driver 的 statement cache 提供：
+ * c3p0 設定 maxStatementsPerConnection，Hikari 沒有 statement cache，
+ * 由 {@link HikariDataSourceProvider} 開啟 driver 的 statement cache。
+ *
+ * 使用中的 statement 會從 cache 移出 (take)，用完後再放回 (release)，
+ * 放回時會 clearParameters 與 clearBatch。超過容量時關閉最久未使用的 statement。
+ * DAO 關閉 connection 前呼叫 {@link #remove(Connection)} 移除其 cache，
+ * 其他方式關閉的 connection 在放回 statement 或建立新的 cache 時清除。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+public final class StatementCache
+{
+    private final static Logger log = LoggerFactory.getLogger(StatementCache.class);
+
+    static final Map<Connection, StatementCache> caches = new ConcurrentHashMap<Connection, StatementCache>();
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+    static final LongAdder evictions = new LongAdder();
+
+    //cache 個數超過時才檢查已關閉的 connection，檢查後設為剩餘個數的兩倍
+    static final int PURGE_THRESHOLD = 64;
+    private static volatile int purgeAt = PURGE_THRESHOLD;
+
+    private final LinkedHashMap<Key, PreparedStatement> idle;
+
+    private StatementCache(final int capacity)
+    {
+        this.idle = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest)
+            {
+                if (size() > capacity)
+                {
+                    evictions.increment();
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get statement cache of the connection.
+     * @param connection db connection
+     * @param capacity max idle statements
+     * @return statement cache
+     */
+    static StatementCache of(Connection connection, int capacity)
+    {
+        StatementCache cache = caches.get(connection);
+        if (cache == null)
+        {
+            //DAO 關閉 connection 前會 remove，只有未經 DAO 關閉的 connection 需要清除
+            if (caches.size() >= purgeAt)
+            {
+                purgeClosed();
+                purgeAt = Math.max(PURGE_THRESHOLD, caches.size() * 2);
+            }
+            cache = new StatementCache(capacity);
+            StatementCache old = caches.putIfAbsent(connection, cache);
+            if (old != null)
+            {
+                cache = old;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Remove cache of the connection and close its idle statements, call before closing the connection.
+     * @param connection db connection
+     */
+    static void remove(Connection connection)
+    {
+        if (connection == null)
+        {
+            return;
+        }
+        StatementCache cache = caches.remove(connection);
+        if (cache != null)
+        {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Remove caches of closed connections.
+     */
+    static void purgeClosed()
+    {
+        Iterator<Map.Entry<Connection, StatementCache>> it = caches.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Connection, StatementCache> entry = it.next();
+            boolean closed = true;
+            try
+            {
+                closed = entry.getKey().isClosed();
+            }
+            catch (SQLException e)
+            {
+                //視為已關閉
+            }
+            if (closed)
+            {
+                it.remove();
+                entry.getValue().clear();
+            }
+        }
+    }
+
+    /**
+     * Take an idle statement out of cache.
+     * @param key statement key
+     * @return statement or null if not found
+     */
+    synchronized PreparedStatement take(Key key)
+    {
+        PreparedStatement ps = idle.remove(key);
+        if (ps == null)
+        {
+            misses.increment();
+        }
+        else
+        {
+            hits.increment();
+        }
+        return ps;
+    }
+
+    /**
+     * Return a statement to cache.
+     * @param connection connection of the statement
+     * @param key statement key
+     * @param ps statement
+     */
+    void release(Connection connection, Key key, PreparedStatement ps)
+    {
+        boolean closed = true;
+        try
+        {
+            closed = connection.isClosed();
+        }
+        catch (SQLException e)
+        {
+            //視為已關閉
+        }
+        if (closed)
+        {
+            closeQuietly(ps);
+            remove(connection);
+            return;
+        }
+        release(key, ps);
+    }
+
+    private synchronized void release(Key key, PreparedStatement ps)
+    {
+        try
+        {
+            ps.clearParameters();
+            ps.clearBatch();
+        }
+        catch (SQLException e)
+        {
+            closeQuietly(ps);
+            return;
+        }
+
+        PreparedStatement old = idle.put(key, ps);
+        if (old != null && old != ps)
+        {
+            closeQuietly(old);
+        }
+    }
+
+    /**
+     * Close all idle statements.
+     */
+    synchronized void clear()
+    {
+        for(PreparedStatement ps : idle.values())
+        {
+            closeQuietly(ps);
+        }
+        idle.clear();
+    }
+
+    synchronized int size()
+    {
+        return idle.size();
+    }
+
+    static void closeQuietly(PreparedStatement ps)
+    {
+        try { ps.close(); } catch (SQLException e) { ; }
+    }
+
+    /**
+     * Close cached statements of all connections.
+     */
+    public static void clearAll()
+    {
+        Iterator<StatementCache> it = caches.values().iterator();
+        while (it.hasNext())
+        {
+            it.next().clear();
+            it.remove();
+        }
+    }
+
+    public static long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    public static long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    public static long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Statement key, rewritten sql and result set type.
+     */
+    static final class Key
+    {
+        final String sql;
+        final int resultSetType;
+        final int resultSetConcurrency;
+
+        Key(String sql, int resultSetType, int resultSetConcurrency)
+        {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (sql.hashCode() * 31 + resultSetType) * 31 + resultSetConcurrency;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj) return true;
+            if (!(obj instanceof Key)) return false;
+
+            Key k = (Key) obj;
+            return resultSetType == k.resultSetType
+                    && resultSetConcurrency == k.resultSetConcurrency
+                    && sql.equals(k.sql);
+        }
+    }
+
+}
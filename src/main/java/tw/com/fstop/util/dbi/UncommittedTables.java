@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tables changed by transactions not yet committed.
+ *
+ * <pre>
+ * DAO 在 transaction 中 (DbTransaction 或 DAO connection 設定 setAutoCommit(false)) 異動 table 時登記，
+ * commit 或 rollback 後 connection 釋放時移除。
+ * 在 finish 才 commit 的 {@link BatchWriter} 於第一次 flush 時登記，close 時移除。
+ * 登記期間所有執行緒都不使用該 table 的 row cache 與 query cache，
+ * 以免其他執行緒 (例如使用 with (nolock) 查詢) 將未 commit 的資料放入 cache。
+ * 未釋放的 connection 會使該 table 一直不使用 cache。
+ * </pre>
+ *
+ * @since 1.0.3
+ */
+final class UncommittedTables
+{
+    //dbName.tableName -> 異動中的 transaction 數
+    private static final Map<String, Integer> tables = new ConcurrentHashMap<String, Integer>();
+
+    private UncommittedTables()
+    {
+    }
+
+    static String keyOf(String dbName, String tableName)
+    {
+        return QueryCache.tableKey(dbName, tableName);
+    }
+
+    /**
+     * Register a transaction changing the table.
+     * @param dbName db name
+     * @param tableName table name
+     */
+    static void add(String dbName, String tableName)
+    {
+        tables.merge(keyOf(dbName, tableName), 1, Integer::sum);
+    }
+
+    /**
+     * Unregister a transaction changing the table, after it is committed or rolled back.
+     * @param dbName db name
+     * @param tableName table name
+     */
+    static void remove(String dbName, String tableName)
+    {
+        tables.computeIfPresent(keyOf(dbName, tableName), (k, v) -> v > 1 ? v - 1 : null);
+    }
+
+    /**
+     * @param dbName db name
+     * @param tableName table name
+     * @return true if a transaction changing the table is not yet committed
+     */
+    static boolean contains(String dbName, String tableName)
+    {
+        return tables.isEmpty() == false && tables.containsKey(keyOf(dbName, tableName));
+    }
+
+    /**
+     * @param dbName db name
+     * @param tableNames table names
+     * @return true if any of the tables is changed by a transaction not yet committed
+     */
+    static boolean containsAny(String dbName, String [] tableNames)
+    {
+        if (tables.isEmpty())
+        {
+            return false;
+        }
+        for(String t : tableNames)
+        {
+            if (tables.containsKey(keyOf(dbName, t)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -17,19 +17,31 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import javax.sql.DataSource;
 
 import org.hsqldb.persist.HsqlProperties;
 import org.hsqldb.server.Server;
 import org.hsqldb.server.ServerAcl.AclFormatException;
-import org.junit.After;
-import org.junit.Before;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.zaxxer.hikari.HikariDataSource;
+
 import static org.assertj.core.api.Assertions.*;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -38,17 +50,17 @@ import static org.junit.Assert.assertTrue;
 public class BaseJdbcDaoTest
 {
     
-    Server server1;
-    Server server2;
+    static Server server1;
+    static Server server2;
     
     /**
-     * Setup and start db servers
+     * Setup and start db servers, once for all tests since the connection pools are static.
      *  
      * @throws IOException io exception
      * @throws AclFormatException acl exception
      */
-    @Before    
-    public void setup() throws IOException, AclFormatException 
+    @BeforeClass
+    public static void setup() throws IOException, AclFormatException 
     {
         
         Properties prop = new Properties();
@@ -84,8 +96,8 @@ public class BaseJdbcDaoTest
      * Shutdown db servers.
      * 
      */
-    @After
-    public void tearDown() 
+    @AfterClass
+    public static void tearDown() 
     {
         server1.stop();
         server2.stop();
@@ -335,4 +347,728 @@ public class BaseJdbcDaoTest
         
     }
     
+    @Test
+    public void testCursor()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setDbName("test");
+        dao.setTableName("TEST2");
+        dao.deleteByWhere("", null);  //delete all
+        
+        Map<String, Object> map;
+        for(int i=0; i < 25; i++)
+        {
+            map = new HashMap<String, Object>();
+            map.put("T1", i);
+            map.put("T2", "v" + i);
+            dao.insert(map);
+        }
+        
+        int cnt = 0;
+        RowCursor cursor = dao.openCursor(null, null, 10);
+        try
+        {
+            while (cursor.hasNext())
+            {
+                Map<String, Object> row = cursor.next();
+                assertThat(row.get("T2").toString()).isEqualTo("v" + row.get("T1"));
+                cnt++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        assertThat(cnt).isEqualTo(25);
+        assertTrue(cursor.isClosed());
+        
+        map = new HashMap<String, Object>();
+        map.put("T1", 10);
+        final List<Object> values = new ArrayList<Object>();
+        long rows = dao.forEachBySQL("select T1 from TEST2 where T1 >= :T1 order by T1", map, 5, row -> values.add(row.get("T1")));
+        assertThat(rows).isEqualTo(15L);
+        assertThat(values.size()).isEqualTo(15);
+        assertThat(values.get(0).toString()).isEqualTo("10");
+        
+        //dao still works after cursor released connection
+        assertThat(dao.getRecordCount(null, null)).isEqualTo(25L);
+    }
+    
+    @Test
+    public void testColumnar()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setDbName("test");
+        dao.setTableName("TEST2");
+        dao.deleteByWhere("", null);  //delete all
+        
+        Map<String, Object> map;
+        for(int i=0; i < 10; i++)
+        {
+            map = new HashMap<String, Object>();
+            map.put("T1", i);
+            map.put("T2", "v" + i);
+            dao.insert(map);
+        }
+        
+        ColumnarResult r = dao.findColumnarBySQL("select T1, T2, case when T1 > 4 then T1 end as N from TEST2 order by T1", null);
+        assertThat(r.getRowCount()).isEqualTo(10);
+        assertThat(r.getColumnCount()).isEqualTo(3);
+        
+        int t1 = r.findColumn("T1");
+        int n = r.findColumn("N");
+        assertThat(r.getIntColumn(t1)).isNotNull();
+        long sum = 0;
+        for(int i=0; i < r.getRowCount(); i++)
+        {
+            sum += r.getLong(i, t1);
+        }
+        assertThat(sum).isEqualTo(45L);
+        assertTrue(r.isNull(0, n));
+        assertThat(r.getInt(0, n)).isEqualTo(0);
+        assertThat(r.getInt(9, n)).isEqualTo(9);
+        assertThat(r.getObject(3, r.findColumn("T2"))).isEqualTo("v3");
+    }
+    
+    @Test
+    public void testRowCache() throws SQLException
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        dao.deleteByWhere("", null);  //delete all
+        
+        RowCache cache = dao.getRowCache();
+        assertThat(cache).isNotNull();
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("T1", 100);
+        map.put("T2", "a");
+        dao.insert(map);
+        
+        Map<String, Object> key = new HashMap<String, Object>();
+        key.put("T1", 100);
+        dao.findByKey(key);
+        long hit = cache.getHitCount();
+        Map<String, Object> data = dao.findByKey(key);
+        assertThat(cache.getHitCount()).isEqualTo(hit + 1);
+        assertThat(data.get("T2")).isEqualTo("a");
+        
+        //傳回的是複本
+        data.put("T2", "x");
+        assertThat(dao.findByKey(key).get("T2")).isEqualTo("a");
+        
+        //不同數值型別視為相同 key
+        key.put("T1", 100L);
+        assertTrue(dao.isKeyExist(key));
+        assertThat(cache.getHitCount()).isEqualTo(hit + 3);
+        
+        map.put("T2", "b");
+        dao.update(null, map);
+        assertThat(dao.findByKey(key).get("T2")).isEqualTo("b");
+        
+        dao.deleteByKey(map);
+        assertThat(dao.findByKey(key)).isNull();
+        
+        //自行設定 transaction 時，commit 或 rollback 前所有 DAO 都不使用該 table 的 cache
+        map.put("T2", "c");
+        dao.insert(map);
+        CommonDao other = new CommonDao();
+        other.setTableName("TEST1");
+        other.findByKey(key);
+        Connection conn = dao.getDbConnection();
+        conn.setAutoCommit(false);
+        map.put("T2", "d");
+        assertThat(dao.update(null, map)).isEqualTo(1);
+        assertTrue(UncommittedTables.contains(dao.getDbName(), "TEST1"));
+        assertNull(other.getReadRowCache());
+        assertNull(other.getQueryCache(new String [] {"TEST1"}));
+        conn.rollback();
+        conn.setAutoCommit(true);
+        dao.closeConnection();
+        assertThat(UncommittedTables.contains(dao.getDbName(), "TEST1")).isFalse();
+        assertThat(other.getReadRowCache()).isSameAs(cache);
+        assertThat(other.findByKey(key).get("T2")).isEqualTo("c");
+        dao.deleteByKey(map);
+        
+        //NaN 與 Infinity 不轉為 BigDecimal
+        assertThat(RowCache.normalize(Double.NaN)).isEqualTo(Double.NaN);
+        assertThat(RowCache.normalize(Float.NEGATIVE_INFINITY)).isEqualTo(Float.NEGATIVE_INFINITY);
+        assertThat(RowCache.normalize(1.5d)).isEqualTo(new BigDecimal("1.5"));
+    }
+    
+    @Test
+    public void testQueryCache()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setDbName("test");
+        dao.setTableName("TEST2");
+        dao.deleteByWhere("", null);  //delete all
+        
+        QueryCache cache = dao.getQueryCache();
+        assertThat(cache).isNotNull();
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("T1", 1);
+        map.put("T2", "a");
+        dao.insert(map);
+        
+        Map<String, Object> cond = new HashMap<String, Object>();
+        cond.put("T2", "a");
+        String where = " where T2 = :T2";
+        assertThat(dao.find(where, cond).size()).isEqualTo(1);
+        long hit = cache.getHitCount();
+        assertThat(dao.find(where, cond).size()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(hit + 1);
+        
+        //參數名稱錯誤時與實際執行相同失敗，不使用 cache 的結果
+        Map<String, Object> wrong = new HashMap<String, Object>(cond);
+        wrong.put("T3", "x");
+        assertNull(dao.find(where, wrong));
+        wrong.clear();
+        wrong.put("t2", "a");
+        assertNull(dao.find(where, wrong));
+        assertThat(cache.getHitCount()).isEqualTo(hit + 1);
+        
+        //異動後失效
+        map.put("T1", 2);
+        dao.insert(map);
+        assertThat(dao.find(where, cond).size()).isEqualTo(2);
+        
+        //custom sql 需宣告相依 table
+        String sql = "select * from TEST2 where T2 = :T2";
+        dao.findBySQL(sql, cond, "TEST2");
+        hit = cache.getHitCount();
+        assertThat(dao.findBySQL(sql, cond, "TEST2").size()).isEqualTo(2);
+        assertThat(cache.getHitCount()).isEqualTo(hit + 1);
+        dao.findBySQL(sql, cond);
+        assertThat(cache.getHitCount()).isEqualTo(hit + 1);
+        
+        dao.deleteByWhere(where, cond);
+        assertThat(dao.findBySQL(sql, cond, "TEST2").size()).isEqualTo(0);
+    }
+    
+    @Test
+    public void testPreload()
+    {
+        assertThat(DbTableCache.preloadAll()).isGreaterThanOrEqualTo(2);
+        
+        DbTable table = DbTableCache.get("_default", "TEST1");
+        assertThat(table).isNotNull();
+        assertThat(table.getFields().keySet()).containsExactly("T1", "T2");
+        assertThat(table.getKeyFields().keySet()).containsExactly("T1");
+        assertThat(DbTableCache.get("test", "TEST2").getKeyFields().keySet()).containsExactly("T1");
+        
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        assertThat(dao.getTable()).isSameAs(table);
+    }
+    
+    @Test
+    public void testMetadataRefresh()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setDbName("test");
+        dao.setTableName("TEST2");
+        DbTable table = dao.getTable();
+        assertThat(table.getFields().containsKey("T3")).isFalse();
+        
+        //沒有變更時保留原來的 snapshot
+        assertThat(DbTableCache.checkFingerprints("test")).isEqualTo(0);
+        assertThat(dao.getTable()).isSameAs(table);
+        
+        dao.updateEx("ALTER TABLE TEST2 ADD COLUMN T3 VARCHAR(10)", null);
+        try
+        {
+            assertThat(DbTableCache.checkFingerprints("test")).isGreaterThanOrEqualTo(1);
+            assertThat(dao.getFields().keySet()).containsExactly("T1", "T2", "T3");
+            assertThat(dao.getKeyFields().keySet()).containsExactly("T1");
+        }
+        finally
+        {
+            dao.updateEx("ALTER TABLE TEST2 DROP COLUMN T3", null);
+        }
+        DbTableCache.checkFingerprints("test");
+        assertThat(dao.getFields().keySet()).containsExactly("T1", "T2");
+        
+        //未設定 schema 時，其他 schema 的同名 table 不檢查，也不會每次重新載入
+        dao.updateEx("CREATE SCHEMA OTHER", null);
+        dao.updateEx("CREATE TABLE OTHER.TEST2 (X INTEGER)", null);
+        try
+        {
+            table = dao.getTable();
+            assertThat(DbTableCache.checkFingerprints("test")).isEqualTo(0);
+            assertThat(dao.getTable()).isSameAs(table);
+        }
+        finally
+        {
+            dao.updateEx("DROP SCHEMA OTHER CASCADE", null);
+        }
+    }
+    
+    @Test
+    public void testConnectionPool() throws Exception
+    {
+        ConnectionCoordinator.stop("test");
+        
+        //同時第一次使用只建立一個 pool
+        final Set<DataSource> pools = Collections.newSetFromMap(new IdentityHashMap<DataSource, Boolean>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i < 8; i++)
+        {
+            Thread t = new Thread(() -> {
+                DataSource ds = ConnectionCoordinator.getPooledDbConnectionInfo("test", "TEST2").getDataSource();
+                synchronized (pools)
+                {
+                    pools.add(ds);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+        assertThat(pools.size()).isEqualTo(1);
+        assertThat(ConnectionCoordinator.getStartedDbNames()).contains("test");
+        
+        ConnectionCoordinator.stop("test");
+        assertThat(ConnectionCoordinator.getStartedDbNames()).doesNotContain("test");
+        assertThat(ConnectionCoordinator.start("test")).isTrue();
+        
+        CommonDao dao = new CommonDao();
+        dao.setDbName("test");
+        dao.setTableName("TEST2");
+        assertThat(dao.getRecordCount("", null)).isGreaterThanOrEqualTo(0);
+    }
+    
+    @Test
+    public void testSharedDao() throws Exception
+    {
+        final CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        dao.setShared(true);
+        
+        final AtomicInteger ok = new AtomicInteger();
+        final AtomicInteger leaked = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i < 8; i++)
+        {
+            final int base = 1000 + i * 100;
+            Thread t = new Thread(() -> {
+                for(int j=0; j < 20; j++)
+                {
+                    Map<String, Object> map = new HashMap<String, Object>();
+                    map.put("T1", base + j);
+                    map.put("T2", "shared" + j);
+                    if (dao.insert(map) == 1 && 
+                        ("shared" + j).equals(dao.findByKey(map).get("T2")) &&
+                        dao.deleteByKey(map) == 1)
+                    {
+                        ok.incrementAndGet();
+                    }
+                }
+                //每個執行緒結束時不持有 connection，也不留下狀態
+                if (dao.peekState() != null)
+                {
+                    leaked.incrementAndGet();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+        assertThat(ok.get()).isEqualTo(160);
+        assertThat(leaked.get()).isEqualTo(0);
+        
+        HikariDataSource ds = (HikariDataSource) ConnectionCoordinator.getPooledDbConnectionInfo("_default", "TEST1").getDataSource();
+        assertThat(ds.getHikariPoolMXBean().getActiveConnections()).isEqualTo(0);
+        
+        //唯讀的檢查不建立執行緒的狀態
+        assertThat(dao.inTransaction()).isFalse();
+        assertNull(dao.peekState());
+    }
+    
+    @Test
+    public void testStatementCacheScope() throws Exception
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        //每次呼叫歸還 connection，不建立 statement cache
+        long hits = StatementCache.getHitCount();
+        long misses = StatementCache.getMissCount();
+        dao.getRecordCount(" where T1 >= 0", null);
+        dao.getRecordCount(" where T1 >= 0", null);
+        assertThat(StatementCache.getHitCount()).isEqualTo(hits);
+        assertThat(StatementCache.getMissCount()).isEqualTo(misses);
+        
+        //transaction 持有 connection，重複使用 statement
+        try (DbTransaction tx = DbTransaction.begin(dao.getDbName()))
+        {
+            dao.getRecordCount(" where T1 >= 0", null);
+            dao.getRecordCount(" where T1 >= 0", null);
+            assertThat(StatementCache.getMissCount()).isEqualTo(misses + 1);
+            assertThat(StatementCache.getHitCount()).isEqualTo(hits + 1);
+            assertThat(StatementCache.caches).containsKey(tx.getConnection());
+            tx.commit();
+            assertThat(StatementCache.caches).doesNotContainKey(tx.getConnection());
+        }
+    }
+    
+    @Test
+    public void testTransaction() throws Exception
+    {
+        final CommonDao dao1 = new CommonDao();
+        dao1.setTableName("TEST1");
+        final CommonDao dao2 = new CommonDao();
+        dao2.setTableName("TEST1");
+        
+        final Map<String, Object> m1 = new HashMap<String, Object>();
+        m1.put("T1", 2001);
+        m1.put("T2", "tx1");
+        final Map<String, Object> m2 = new HashMap<String, Object>();
+        m2.put("T1", 2002);
+        m2.put("T2", "tx2");
+        
+        //未 commit 時 rollback
+        try (DbTransaction tx = DbTransaction.begin("_default"))
+        {
+            assertThat(dao1.insert(m1)).isEqualTo(1);
+            assertThat(dao2.insert(m2)).isEqualTo(1);
+            assertThat(dao1.getDbConnection()).isSameAs(tx.getConnection());
+            assertThat(dao2.findByKey(m1)).isNotNull();
+            assertTrue(UncommittedTables.contains("_default", "TEST1"));
+        }
+        assertThat(DbTransaction.isActive("_default")).isFalse();
+        assertThat(UncommittedTables.contains("_default", "TEST1")).isFalse();
+        assertThat(dao1.findByKey(m1)).isNull();
+        assertThat(dao2.findByKey(m2)).isNull();
+        
+        //兩個 DAO 一次 commit
+        int count = DbTransaction.execute("_default", () -> dao1.insert(m1) + dao2.insert(m2));
+        assertThat(count).isEqualTo(2);
+        assertThat(dao1.findByKey(m2).get("T2")).isEqualTo("tx2");
+        
+        //異動失敗時 rollback
+        try
+        {
+            DbTransaction.execute("_default", () -> {
+                dao1.deleteByKey(m1);
+                return dao2.insert(m2);  //duplicate key
+            });
+            fail("transaction should be rolled back");
+        }
+        catch (SQLException e)
+        {
+        }
+        assertThat(dao1.findByKey(m1)).isNotNull();
+        
+        dao1.deleteByKey(m1);
+        dao1.deleteByKey(m2);
+        assertThat(dao1.state().isIdle()).isTrue();
+    }
+    
+    @Test
+    public void testBatchWriter() throws Exception
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        final List<BatchWriter.Progress> chunks = new ArrayList<BatchWriter.Progress>();
+        long total;
+        try (BatchWriter writer = dao.openBatchWriter())
+        {
+            writer.setChunkSize(1000);
+            writer.setListener(p -> chunks.add(p));
+            total = writer.writeAll(IntStream.range(0, 2500).mapToObj(i -> {
+                Map<String, Object> map = new HashMap<String, Object>();
+                map.put("T1", 10000 + i);
+                map.put("T2", "batch" + i);
+                return map;
+            }));
+        }
+        assertThat(total).isEqualTo(2500);
+        assertThat(chunks.size()).isEqualTo(3);
+        assertThat(chunks.get(2).getRows()).isEqualTo(500);
+        assertThat(chunks.get(2).getTotalRows()).isEqualTo(2500);
+        assertThat(dao.getRecordCount(" where T1 >= 10000", null)).isEqualTo(2500);
+        assertThat(dao.state().isIdle()).isTrue();
+        
+        //未 finish 的資料 rollback，已 commit 的 chunk 保留
+        try (BatchWriter writer = dao.openBatchWriter("delete from TEST1 where T1 = :T1"))
+        {
+            writer.setChunkSize(2000);
+            for(int i=0; i < 2500; i++)
+            {
+                Map<String, Object> map = new HashMap<String, Object>();
+                map.put("T1", 10000 + i);
+                writer.add(map);
+            }
+        }
+        assertThat(dao.getRecordCount(" where T1 >= 10000", null)).isEqualTo(500);
+        
+        dao.updateEx("delete from TEST1 where T1 >= 10000", null);
+    }
+    
+    @Test
+    public void testBatchWriterCommitAtEnd() throws Exception
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        Map<String, Object> m = new HashMap<String, Object>();
+        m.put("T1", 15000);
+        m.put("T2", "old");
+        assertThat(dao.insert(m)).isEqualTo(1);
+        Map<String, Object> old = dao.findByKey(m);
+        assertThat(old.get("T2")).isEqualTo("old");
+        RowCache rowCache = dao.getRowCache();
+        assertThat(rowCache.get(dao.getKey(m))).isNotNull();
+        
+        try (BatchWriter writer = dao.openBatchWriter("update TEST1 set T2 = :T2 where T1 = :T1"))
+        {
+            writer.setCommitPerChunk(false);
+            Map<String, Object> u = new HashMap<String, Object>();
+            u.put("T1", 15000);
+            u.put("T2", "new");
+            writer.add(u);
+            writer.flush();
+            //finish 前 table 不使用 cache
+            assertThat(UncommittedTables.contains(dao.getDbName(), "TEST1")).isTrue();
+            assertThat(dao.getReadRowCache()).isNull();
+            //commit 前其他執行緒讀到舊資料並放入 row cache
+            rowCache.put(dao.getKey(m), old, rowCache.version());
+            assertThat(rowCache.get(dao.getKey(m))).isNotNull();
+            writer.finish();
+        }
+        assertThat(UncommittedTables.contains(dao.getDbName(), "TEST1")).isFalse();
+        assertThat(rowCache.get(dao.getKey(m))).isNull();
+        assertThat(dao.findByKey(m).get("T2")).isEqualTo("new");
+        
+        dao.deleteByKey(m);
+    }
+    
+    @Test
+    public void testInsertAll()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for(int i=0; i < 2500; i++)
+        {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("T1", 20000 + i);
+            if (i % 2 == 0)
+            {
+                map.put("T2", "bulk" + i);
+            }
+            list.add(map);
+        }
+        assertThat(dao.insertAll(list)).isEqualTo(2500);
+        assertThat(dao.getRecordCount(" where T1 >= 20000", null)).isEqualTo(2500);
+        assertThat(dao.getRecordCount(" where T1 >= 20000 and T2 is null", null)).isEqualTo(1250);
+        
+        //重複 key 時全部 rollback
+        List<Map<String, Object>> dup = new ArrayList<Map<String, Object>>();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("T1", 30000);
+        dup.add(map);
+        dup.add(list.get(0));
+        assertThat(dao.insertAll(dup)).isEqualTo(0);
+        assertThat(dao.getRecordCount(" where T1 = 30000", null)).isEqualTo(0);
+        assertThat(dao.state().isIdle()).isTrue();
+        
+        dao.updateEx("delete from TEST1 where T1 >= 20000", null);
+    }
+    
+    @Test
+    public void testSaveAll()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        assertThat(dao.getDialect().isMerge()).isTrue();
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("T1", 40000);
+        map.put("T2", "save1");
+        assertThat(dao.save(map)).isEqualTo(1);
+        map.put("T2", "save2");
+        assertThat(dao.save(map)).isEqualTo(1);
+        assertThat(dao.findByKey(map).get("T2")).isEqualTo("save2");
+        
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for(int i=0; i < 1500; i++)
+        {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("T1", 40000 + i);
+            m.put("T2", "all" + i);
+            list.add(m);
+        }
+        assertThat(dao.saveAll(list)).isEqualTo(1500);
+        assertThat(dao.findByKey(map).get("T2")).isEqualTo("all0");
+        assertThat(dao.getRecordCount(" where T1 >= 40000", null)).isEqualTo(1500);
+        
+        //沒有 key 欄位時全部 rollback
+        list.get(0).put("T2", "rollback");
+        list.get(1).remove("T1");
+        assertThat(dao.saveAll(list)).isEqualTo(0);
+        assertThat(dao.findByKey(map).get("T2")).isEqualTo("all0");
+        assertThat(dao.state().isIdle()).isTrue();
+        
+        dao.updateEx("delete from TEST1 where T1 >= 40000", null);
+    }
+    
+    @Test
+    public void testFindByKeys()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for(int i=0; i < 1500; i++)
+        {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("T1", 50000 + i);
+            m.put("T2", "keys" + i);
+            list.add(m);
+        }
+        assertThat(dao.insertAll(list)).isEqualTo(1500);
+        
+        List<Map<String, Object>> keyList = new ArrayList<Map<String, Object>>();
+        for(int i=1501; i >= 0; i--)
+        {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("T1", 50000 + i);
+            keyList.add(m);
+        }
+        //findByKey 放入 row cache 的資料也要找到
+        assertThat(dao.findByKey(keyList.get(100))).isNotNull();
+        
+        Map<List<Object>, Map<String, Object>> rows = dao.findByKeys(keyList);
+        assertThat(rows.size()).isEqualTo(1500);
+        assertThat(rows.get(dao.getKey(keyList.get(2))).get("T2")).isEqualTo("keys1499");
+        assertThat(rows.get(dao.getKey(keyList.get(0)))).isNull();
+        //依傳入順序
+        assertThat(rows.keySet().iterator().next()).isEqualTo(dao.getKey(keyList.get(2)));
+        assertThat(dao.state().isIdle()).isTrue();
+        
+        //String key 查詢 INTEGER 欄位，依欄位型態轉換後比對
+        List<Map<String, Object>> strKeys = new ArrayList<Map<String, Object>>();
+        for(int i=0; i < 3; i++)
+        {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("T1", String.valueOf(50000 + i));
+            strKeys.add(m);
+        }
+        rows = dao.findByKeys(strKeys);
+        assertThat(rows.size()).isEqualTo(3);
+        assertThat(rows.get(dao.getKey(strKeys.get(1))).get("T2")).isEqualTo("keys1");
+        assertThat(dao.getKey(strKeys.get(1))).isEqualTo(dao.getKey(keyList.get(1500)));
+        
+        dao.updateEx("delete from TEST1 where T1 >= 50000", null);
+    }
+    
+    @Test
+    public void testDeleteByKeys()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for(int i=0; i < 2500; i++)
+        {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("T1", 60000 + i);
+            list.add(m);
+        }
+        assertThat(dao.insertAll(list)).isEqualTo(2500);
+        assertThat(dao.findByKey(list.get(0))).isNotNull();
+        
+        int [] counts = dao.deleteByKeys(list);
+        assertThat(counts).containsExactly(1000, 1000, 500);
+        assertThat(dao.getRecordCount(" where T1 >= 60000", null)).isEqualTo(0);
+        //row cache 已清除
+        assertThat(dao.findByKey(list.get(0))).isNull();
+        
+        //多個 key 欄位以 batch 刪除
+        CommonDao dao2 = new CommonDao();
+        dao2.setTableName("TEST_KEYS");
+        dao2.updateEx("CREATE TABLE TEST_KEYS (K1 INTEGER NOT NULL, K2 VARCHAR(10) NOT NULL, V VARCHAR(10), PRIMARY KEY (K1, K2))", null);
+        try
+        {
+            list.clear();
+            for(int i=0; i < 30; i++)
+            {
+                Map<String, Object> m = new HashMap<String, Object>();
+                m.put("K1", i / 10);
+                m.put("K2", "k" + (i % 10));
+                m.put("V", "v" + i);
+                list.add(m);
+            }
+            assertThat(dao2.insertAll(list)).isEqualTo(30);
+            assertThat(dao2.findByKeys(list.subList(0, 12)).size()).isEqualTo(12);
+            
+            counts = dao2.deleteByKeys(list.subList(0, 20));
+            assertThat(counts).containsExactly(20);
+            assertThat(dao2.getRecordCount(null, null)).isEqualTo(10);
+        }
+        finally
+        {
+            dao2.updateEx("DROP TABLE TEST_KEYS", null);
+            DbTableCache.invalidate(dao2.getDbName(), "TEST_KEYS");
+        }
+    }
+    
+    @Test
+    public void testFindPage()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        for(int i=0; i < 2500; i++)
+        {
+            Map<String, Object> m = new HashMap<String, Object>();
+            m.put("T1", 70000 + i);
+            m.put("T2", i % 2 == 0 ? "even" : "odd");
+            list.add(m);
+        }
+        assertThat(dao.insertAll(list)).isEqualTo(2500);
+        
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("T1", 70000);
+        map.put("T2", "even");
+        String token = null;
+        int pages = 0;
+        int rows = 0;
+        int last = -1;
+        do
+        {
+            RowPage page = dao.findPage(" where T1 >= :T1 and T2 = :T2", map, 500, token);
+            for(Map<String, Object> row : page.getRows())
+            {
+                int t1 = ((Number) row.get("T1")).intValue();
+                assertThat(t1).isGreaterThan(last);
+                last = t1;
+                rows++;
+            }
+            token = page.getNextToken();
+            pages++;
+        } while (token != null);
+        assertThat(rows).isEqualTo(1250);
+        assertThat(pages).isEqualTo(3);
+        assertThat(last).isEqualTo(72498);
+        
+        //不正確的 token
+        assertThat(dao.findPage(null, null, 10, "bad-token")).isNull();
+        assertThat(dao.state().isIdle()).isTrue();
+        
+        dao.updateEx("delete from TEST1 where T1 >= 70000", null);
+    }
+    
 }
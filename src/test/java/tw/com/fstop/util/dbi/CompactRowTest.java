@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class CompactRowTest
+{
+
+    @Test
+    public void testMap()
+    {
+        RowSchema schema = new RowSchema(new String [] {"T1", "T2", "T3"});
+        CompactRow row = new CompactRow(schema, new Object [] {1, "a", null});
+
+        Map<String, Object> expect = new LinkedHashMap<String, Object>();
+        expect.put("T1", 1);
+        expect.put("T2", "a");
+        expect.put("T3", null);
+
+        assertThat(row).isEqualTo(expect);
+        assertThat(row.hashCode()).isEqualTo(expect.hashCode());
+        assertThat(row.keySet()).containsExactly("T1", "T2", "T3");
+        assertThat(row.containsKey("T3")).isTrue();
+        assertThat(row.get("T4")).isNull();
+
+        //不在 schema 內的 key
+        row.put("T4", "x");
+        assertThat(row.size()).isEqualTo(4);
+        assertThat(row.keySet()).containsExactly("T1", "T2", "T3", "T4");
+
+        assertThat(row.remove("T2")).isEqualTo("a");
+        assertThat(row.containsKey("T2")).isFalse();
+        assertThat(row.size()).isEqualTo(3);
+        assertThat(row.keySet()).containsExactly("T1", "T3", "T4");
+
+        row.put("T2", "b");
+        assertThat(row.size()).isEqualTo(4);
+        assertThat(row.get("T2")).isEqualTo("b");
+
+        row.clear();
+        assertThat(row.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testConvert()
+    {
+        RowSchema schema = new RowSchema(new String [] {"AMT", "QTY"});
+        CompactRow row = new CompactRow(schema, new Object [] {new BigDecimal("12"), 3L});
+
+        assertThat(row.get("AMT", Integer.class)).isEqualTo(12);
+        String s = "";
+        s = row.as("QTY", s);
+        assertThat(s).isEqualTo("3");
+    }
+
+    @Test
+    public void testDuplicateLabel()
+    {
+        RowSchema schema = new RowSchema(new String [] {"ID", "NAME", "ID"});
+        assertThat(schema.size()).isEqualTo(2);
+        assertThat(schema.indexOf("ID")).isEqualTo(0);
+        assertThat(schema.indexOf("NAME")).isEqualTo(1);
+    }
+
+    @Test
+    public void testOptIn()
+    {
+        //未設定 db.row.compact 時使用 DataConvertMap
+        CommonDao dao = new CommonDao();
+        dao.setDbName("nocompact");
+        assertThat(dao.isCompactRow()).isFalse();
+
+        dao.setCompactRow(true);
+        assertThat(dao.isCompactRow()).isTrue();
+
+        dao.setDbName("_default");
+        dao.setCompactRow(null);
+        assertThat(dao.isCompactRow()).isTrue();
+    }
+
+}
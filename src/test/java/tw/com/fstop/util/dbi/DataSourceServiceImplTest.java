@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class DataSourceServiceImplTest
+{
+
+    static class TestProvider implements DataSourceProvider
+    {
+        final AtomicInteger created = new AtomicInteger();
+
+        @Override
+        public String getProviderName()
+        {
+            return "TestPool";
+        }
+
+        @Override
+        public DataSource getDataSource(String dbName)
+        {
+            created.incrementAndGet();
+            return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?> [] {DataSource.class},
+                (proxy, method, args) -> "toString".equals(method.getName()) ? "TestPool." + dbName : null);
+        }
+    }
+
+    @Test
+    public void testProvider()
+    {
+        DataSourceServiceImpl service = (DataSourceServiceImpl) DataSourceServiceImpl.getInstance();
+        assertThat(DataSourceServiceImpl.getInstance()).isSameAs(service);
+
+        //META-INF/services 內的 provider
+        assertThat(service.getProvider("hikari")).isInstanceOf(HikariDataSourceProvider.class);
+        assertThat(service.getProvider("C3P0")).isInstanceOf(C3p0DataSourceProvider.class);
+        assertThat(service.getDataSource("nopool", "db1")).isNull();
+
+        TestProvider provider = new TestProvider();
+        DataSourceServiceImpl.registerProvider(provider);
+
+        DataSource ds = service.getDataSource("testpool", "db1");
+        assertThat(ds).isNotNull();
+        assertThat(service.getDataSource("TESTPOOL", "db1")).isSameAs(ds);
+        assertThat(service.getDataSource("TestPool", "db2")).isNotSameAs(ds);
+        assertThat(provider.created.get()).isEqualTo(2);
+
+        assertThat(service.removeDataSource("TestPool", "db1")).isSameAs(ds);
+        assertThat(service.getDataSource("TestPool", "db1")).isNotSameAs(ds);
+        assertThat(provider.created.get()).isEqualTo(3);
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class DbDialectTest
+{
+
+    @Test
+    public void testInsertRows()
+    {
+        assertThat(DbDialect.of("Microsoft SQL Server")).isSameAs(DbDialect.SQLSERVER);
+        assertThat(DbDialect.of("PostgreSQL")).isSameAs(DbDialect.POSTGRESQL);
+        assertThat(DbDialect.of("Oracle")).isSameAs(DbDialect.ORACLE);
+        assertThat(DbDialect.of("HSQL Database Engine")).isSameAs(DbDialect.HSQL);
+        assertThat(DbDialect.of("MySQL")).isSameAs(DbDialect.DEFAULT);
+        assertThat(DbDialect.of(null)).isSameAs(DbDialect.DEFAULT);
+
+        //SQL Server 參數個數限制
+        assertThat(DbDialect.SQLSERVER.getInsertRows(3)).isEqualTo(666);
+        assertThat(DbDialect.SQLSERVER.getInsertRows(1)).isEqualTo(1000);
+        assertThat(DbDialect.SQLSERVER.getInsertRows(3000)).isEqualTo(1);
+        assertThat(DbDialect.ORACLE.isMultiRowInsert()).isFalse();
+        assertThat(DbDialect.ORACLE.getInsertRows(2)).isEqualTo(1);
+
+        assertThat(DbDialect.DEFAULT.withLimits(100, 10).getInsertRows(2)).isEqualTo(10);
+        assertThat(DbDialect.DEFAULT.withLimits(100, 1000).getInsertRows(3)).isEqualTo(33);
+
+        //IN 條件上限
+        assertThat(DbDialect.ORACLE.getLookupRows(1)).isEqualTo(1000);
+        assertThat(DbDialect.SQLSERVER.getLookupRows(3)).isEqualTo(666);
+    }
+
+    @Test
+    public void testLimit()
+    {
+        assertThat(DbDialect.SQLSERVER.getLimitPrefix(11)).isEqualTo(" top (11) ");
+        assertThat(DbDialect.SQLSERVER.getLimitSuffix(11)).isEmpty();
+        assertThat(DbDialect.HSQL.getLimitPrefix(11)).isEmpty();
+        assertThat(DbDialect.HSQL.getLimitSuffix(11)).isEqualTo(" limit 11");
+        assertThat(DbDialect.ORACLE.getLimitSuffix(11)).isEqualTo(" fetch first 11 rows only");
+    }
+
+    @Test
+    public void testFindByKeysStatement()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        dao.setUseHint(false);
+        assertThat(dao.getFindByKeysStatement(new String [] {"T1"}, 3)).isEqualTo("select  * from TEST1 where T1 in (?, ?, ?) ");
+        assertThat(dao.getFindByKeysStatement(new String [] {"K1", "K2"}, 2))
+            .isEqualTo("select  * from TEST1 where (K1 = ? and K2 = ?) or (K1 = ? and K2 = ?) ");
+    }
+
+    @Test
+    public void testInsertRowsStatement()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        String sql = dao.getInsertRowsStatement(new String [] {"T1", "T2"}, 3);
+        assertThat(sql).isEqualTo("insert into TEST1 ( T1, T2 )  values (?, ?), (?, ?), (?, ?) ");
+    }
+
+    @Test
+    public void testMergeStatement()
+    {
+        CommonDao dao = new CommonDao();
+        dao.setTableName("TEST1");
+        Map<String, DbTableFieldInfo> fields = new LinkedHashMap<String, DbTableFieldInfo>();
+        DbTableFieldInfo t1 = new DbTableFieldInfo("T1", "INTEGER", 10, 0, false);
+        t1.setSqlType(Types.INTEGER);
+        DbTableFieldInfo t2 = new DbTableFieldInfo("T2", "VARCHAR", 50, 0, true);
+        t2.setSqlType(Types.VARCHAR);
+        fields.put("T1", t1);
+        fields.put("T2", t2);
+        String [] columns = new String [] {"T1", "T2", "X"};
+        String [] keys = new String [] {"T1"};
+
+        StringBuilder sb = new StringBuilder();
+        dao.appendMerge(sb, DbDialect.HSQL, columns, keys, fields);
+        assertThat(sb.toString()).isEqualTo("merge into TEST1 as dst using (values (cast(:T1 as INTEGER), cast(:T2 as VARCHAR(50)))) as src (T1, T2)"
+            + " on dst.T1 = src.T1 when matched then update set T2 = src.T2 when not matched then insert (T1, T2) values (src.T1, src.T2)");
+
+        sb = new StringBuilder();
+        dao.appendMerge(sb, DbDialect.SQLSERVER, columns, keys, fields);
+        assertThat(sb.toString()).isEqualTo("merge into TEST1 with (holdlock) as dst using (values (:T1, :T2)) as src (T1, T2)"
+            + " on dst.T1 = src.T1 when matched then update set T2 = src.T2 when not matched then insert (T1, T2) values (src.T1, src.T2);");
+
+        //只有 key 欄位時只 insert
+        sb = new StringBuilder();
+        dao.appendMerge(sb, DbDialect.SQLSERVER, keys, keys, fields);
+        assertThat(sb.toString()).isEqualTo("merge into TEST1 with (holdlock) as dst using (values (:T1)) as src (T1)"
+            + " on dst.T1 = src.T1 when not matched then insert (T1) values (src.T1);");
+    }
+
+}
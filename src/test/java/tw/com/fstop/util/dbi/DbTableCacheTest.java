@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class DbTableCacheTest
+{
+
+    static DbTable table(String name)
+    {
+        Map<String, DbTableFieldInfo> fields = new LinkedHashMap<String, DbTableFieldInfo>();
+        Map<String, DbTableFieldInfo> keyFields = new LinkedHashMap<String, DbTableFieldInfo>();
+        DbTableFieldInfo k2 = new DbTableFieldInfo("K2", "INTEGER", 10, 0, false);
+        k2.setKeySeq(2);
+        DbTableFieldInfo k1 = new DbTableFieldInfo("K1", "VARCHAR", 10, 0, false);
+        k1.setKeySeq(1);
+        fields.put("K2", k2);
+        fields.put("K1", k1);
+        keyFields.put("K2", k2);
+        keyFields.put("K1", k1);
+        return new DbTable("cachetest", name, "HSQL Database Engine", fields, keyFields);
+    }
+
+    @Test
+    public void testSingleLoad() throws Exception
+    {
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Callable<DbTable> loader = () -> {
+            loads.incrementAndGet();
+            Thread.sleep(50);
+            return table("T_SINGLE");
+        };
+
+        final List<DbTable> results = Collections.synchronizedList(new ArrayList<DbTable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i=0; i < 8; i++)
+        {
+            Thread t = new Thread(() -> {
+                try
+                {
+                    start.await();
+                    results.add(DbTableCache.get("cachetest", "T_SINGLE", loader));
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for(Thread t : threads)
+        {
+            t.join();
+        }
+
+        assertThat(loads.get()).isEqualTo(1);
+        assertThat(results.size()).isEqualTo(8);
+        for(DbTable t : results)
+        {
+            assertThat(t).isSameAs(DbTableCache.get("cachetest", "T_SINGLE"));
+        }
+
+        //key 依 key sequence 排序，且不可修改
+        DbTable t = DbTableCache.get("cachetest", "T_SINGLE");
+        assertThat(t.getKeyFields().keySet()).containsExactly("K1", "K2");
+        assertThat(t.getFields().keySet()).containsExactly("K2", "K1");
+        try
+        {
+            t.getFields().clear();
+            fail("fields should not be modifiable");
+        }
+        catch (UnsupportedOperationException e)
+        {
+        }
+
+        DbTableCache.invalidate("cachetest", "T_SINGLE");
+        assertThat(DbTableCache.get("cachetest", "T_SINGLE")).isNull();
+    }
+
+    @Test
+    public void testLoadFailed() throws Exception
+    {
+        try
+        {
+            DbTableCache.get("cachetest", "T_FAIL", () -> {
+                throw new IllegalStateException("no connection");
+            });
+            fail("load should fail");
+        }
+        catch (java.sql.SQLException e)
+        {
+            assertThat(e.getMessage()).contains("no connection");
+        }
+        //失敗不放入 cache
+        assertThat(DbTableCache.get("cachetest", "T_FAIL")).isNull();
+
+        DbTable t = DbTableCache.get("cachetest", "T_FAIL", () -> table("T_FAIL"));
+        assertThat(t.getFields().size()).isEqualTo(2);
+        DbTableCache.invalidate("cachetest", "T_FAIL");
+    }
+
+    @Test
+    public void testSchemaError() throws Exception
+    {
+        assertThat(DbTableCache.isSchemaError(new java.sql.SQLException("Invalid column name 'T3'.", "42S22"))).isTrue();
+        assertThat(DbTableCache.isSchemaError(new RuntimeException(new java.sql.SQLException("column \"t3\" does not exist", "42703")))).isTrue();
+        assertThat(DbTableCache.isSchemaError(new java.sql.SQLException("duplicate key", "23505"))).isFalse();
+
+        //沒有變更時不替換 snapshot
+        DbTable t = DbTableCache.get("cachetest", "T_SAME", () -> table("T_SAME"));
+        assertThat(DbTableCache.reload("cachetest", "T_SAME", () -> table("T_SAME"))).isSameAs(t);
+        DbTableCache.invalidate("cachetest", "T_SAME");
+    }
+
+    @Test
+    public void testSnapshot() throws Exception
+    {
+        List<DbTable> tables = new ArrayList<DbTable>();
+        tables.add(table("T_SNAP1"));
+        tables.add(table("T_SNAP2"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DbTableSnapshot.write(new DataOutputStream(bytes), "cachetest", "v1", tables);
+
+        List<DbTable> read = DbTableSnapshot.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "cachetest", "v1");
+        assertThat(read.size()).isEqualTo(2);
+        DbTable t = read.get(1);
+        assertThat(t.getName()).isEqualTo("T_SNAP2");
+        assertThat(t.getProductName()).isEqualTo("HSQL Database Engine");
+        assertThat(t.getFields().keySet()).containsExactly("K2", "K1");
+        assertThat(t.getKeyFields().keySet()).containsExactly("K1", "K2");
+        assertThat(t.getFields().get("K2").getSqlType()).isNull();
+        assertThat(t.getFields().get("K2").getSize()).isEqualTo(10);
+        assertThat(t.getKeyFields().get("K2").getKeySeq()).isEqualTo(2);
+
+        //schema 版本不同時不使用
+        read = DbTableSnapshot.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "cachetest", "v2");
+        assertThat(read).isNull();
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class JdbcNamedParameterStatementTest
+{
+
+    @Test
+    public void testParse()
+    {
+        String sql = "select * from TEST1 where T1 = :T1 and T2 <> ':T2' and (T1 = :T1 or T2 = :T2)";
+        ParsedQuery parsed = JdbcNamedParameterStatement.parseQuery(sql);
+
+        assertThat(parsed.getSql()).isEqualTo("select * from TEST1 where T1 = ? and T2 <> ':T2' and (T1 = ? or T2 = ?)");
+        assertThat(parsed.getParameterCount()).isEqualTo(3);
+        assertThat(parsed.getIndexes("T1")).containsExactly(1, 2);
+        assertThat(parsed.getIndexes("T2")).containsExactly(3);
+
+        //legacy api
+        Map<String, Object> paramMap = new HashMap<String, Object>();
+        String ret = JdbcNamedParameterStatement.parse(sql, paramMap);
+        assertThat(ret).isEqualTo(parsed.getSql());
+        assertThat((int []) paramMap.get("T1")).containsExactly(1, 2);
+    }
+
+    @Test
+    public void testParseCache()
+    {
+        String sql = "select * from TEST1 where T1 = :T1";
+        ParsedQuery p1 = JdbcNamedParameterStatement.getParsedQuery(sql);
+        long hit = JdbcNamedParameterStatement.getParseCache().getHitCount();
+        ParsedQuery p2 = JdbcNamedParameterStatement.getParsedQuery(new String(sql));
+
+        assertThat(p2).isSameAs(p1);
+        assertThat(JdbcNamedParameterStatement.getParseCache().getHitCount()).isEqualTo(hit + 1);
+    }
+
+    @Test
+    public void testBoundedCache()
+    {
+        BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(4);
+        for(int i=0; i < 10; i++)
+        {
+            cache.put(i, String.valueOf(i));
+        }
+        assertThat(cache.size()).isEqualTo(4);
+        assertThat(cache.getEvictionCount()).isEqualTo(6);
+        assertThat(cache.get(9)).isEqualTo("9");
+        assertThat(cache.get(0)).isNull();
+    }
+
+    @Test
+    public void testBindingPlan() throws Exception
+    {
+        Map<String, DbTableFieldInfo> fields = new HashMap<String, DbTableFieldInfo>();
+        DbTableFieldInfo t1 = new DbTableFieldInfo("T1", "INTEGER", 10, 0, false);
+        t1.setSqlType(Types.INTEGER);
+        DbTableFieldInfo t2 = new DbTableFieldInfo("T2", "VARCHAR", 50, 0, true);
+        t2.setSqlType(Types.VARCHAR);
+        fields.put("T1", t1);
+        fields.put("T2", t2);
+
+        ParsedQuery parsed = JdbcNamedParameterStatement.parseQuery("update TEST1 set T2 = :T2 where T1 = :T1");
+        BindingPlan plan = BindingPlan.build(parsed, fields);
+
+        //記錄呼叫的 setter
+        final List<String> calls = new ArrayList<String>();
+        PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?> [] {PreparedStatement.class}, (proxy, method, args) -> {
+                    calls.add(method.getName() + ":" + args[0] + ":" + args[1]);
+                    return null;
+                });
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("T1", 1);
+        map.put("T2", null);
+        plan.bind(ps, map);
+        assertThat(calls).containsOnly("setInt:2:1", "setNull:1:" + Types.VARCHAR);
+
+        map.put("T3", "x");
+        try
+        {
+            plan.bind(ps, map);
+            fail("unknown parameter should fail");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertThat(e.getMessage()).contains("T3");
+        }
+    }
+
+}
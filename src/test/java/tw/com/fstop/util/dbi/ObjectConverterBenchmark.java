@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Throughput and allocation benchmark of ObjectConverter.
+ *
+ * <pre>
+ * 比較舊的轉換方式 (字串 key + Method.invoke) 與 {@link ObjectConverter#convert(Object, Class)}。
+ * 直接執行 main 即可：
+ *   java -cp ... tw.com.fstop.util.dbi.ObjectConverterBenchmark [iterations] [rounds]
+ * </pre>
+ */
+public class ObjectConverterBenchmark
+{
+    static final Map<String, Method> LEGACY = new HashMap<String, Method>();
+
+    static
+    {
+        for (Method method : ObjectConverter.class.getDeclaredMethods())
+        {
+            if (method.getParameterTypes().length == 1)
+            {
+                LEGACY.put(method.getParameterTypes()[0].getName() + "_" + method.getReturnType().getName(), method);
+            }
+        }
+    }
+
+    interface Converter
+    {
+        <T> T convert(Object from, Class<T> to);
+    }
+
+    static final Converter legacy = new Converter()
+    {
+        @Override
+        public <T> T convert(Object from, Class<T> to)
+        {
+            if (from == null)
+            {
+                return null;
+            }
+            if (to.isAssignableFrom(from.getClass()))
+            {
+                return to.cast(from);
+            }
+            Method converter = LEGACY.get(from.getClass().getName() + "_" + to.getName());
+            try
+            {
+                return to.cast(converter.invoke(to, from));
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    static final Converter current = new Converter()
+    {
+        @Override
+        public <T> T convert(Object from, Class<T> to)
+        {
+            return ObjectConverter.convert(from, to);
+        }
+    };
+
+    static long allocatedBytes()
+    {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long sink;
+
+    static void measure(String name, int iterations, int rounds, Converter c)
+    {
+        //值事先建立，只量測轉換
+        Object [] values = new Object[] {BigDecimal.valueOf(12345), Long.valueOf(123456789L), BigDecimal.valueOf(7)};
+        long bytes = 0;
+        long nanos = 0;
+        for(int r=0; r < rounds; r++)
+        {
+            long b = allocatedBytes();
+            long t = System.nanoTime();
+            long sum = 0;
+            for(int i=0; i < iterations; i++)
+            {
+                //getRecordCount: BigDecimal -> Long，DataConvertMap.get(k, Integer.class)
+                sum += c.convert(values[i % 3], Long.class);
+                sum += c.convert(values[0], Integer.class);
+            }
+            nanos += System.nanoTime() - t;
+            bytes += allocatedBytes() - b;
+            sink += sum;
+        }
+        long calls = (long) iterations * rounds * 2;
+        System.out.println(String.format("%-16s %10.1f bytes/op %10.1f ns/op",
+                name, (double) bytes / calls, (double) nanos / calls));
+    }
+
+    public static void main(String [] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        //warm up
+        measure("warmup legacy", iterations, rounds, legacy);
+        measure("warmup current", iterations, rounds, current);
+
+        measure("legacy", iterations, rounds, legacy);
+        measure("current", iterations, rounds, current);
+        System.out.println(sink == 0 ? "" : "done");
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class RowPageTest
+{
+
+    @Test
+    public void testToken() throws Exception
+    {
+        Timestamp ts = Timestamp.valueOf("2017-08-01 12:34:56.123456789");
+        Object [] values = new Object [] {1, "A01", new BigDecimal("12.50"), 99L, ts};
+        String token = RowPage.encode("TEST1", values);
+        assertThat(token).doesNotContain("=").doesNotContain("+").doesNotContain("/");
+        assertThat(RowPage.decode("TEST1", 5, token)).containsExactly(values);
+
+        //其他 table 或 key 個數不同時不可使用
+        try
+        {
+            RowPage.decode("TEST2", 5, token);
+            fail("token of other table");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+        try
+        {
+            RowPage.decode("TEST1", 2, token);
+            fail("token of other key");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+        try
+        {
+            RowPage.decode("TEST1", 5, "not a token");
+            fail("invalid token");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class SqlTemplateCacheTest
+{
+    static final String DB = "sqltest";
+    static final String TABLE = "T_SQL";
+
+    CommonDao dao;
+
+    @Before
+    public void setUp()
+    {
+        Map<String, DbTableFieldInfo> fields = new LinkedHashMap<String, DbTableFieldInfo>();
+        Map<String, DbTableFieldInfo> keyFields = new LinkedHashMap<String, DbTableFieldInfo>();
+        DbTableFieldInfo k1 = new DbTableFieldInfo("K1", "INTEGER", 10, 0, false);
+        k1.setKeySeq(1);
+        fields.put("K1", k1);
+        fields.put("C1", new DbTableFieldInfo("C1", "VARCHAR", 10, 0, true));
+        fields.put("C2", new DbTableFieldInfo("C2", "VARCHAR", 10, 0, true));
+        keyFields.put("K1", k1);
+        DbTableCache.publish(DB, TABLE, new DbTable(DB, TABLE, "HSQL Database Engine", fields, keyFields));
+
+        dao = new CommonDao();
+        dao.setDbName(DB);
+        dao.setTableName(TABLE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        DbTableCache.invalidate(DB, TABLE);
+        SqlTemplateCache.invalidate(DB, TABLE);
+    }
+
+    static Map<String, Object> map(String... keys)
+    {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for(String k : keys)
+        {
+            map.put(k, k.toLowerCase());
+        }
+        return map;
+    }
+
+    /**
+     * 與改用 cache 前產生的 SQL 相同 (欄位依名稱排序)
+     */
+    @Test
+    public void testGeneratedSql()
+    {
+        assertThat(dao.getInsertStatement(map("C1", "K1")))
+            .isEqualTo("insert into T_SQL ( C1, K1 )  values (:C1, :K1 ) ");
+        assertThat(dao.getInsertStatement())
+            .isEqualTo("insert into T_SQL ( K1, C1, C2 )  values (:K1, :C1, :C2 ) ");
+        assertThat(dao.getUpdateStatement(map("C1", "C2", "K1", "X")))
+            .isEqualTo(" update T_SQL set C1 = :C1, C2 = :C2 ");
+        assertThat(dao.getUpdateByKeyStatement(map("C1", "K1")))
+            .isEqualTo(" update T_SQL set C1 = :C1  where K1 = :K1 ");
+        assertThat(dao.getEqualCondition(map("C1", "C2")))
+            .isEqualTo(" where C1 = :C1 and C2 = :C2 ");
+        assertThat(dao.getEqualCondition(null)).isEmpty();
+        assertThat(dao.getEqualByKeyCondition()).isEqualTo(" where K1 = :K1 ");
+        assertThat(dao.getSqlTemplate(SqlTemplate.Operation.FIND_BY_KEY, map("C1", "K1")).getSql())
+            .isEqualTo("select  * from T_SQL where K1 = :K1 ");
+        assertThat(dao.getSqlTemplate(SqlTemplate.Operation.DELETE_BY_KEY, map("C1", "K1")).getSql())
+            .isEqualTo("delete from T_SQL where K1 = :K1 ");
+
+        //map key 順序不同時使用同一份 SQL
+        assertThat(dao.getInsertStatement(map("K1", "C1"))).isSameAs(dao.getInsertStatement(map("C1", "K1")));
+    }
+
+    @Test
+    public void testHitMissAndInvalidate()
+    {
+        SqlTemplateCache.resetStats();
+        String sql = dao.getUpdateStatement(map("C1", "K1"));
+        assertThat(SqlTemplateCache.getMissCount()).isEqualTo(1);
+        assertThat(SqlTemplateCache.getHitCount()).isEqualTo(0);
+
+        assertThat(dao.getUpdateStatement(map("K1", "C1"))).isSameAs(sql);
+        assertThat(SqlTemplateCache.getMissCount()).isEqualTo(1);
+        assertThat(SqlTemplateCache.getHitCount()).isEqualTo(1);
+        assertThat(SqlTemplateCache.getHitRate()).isEqualTo(0.5);
+
+        //其他 table 的 SQL 不受影響
+        SqlTemplateCache.invalidate(DB, "T_OTHER");
+        dao.getUpdateStatement(map("C1", "K1"));
+        assertThat(SqlTemplateCache.getHitCount()).isEqualTo(2);
+
+        SqlTemplateCache.invalidate(DB, TABLE);
+        assertThat(dao.getUpdateStatement(map("C1", "K1"))).isEqualTo(sql).isNotSameAs(sql);
+        assertThat(SqlTemplateCache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testBounded()
+    {
+        assertThat(SqlTemplateCache.templates.getMaxSize()).isEqualTo(SqlTemplateCache.CACHE_SIZE);
+
+        BoundedCache<String, String> cache = new BoundedCache<String, String>(8);
+        for(int i=0; i < 20; i++)
+        {
+            cache.put("k" + i, "v" + i);
+        }
+        assertThat(cache.size()).isLessThanOrEqualTo(8);
+        assertThat(cache.get("k19")).isEqualTo("v19");
+        assertThat(cache.removeIf(k -> k.equals("k19"))).isEqualTo(1);
+        assertThat(cache.get("k19")).isNull();
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017, FSTOP, Inc. All Rights Reserved.
+ *
+ * You may not use this file except in compliance with the License.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package tw.com.fstop.util.dbi;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+public class StatementCacheTest
+{
+    static final int TYPE = ResultSet.TYPE_FORWARD_ONLY;
+    static final int CONCUR = ResultSet.CONCUR_READ_ONLY;
+
+    /**
+     * Connection proxy recording prepared statements, unwrap returns another connection
+     * to check that statements are not prepared on the unwrapped one.
+     */
+    static class MockConnection
+    {
+        final List<MockStatement> prepared = new ArrayList<MockStatement>();
+        boolean closed = false;
+        final Connection connection;
+
+        MockConnection()
+        {
+            connection = (Connection) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(),
+                    new Class<?> [] {Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName())
+                        {
+                            case "prepareStatement":
+                                MockStatement ms = new MockStatement((String) args[0]);
+                                prepared.add(ms);
+                                return ms.statement;
+                            case "isClosed":
+                                return closed;
+                            case "getAutoCommit":
+                                return true;
+                            case "unwrap":
+                                return new MockConnection().connection;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+        }
+    }
+
+    static class MockStatement
+    {
+        final String sql;
+        final List<String> calls = new ArrayList<String>();
+        boolean closed = false;
+        final PreparedStatement statement;
+
+        MockStatement(String sql)
+        {
+            this.sql = sql;
+            statement = (PreparedStatement) Proxy.newProxyInstance(StatementCacheTest.class.getClassLoader(),
+                    new Class<?> [] {PreparedStatement.class}, (proxy, method, args) -> {
+                        switch (method.getName())
+                        {
+                            case "close":
+                                closed = true;
+                                return null;
+                            case "isClosed":
+                                return closed;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                calls.add(method.getName());
+                                return null;
+                        }
+                    });
+        }
+    }
+
+    MockConnection conn = new MockConnection();
+
+    @After
+    public void tearDown()
+    {
+        StatementCache.remove(conn.connection);
+    }
+
+    JdbcNamedParameterStatement prepare(String sql, int cacheSize) throws Exception
+    {
+        return JdbcNamedParameterStatement.prepare(conn.connection, sql, TYPE, CONCUR, cacheSize);
+    }
+
+    @Test
+    public void testHitMiss() throws Exception
+    {
+        long hit = StatementCache.getHitCount();
+        long miss = StatementCache.getMissCount();
+
+        JdbcNamedParameterStatement s1 = prepare("select * from T where A = :A", 4);
+        PreparedStatement ps = s1.getStatement();
+        s1.close();
+        JdbcNamedParameterStatement s2 = prepare("select * from T where A = :A", 4);
+
+        assertThat(s2.getStatement()).isSameAs(ps);
+        assertThat(conn.prepared).hasSize(1);
+        //在 DAO 取得的 connection 上 prepare，不使用 unwrap 的 connection
+        assertThat(conn.prepared.get(0).sql).isEqualTo("select * from T where A = ?");
+        assertThat(StatementCache.getMissCount()).isEqualTo(miss + 1);
+        assertThat(StatementCache.getHitCount()).isEqualTo(hit + 1);
+
+        //使用中的 statement 不會再被取得
+        JdbcNamedParameterStatement s3 = prepare("select * from T where A = :A", 4);
+        assertThat(s3.getStatement()).isNotSameAs(ps);
+        s2.close();
+        s3.close();
+
+        //cache 停用時直接關閉
+        JdbcNamedParameterStatement s4 = prepare("select * from T where A = :A", 0);
+        s4.close();
+        assertThat(conn.prepared.get(conn.prepared.size() - 1).closed).isTrue();
+    }
+
+    @Test
+    public void testClearParameters() throws Exception
+    {
+        JdbcNamedParameterStatement s1 = prepare("update T set B = :B where A = :A", 4);
+        s1.setObject("A", 1);
+        s1.addBatch();
+        s1.close();
+
+        MockStatement ms = conn.prepared.get(0);
+        assertThat(ms.calls).containsExactly("setFetchSize", "setObject", "addBatch", "clearParameters", "clearBatch");
+        assertThat(ms.closed).isFalse();
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        long evicted = StatementCache.getEvictionCount();
+        for(int i=0; i < 3; i++)
+        {
+            prepare("select * from T" + i, 2).close();
+        }
+        assertThat(StatementCache.of(conn.connection, 2).size()).isEqualTo(2);
+        assertThat(StatementCache.getEvictionCount()).isEqualTo(evicted + 1);
+        //最久未使用的被關閉
+        assertThat(conn.prepared.get(0).closed).isTrue();
+        assertThat(conn.prepared.get(2).closed).isFalse();
+
+        prepare("select * from T0", 2).close();
+        assertThat(conn.prepared).hasSize(4);
+    }
+
+    @Test
+    public void testClosedConnection() throws Exception
+    {
+        prepare("select * from T", 4).close();
+        JdbcNamedParameterStatement s1 = prepare("select * from T where A = :A", 4);
+        assertThat(StatementCache.caches).containsKey(conn.connection);
+
+        //connection 已關閉，放回時關閉 statement 並移除 cache
+        conn.closed = true;
+        s1.close();
+        assertThat(conn.prepared.get(1).closed).isTrue();
+        assertThat(StatementCache.caches).doesNotContainKey(conn.connection);
+
+        //DAO 關閉 connection 前移除 cache，關閉閒置的 statement
+        MockConnection other = new MockConnection();
+        JdbcNamedParameterStatement.prepare(other.connection, "select * from T", TYPE, CONCUR, 4).close();
+        assertThat(other.prepared.get(0).closed).isFalse();
+        StatementCache.remove(other.connection);
+        assertThat(other.prepared.get(0).closed).isTrue();
+        assertThat(StatementCache.caches).doesNotContainKey(other.connection);
+
+        //其他方式關閉的 connection 在 cache 個數達到門檻時清除，不是每次建立 cache 都檢查
+        MockConnection third = new MockConnection();
+        JdbcNamedParameterStatement.prepare(third.connection, "select * from T", TYPE, CONCUR, 4).close();
+        third.closed = true;
+        List<MockConnection> opened = new ArrayList<MockConnection>();
+        for(int i=0; i < StatementCache.PURGE_THRESHOLD; i++)
+        {
+            MockConnection c = new MockConnection();
+            JdbcNamedParameterStatement.prepare(c.connection, "select * from T", TYPE, CONCUR, 4).close();
+            opened.add(c);
+            if (i == 0)
+            {
+                assertThat(StatementCache.caches).containsKey(third.connection);
+            }
+        }
+        assertThat(StatementCache.caches).doesNotContainKey(third.connection);
+        assertThat(third.prepared.get(0).closed).isTrue();
+        for(MockConnection c : opened)
+        {
+            StatementCache.remove(c.connection);
+        }
+    }
+
+}